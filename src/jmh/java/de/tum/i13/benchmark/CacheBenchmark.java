@@ -0,0 +1,73 @@
+package de.tum.i13.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import de.tum.i13.server.kv.caching.CacheHashMap;
+import de.tum.i13.server.kv.caching.CachingStrategy;
+
+/**
+ * Operations per second of the cache map for every caching strategy. The keys are twice as many as
+ * the cache holds, so half of the accesses miss and every put of a new key evicts another one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+  @Param({"FIFO", "LRU", "LFU"})
+  public CachingStrategy strategy;
+
+  @Param({"100", "10000"})
+  public int capacity;
+
+  private CacheHashMap cache;
+  private String[] keys;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    cache = new CacheHashMap(strategy, capacity);
+    keys = new String[Integer.highestOneBit(capacity) * 4];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "user" + (i * 7919L);
+    }
+    for (int i = 0; i < capacity; i++) {
+      cache.put(keys[i], "value");
+    }
+  }
+
+  private String nextKey() {
+    next = (next + 1) & (keys.length - 1);
+    return keys[next];
+  }
+
+  @Benchmark
+  public String get() {
+    return cache.get(nextKey());
+  }
+
+  @Benchmark
+  public String put() {
+    return cache.put(nextKey(), "value");
+  }
+
+  @Benchmark
+  public String readMostly() { // 9 reads per write, as in the read heavy workloads
+    String key = nextKey();
+    return (next % 10 == 0) ? cache.put(key, "value") : cache.get(key);
+  }
+}
@@ -0,0 +1,84 @@
+package de.tum.i13.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.KVCommandProcessor;
+import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.kv.caching.Cache;
+import de.tum.i13.server.kv.caching.CachingStrategy;
+import de.tum.i13.server.threadperconnection.ServerRing;
+
+/**
+ * Requests per second of the command processor of a single server without replication: parsing,
+ * responsibility checks, load tracking and the store itself. The keyrange requests of up to date
+ * clients do not touch the store, so they show the overhead of the processor alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandProcessorBenchmark {
+  private static final String server = "127.0.0.1:5000";
+
+  private DiskStore disk;
+  private KVCommandProcessor cp;
+  private final String[] gets = new String[64];
+  private final String[] puts = new String[64];
+  private String keyRange;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    disk = new DiskStore(Files.createTempDirectory("processor-bench").toString());
+    HashRing hr = new HashRing();
+    hr.addServer(server);
+    cp = new KVCommandProcessor(new KVStore(disk, new Cache(CachingStrategy.LRU, 100)),
+        new ServerRing(hr, server));
+    for (int i = 0; i < gets.length; i++) {
+      String key = "user" + (i * 7919L);
+      gets[i] = "get " + key;
+      puts[i] = "put " + key + " value" + i;
+      cp.process(puts[i]);
+    }
+    keyRange = "keyrange " + hr.getEpoch();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    disk.deleteAll();
+  }
+
+  @Benchmark
+  public String get() {
+    next = (next + 1) & (gets.length - 1);
+    return cp.process(gets[next]);
+  }
+
+  @Benchmark
+  public String put() {
+    next = (next + 1) & (puts.length - 1);
+    return cp.process(puts[next]);
+  }
+
+  @Benchmark
+  public String keyRangeUnchanged() {
+    return cp.process(keyRange);
+  }
+}
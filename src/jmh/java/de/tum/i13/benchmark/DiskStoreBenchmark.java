@@ -0,0 +1,81 @@
+package de.tum.i13.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.ServerStatus;
+
+/**
+ * Operations per second of the file based store for small and large values. Every key is a file,
+ * so these numbers mostly show the cost of the file system calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskStoreBenchmark {
+
+  @Param({"16", "1024"})
+  public int valueSize;
+
+  private DiskStore disk;
+  private final String[] keys = new String[1024];
+  private String value;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    disk = new DiskStore(Files.createTempDirectory("diskstore-bench").toString());
+    StringBuilder sb = new StringBuilder(valueSize);
+    for (int i = 0; i < valueSize; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    value = sb.toString();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "user" + (i * 7919L);
+      disk.put(keys[i], value);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    disk.deleteAll();
+  }
+
+  private String nextKey() {
+    next = (next + 1) & (keys.length - 1);
+    return keys[next];
+  }
+
+  @Benchmark
+  public ServerStatus put() {
+    return disk.put(nextKey(), value); // overwrites an existing file
+  }
+
+  @Benchmark
+  public String get() {
+    return disk.get(nextKey());
+  }
+
+  @Benchmark
+  public ServerStatus putDelete() {
+    disk.put("deleted", value);
+    return disk.delete("deleted");
+  }
+}
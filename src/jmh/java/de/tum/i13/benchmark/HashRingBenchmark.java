@@ -0,0 +1,85 @@
+package de.tum.i13.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import de.tum.i13.server.ecs.HashFunction;
+import de.tum.i13.server.ecs.HashRing;
+
+/**
+ * Lookups per second of the hash ring for both hash functions and different ring sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashRingBenchmark {
+
+  @Param({"MD5", "MURMUR3"})
+  public HashFunction hashFunction;
+
+  @Param({"1", "64"})
+  public int virtualNodes;
+
+  private final HashRing hr = new HashRing();
+  private final String[] keys = new String[1024];
+  private final String server = "127.0.0.1:5000";
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    hr.setHashFunction(hashFunction);
+    hr.setVirtualNodes(virtualNodes);
+    hr.setReplicationFactor(3);
+    for (int i = 0; i < 10; i++) {
+      hr.addServer("127.0.0.1:" + (5000 + i));
+    }
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "user" + (i * 7919L);
+    }
+  }
+
+  private String nextKey() {
+    next = (next + 1) & (keys.length - 1);
+    return keys[next];
+  }
+
+  @Benchmark
+  public String getCoordinator() {
+    return hr.getCoordinator(nextKey());
+  }
+
+  @Benchmark
+  public boolean isCoordinator() {
+    return hr.isCoordinator(server, nextKey());
+  }
+
+  @Benchmark
+  public boolean isReadResponsible() {
+    return hr.isReadResponsible(server, nextKey());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String getCoordinatorConcurrent() {
+    return hr.getCoordinator(keys[(int) (Thread.currentThread().getId() & 1023)]);
+  }
+
+  @Benchmark
+  public String hashHex() {
+    return hr.hash(nextKey());
+  }
+}
@@ -0,0 +1,406 @@
+package de.tum.i13.benchmark;
+
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import de.tum.i13.Util;
+import de.tum.i13.client.ClientApp;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.MainECS;
+import de.tum.i13.server.ecs.ReplicationMode;
+import de.tum.i13.server.threadperconnection.Main;
+import de.tum.i13.shared.LatencyHistogram;
+import de.tum.i13.shared.ServerUtility;
+import de.tum.i13.shared.TraceWriter;
+import de.tum.i13.shared.Tracer;
+import picocli.CommandLine;
+
+/**
+ * YCSB-style workload driver. It starts an ECS and some servers in-process (or uses a running
+ * cluster), loads the records and then lets several client threads run a mix of reads, updates,
+ * inserts and deletes for a fixed time. Latencies are measured from the time a request was due,
+ * so a target rate that the cluster cannot keep up with shows in the tail (no coordinated omission).
+ * <p>
+ * <code>mvn -Pjmh test-compile exec:exec -Djmh.main=de.tum.i13.benchmark.LoadGenerator
+ * -Djmh.args="-s 3 -t 8 -q 2000 --distribution ZIPFIAN"</code>
+ */
+public class LoadGenerator {
+  private static final String address = "127.0.0.1";
+
+  public enum Operation {
+    READ, UPDATE, INSERT, DELETE
+  }
+
+  public enum Distribution {
+    UNIFORM, ZIPFIAN, LATEST
+  }
+
+  @CommandLine.Option(names = "-s", description = "Servers started in-process", defaultValue = "3")
+  public int servers;
+
+  @CommandLine.Option(names = "-r", description = "Replication factor of the in-process cluster", defaultValue = "1")
+  public int replicationFactor;
+
+  @CommandLine.Option(names = "-b", description = "Address of a server of a running cluster instead of an in-process one, e.g. 127.0.0.1:5000")
+  public String bootstrap;
+
+  @CommandLine.Option(names = "-t", description = "Client threads", defaultValue = "4")
+  public int threads;
+
+  @CommandLine.Option(names = "-q", description = "Target requests per second of all threads, 0 for as fast as possible", defaultValue = "0")
+  public int targetRate;
+
+  @CommandLine.Option(names = "-d", description = "Duration of the run in seconds", defaultValue = "10")
+  public int duration;
+
+  @CommandLine.Option(names = "-n", description = "Records loaded before the run", defaultValue = "1000")
+  public int records;
+
+  @CommandLine.Option(names = "--read", description = "Share of reads", defaultValue = "0.5")
+  public double read;
+
+  @CommandLine.Option(names = "--update", description = "Share of updates", defaultValue = "0.5")
+  public double update;
+
+  @CommandLine.Option(names = "--insert", description = "Share of inserts", defaultValue = "0")
+  public double insert;
+
+  @CommandLine.Option(names = "--delete", description = "Share of deletes", defaultValue = "0")
+  public double delete;
+
+  @CommandLine.Option(names = "--distribution", description = "Key distribution: ${COMPLETION-CANDIDATES}", defaultValue = "ZIPFIAN")
+  public Distribution distribution;
+
+  @CommandLine.Option(names = "--value-min", description = "Smallest value in characters", defaultValue = "100")
+  public int valueMin;
+
+  @CommandLine.Option(names = "--value-max", description = "Largest value in characters, sizes are uniform in between", defaultValue = "100")
+  public int valueMax;
+
+  @CommandLine.Option(names = "--corpus", description = "Key-value file used as records instead of generated ones, e.g. bi320.txt")
+  public Path corpus;
+
+  @CommandLine.Option(names = "--trace", description = "File every request is traced to in the Chrome trace format, best used with a low -q")
+  public Path traceFile;
+
+  @CommandLine.Option(names = "-h", description = "Displays help", usageHelp = true)
+  public boolean usagehelp;
+
+  private final List<String> keys = new ArrayList<String>();
+  private final List<String> values = new ArrayList<String>();
+  private final AtomicLong inserted = new AtomicLong(); // records that exist, new keys are appended
+  private final List<Integer> serverPorts = new ArrayList<Integer>();
+  private ZipfianGenerator zipfian;
+
+  /**
+   * Latencies and errors of one run
+   */
+  public static class Report {
+    public final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+    public final AtomicLong errors = new AtomicLong();
+    public long nanos;
+
+    Report() {
+      for (Operation op : Operation.values()) {
+        latencies.put(op, new LatencyHistogram());
+      }
+    }
+
+    public LatencyHistogram total() {
+      LatencyHistogram total = new LatencyHistogram();
+      latencies.values().forEach(total::add);
+      return total;
+    }
+
+    public double throughput() {
+      return total().getCount() * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("throughput=%.0f ops/s errors=%d%n", throughput(), errors.get()));
+      for (Map.Entry<Operation, LatencyHistogram> e : latencies.entrySet()) {
+        if (e.getValue().getCount() > 0) {
+          sb.append(String.format("%-7s %s ms%n", e.getKey(), e.getValue().summary(TimeUnit.MILLISECONDS)));
+        }
+      }
+      sb.append(String.format("%-7s %s ms", "TOTAL", total().summary(TimeUnit.MILLISECONDS)));
+      return sb.toString();
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    LoadGenerator generator = new LoadGenerator();
+    CommandLine cl = new CommandLine(generator);
+    cl.parseArgs(args);
+    if (generator.usagehelp) {
+      cl.usage(System.out);
+      return;
+    }
+    generator.startCluster();
+    generator.load();
+    System.out.println(generator.run());
+    System.exit(0); // the in-process servers do not stop on their own
+  }
+
+  /**
+   * Starts an ECS and the servers in this process, unless a running cluster is used
+   */
+  public void startCluster() throws IOException, InterruptedException {
+    if (bootstrap != null) {
+      serverPorts.add(ServerUtility.getPort(bootstrap));
+      return;
+    }
+    Logger.getLogger(MainECS.class.getName()).setLevel(Level.WARNING);
+    Logger.getLogger(Main.class.getName()).setLevel(Level.WARNING);
+    Logger.getLogger(ClientApp.class.getName()).setLevel(Level.WARNING);
+    int ecsport = getFreePort(address);
+    Util.createECSServer(address, ecsport, replicationFactor, ReplicationMode.FANOUT).start();
+    Thread.sleep(500);
+    for (int i = 0; i < servers; i++) {
+      int port = getFreePort(address);
+      if (traceFile == null) {
+        Util.createServer(address, port, getSocketAddress(address, ecsport)).start();
+      } else {
+        Util.createServerWithOptions(address, port, getSocketAddress(address, ecsport), "-tf",
+            traceFile.toString()).start();
+      }
+      serverPorts.add(port);
+    }
+    Thread.sleep(1000 + 100 * servers); // joins are added together
+  }
+
+  /**
+   * Gets the ports of the servers clients connect to first
+   */
+  public List<Integer> getServerPorts() {
+    return serverPorts;
+  }
+
+  /**
+   * Stores the records, either read from the corpus or generated
+   */
+  public void load() throws IOException, InterruptedException {
+    Random random = new Random(42);
+    if (corpus != null) {
+      try (BufferedReader reader = new BufferedReader(new FileReader(corpus.toFile()))) {
+        String line;
+        while ((line = reader.readLine()) != null && keys.size() < records) {
+          String[] kv = line.split("\\s+", 2);
+          if (kv.length == 2) {
+            keys.add(kv[0]);
+            values.add(kv[1].contains(" ") ? "\"" + kv[1] + "\"" : kv[1]);
+          }
+        }
+      }
+    }
+    for (int i = keys.size(); i < records; i++) {
+      keys.add(key(i));
+      values.add(value(random));
+    }
+    zipfian = new ZipfianGenerator(Math.max(3, keys.size()));
+    Report report = new Report();
+    runThreads(report, (client, id, rnd) -> {
+      for (int i = id; i < keys.size(); i += threads) {
+        long start = System.nanoTime();
+        check(client.putRequest(keys.get(i), values.get(i)), report);
+        report.latencies.get(Operation.INSERT).recordSince(start);
+      }
+    });
+    inserted.set(keys.size());
+    System.out.println("Loaded " + keys.size() + " records, " + report.latencies.get(Operation.INSERT)
+        .summary(TimeUnit.MILLISECONDS) + " ms");
+  }
+
+  /**
+   * Runs the workload for the configured duration
+   *
+   * @return latencies per operation
+   */
+  public Report run() throws InterruptedException {
+    Report report = new Report();
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+    double interval = targetRate > 0 ? 1e9 * threads / targetRate : 0; // ns between requests of a thread
+    runThreads(report, (client, id, rnd) -> {
+      long due = System.nanoTime();
+      while (due < end) {
+        if (interval > 0) {
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+        } else {
+          due = System.nanoTime();
+        }
+        Operation op = nextOperation(rnd);
+        try {
+          execute(client, op, rnd, report);
+        } catch (IOException e) {
+          report.errors.incrementAndGet();
+        }
+        report.latencies.get(op).recordSince(due);
+        due += (long) interval;
+      }
+    });
+    return report;
+  }
+
+  private interface Worker {
+    void work(ClientLibrary client, int id, Random random) throws IOException, InterruptedException;
+  }
+
+  private void runThreads(Report report, Worker worker) throws InterruptedException {
+    ArrayList<Thread> workers = new ArrayList<Thread>();
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      int id = t;
+      Thread th = new Thread(() -> {
+        ClientLibrary client = new ClientLibrary();
+        try {
+          if (traceFile != null) {
+            client.setTracer(new Tracer("client" + id, TraceWriter.open(traceFile)));
+          }
+          client.connect(address(), serverPorts.get(id % serverPorts.size()));
+          client.setUsername("load" + id + "_" + System.nanoTime());
+          worker.work(client, id, new Random(id));
+          client.close();
+        } catch (IOException e) {
+          report.errors.incrementAndGet();
+          System.err.println("Client " + id + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      th.start();
+      workers.add(th);
+    }
+    for (Thread th : workers) {
+      th.join();
+    }
+    report.nanos = System.nanoTime() - start;
+  }
+
+  private String address() {
+    return bootstrap != null ? ServerUtility.getAddress(bootstrap) : address;
+  }
+
+  private Operation nextOperation(Random random) {
+    double r = random.nextDouble() * (read + update + insert + delete);
+    if ((r -= read) < 0) {
+      return Operation.READ;
+    } else if ((r -= update) < 0) {
+      return Operation.UPDATE;
+    } else if ((r -= insert) < 0) {
+      return Operation.INSERT;
+    }
+    return Operation.DELETE;
+  }
+
+  private void execute(ClientLibrary client, Operation op, Random random, Report report)
+      throws IOException {
+    switch (op) {
+      case READ: {
+        client.getRequest(key(nextKey(random)));
+        break;
+      }
+      case UPDATE: {
+        check(client.putRequest(key(nextKey(random)), value(random)), report);
+        break;
+      }
+      case INSERT: {
+        check(client.putRequest(key(inserted.getAndIncrement()), value(random)), report);
+        break;
+      }
+      case DELETE: {
+        check(client.deleteRequest(key(nextKey(random))), report);
+        break;
+      }
+    }
+  }
+
+  private void check(String status, Report report) {
+    if (!status.equals("SUCCESS") && !status.equals("UPDATE")) {
+      report.errors.incrementAndGet(); // ERROR or blocked for writes
+    }
+  }
+
+  /**
+   * Picks the index of an existing record according to the distribution
+   */
+  private long nextKey(Random random) {
+    long count = inserted.get();
+    switch (distribution) {
+      case ZIPFIAN:
+        return zipfian.next(random) % count;
+      case LATEST:
+        return Math.max(0, count - 1 - zipfian.next(random));
+      default:
+        return (long) (random.nextDouble() * count);
+    }
+  }
+
+  private String key(long index) {
+    return index < keys.size() ? keys.get((int) index) : "user" + index;
+  }
+
+  private String value(Random random) {
+    int size = valueMin + random.nextInt(Math.max(1, valueMax - valueMin + 1));
+    char[] value = new char[size];
+    for (int i = 0; i < size; i++) {
+      value[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(value);
+  }
+
+  /**
+   * Zipfian distributed indices in [0, n), index 0 being the most popular one, as in YCSB (Gray et
+   * al., Quickly Generating Billion-Record Synthetic Databases)
+   */
+  static class ZipfianGenerator {
+    static final double THETA = 0.99;
+    private final long n;
+    private final double alpha;
+    private final double zetan;
+    private final double eta;
+
+    ZipfianGenerator(long n) {
+      this.n = n;
+      double zeta2 = zeta(2);
+      zetan = zeta(n);
+      alpha = 1 / (1 - THETA);
+      eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta2 / zetan);
+    }
+
+    private static double zeta(long n) {
+      double sum = 0;
+      for (long i = 1; i <= n; i++) {
+        sum += 1 / Math.pow(i, THETA);
+      }
+      return sum;
+    }
+
+    long next(Random random) {
+      double u = random.nextDouble();
+      double uz = u * zetan;
+      if (uz < 1) {
+        return 0;
+      } else if (uz < 1 + Math.pow(0.5, THETA)) {
+        return 1;
+      }
+      return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package de.tum.i13.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import picocli.CommandLine;
+
+/**
+ * Performance regression gate. It runs a fixed set of microbenchmarks of the disk store, the cache
+ * and the hash ring and a short load generator run against an in-process cluster, then compares the
+ * results with a baseline file. The gate fails if a throughput dropped or the p99 latency of the
+ * cluster rose by more than the tolerance, or if a result of the baseline is missing. Results
+ * without a baseline pass.
+ * <p>
+ * The baseline depends on the machine, so it has to be recorded where the gate runs, with
+ * <code>--update</code>. The default tolerances are wide, short runs on shared machines vary by
+ * tens of percent; on a dedicated machine they can be tightened. <code>mvn -Pjmh,perf-gate verify [-Dperf.args="--update"]</code>
+ */
+public class PerfGate {
+  private static final String THROUGHPUT = ".ops";
+  private static final String P99 = ".p99_ms";
+
+  @CommandLine.Option(names = "--baseline", description = "Baseline file", defaultValue = "src/jmh/perf-baseline.properties")
+  public Path baseline;
+
+  @CommandLine.Option(names = "--tolerance", description = "Share by which a throughput may drop", defaultValue = "0.3")
+  public double tolerance;
+
+  @CommandLine.Option(names = "--p99-tolerance", description = "Share by which the p99 latency may rise", defaultValue = "1.0")
+  public double p99Tolerance;
+
+  @CommandLine.Option(names = "--update", description = "Writes the results as new baseline instead of comparing them")
+  public boolean update;
+
+  @CommandLine.Option(names = "-h", description = "Displays help", usageHelp = true)
+  public boolean usagehelp;
+
+  public static void main(String[] args) throws IOException, InterruptedException, RunnerException {
+    PerfGate gate = new PerfGate();
+    CommandLine cl = new CommandLine(gate);
+    cl.parseArgs(args);
+    if (gate.usagehelp) {
+      cl.usage(System.out);
+      return;
+    }
+    Map<String, Double> results = new TreeMap<String, Double>();
+    gate.runMicrobenchmarks(results);
+    gate.runCluster(results);
+    if (gate.update) {
+      gate.writeBaseline(results);
+      System.out.println("Baseline written to " + gate.baseline);
+      System.exit(0);
+    }
+    System.exit(gate.compare(results) ? 0 : 1); // also stops the in-process servers
+  }
+
+  /**
+   * Runs the microbenchmarks, with fewer iterations than their defaults
+   *
+   * @param results throughputs by benchmark and parameters
+   */
+  public void runMicrobenchmarks(Map<String, Double> results) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(DiskStoreBenchmark.class.getName() + "\\.(get|put)$")
+        .include(CacheBenchmark.class.getName() + "\\.readMostly$")
+        .include(HashRingBenchmark.class.getName() + "\\.getCoordinator$")
+        .param("valueSize", "1024")
+        .param("strategy", "LRU", "LFU")
+        .param("capacity", "10000")
+        .param("hashFunction", "MURMUR3")
+        .param("virtualNodes", "64")
+        .warmupIterations(2).warmupTime(TimeValue.seconds(1))
+        .measurementIterations(3).measurementTime(TimeValue.seconds(1))
+        .forks(1)
+        .build();
+    for (RunResult result : new Runner(options).run()) {
+      results.put(name(result.getParams()) + THROUGHPUT, result.getPrimaryResult().getScore());
+    }
+  }
+
+  /**
+   * Runs the load generator for a few seconds against three in-process servers
+   *
+   * @param results throughput and p99 latency of the cluster
+   */
+  public void runCluster(Map<String, Double> results) throws IOException, InterruptedException {
+    LoadGenerator generator = new LoadGenerator();
+    new CommandLine(generator).parseArgs("-s", "3", "-t", "4", "-d", "10", "-n", "1000");
+    generator.startCluster();
+    generator.load();
+    LoadGenerator.Report report = generator.run();
+    System.out.println(report);
+    results.put("LoadGenerator" + THROUGHPUT, report.throughput());
+    results.put("LoadGenerator" + P99, report.total().getValueAtPercentile(99) / (double) TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  /**
+   * Compares the results with the baseline and prints the comparison
+   *
+   * @return false if a result regressed beyond the tolerance or is missing
+   */
+  public boolean compare(Map<String, Double> results) throws IOException {
+    Properties expected = new Properties();
+    if (Files.exists(baseline)) {
+      try (Reader reader = Files.newBufferedReader(baseline, StandardCharsets.UTF_8)) {
+        expected.load(reader);
+      }
+    }
+    boolean passed = true;
+    System.out.println(String.format("%-50s %14s %14s %8s", "result", "baseline", "now", "change"));
+    for (Map.Entry<String, Double> e : results.entrySet()) {
+      String base = expected.getProperty(e.getKey());
+      if (base == null) {
+        System.out.println(String.format("%-50s %14s %14.2f %8s", e.getKey(), "-", e.getValue(), "new"));
+        continue;
+      }
+      double before = Double.parseDouble(base);
+      double change = (e.getValue() - before) / before;
+      boolean regressed = e.getKey().endsWith(P99) ? change > p99Tolerance : change < -tolerance;
+      System.out.println(String.format("%-50s %14.2f %14.2f %+7.1f%%%s", e.getKey(), before,
+          e.getValue(), change * 100, regressed ? " REGRESSION" : ""));
+      passed &= !regressed;
+    }
+    for (String key : new TreeSet<String>(expected.stringPropertyNames())) {
+      if (!results.containsKey(key)) {
+        System.out.println(String.format("%-50s %14s %14s %8s", key, expected.getProperty(key), "-", "MISSING"));
+        passed = false;
+      }
+    }
+    System.out.println(passed ? "Performance gate passed"
+        : String.format("Performance gate failed: throughput tolerance %.0f%%, p99 tolerance %.0f%%",
+            tolerance * 100, p99Tolerance * 100));
+    return passed;
+  }
+
+  private void writeBaseline(Map<String, Double> results) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(baseline, StandardCharsets.UTF_8)) {
+      out.write("# Results of the performance gate (PerfGate), ops/s and ms. Recorded with --update,\n");
+      out.write("# on the machine the gate runs on.\n");
+      for (Map.Entry<String, Double> e : results.entrySet()) {
+        out.write(e.getKey() + "=" + String.format(Locale.ROOT, "%.2f", e.getValue()) + "\n");
+      }
+    }
+  }
+
+  /**
+   * Gets the name of a benchmark result, e.g. <code>CacheBenchmark.readMostly.10000.LRU</code>
+   */
+  private static String name(BenchmarkParams params) {
+    String benchmark = params.getBenchmark();
+    StringBuilder sb = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+    for (String key : params.getParamsKeys()) {
+      sb.append('.').append(params.getParam(key));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,374 @@
+package de.tum.i13.benchmark;
+
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import de.tum.i13.Util;
+import de.tum.i13.client.ClientApp;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.MainECS;
+import de.tum.i13.server.threadperconnection.Main;
+import de.tum.i13.shared.LatencyHistogram;
+import picocli.CommandLine;
+
+/**
+ * Measures how long a server takes to join and to leave the ring depending on the amount of data.
+ * For every size an ECS and some servers are started in-process and loaded with that many keys.
+ * Then one server joins and one of the original servers leaves, each while client threads keep
+ * updating keys. For both rebalances the time until the ECS reports them finished, the keys and
+ * bytes moved, the time writes were answered with <code>server_write_lock</code> and the share of
+ * failed writes are reported. Progress of the ECS and the transfers are read from the metrics
+ * endpoints of the ECS and the servers.
+ * <p>
+ * <code>mvn -Pjmh test-compile exec:exec -Djmh.main=de.tum.i13.benchmark.RebalanceBenchmark
+ * -Djmh.args="-n 10000,100000,1000000"</code>
+ */
+public class RebalanceBenchmark {
+  private static final String address = "127.0.0.1";
+  private static final String BLOCKED = "Storage server is currently blocked for write requests due to reallocation";
+
+  @CommandLine.Option(names = "-n", description = "Keys loaded before the rebalances, one run per size", split = ",", defaultValue = "10000,100000,1000000")
+  public long[] sizes;
+
+  @CommandLine.Option(names = "-s", description = "Servers before the join", defaultValue = "3")
+  public int servers;
+
+  @CommandLine.Option(names = "-r", description = "Replication factor", defaultValue = "1")
+  public int replicationFactor;
+
+  @CommandLine.Option(names = "-t", description = "Client threads writing during the rebalances", defaultValue = "4")
+  public int writers;
+
+  @CommandLine.Option(names = "-l", description = "Client threads loading the keys", defaultValue = "16")
+  public int loaders;
+
+  @CommandLine.Option(names = "--value-size", description = "Characters per value", defaultValue = "100")
+  public int valueSize;
+
+  @CommandLine.Option(names = "-h", description = "Displays help", usageHelp = true)
+  public boolean usagehelp;
+
+  /**
+   * Outcome of one join or leave
+   */
+  public static class Result {
+    public final long keys;
+    public final String phase;
+    public long nanos; // until the ECS reported the rebalance finished
+    public long keysMoved;
+    public long bytesMoved;
+    public long writes;
+    public long blocked; // writes answered with server_write_lock
+    public long blockedWindow; // ns between the first and the last blocked write
+    public long errors;
+    public final LatencyHistogram latency = new LatencyHistogram();
+
+    Result(long keys, String phase) {
+      this.keys = keys;
+      this.phase = phase;
+    }
+
+    public double keysPerSecond() {
+      return keysMoved * 1e9 / nanos;
+    }
+
+    public double errorRate() {
+      return writes == 0 ? 0 : (double) errors / writes;
+    }
+
+    static String header() {
+      return String.format("%9s %-5s %9s %9s %10s %8s %11s %8s %8s %8s %9s", "keys", "phase",
+          "time_ms", "moved", "keys/s", "MB/s", "blocked_ms", "blocked", "writes", "errors",
+          "p99_ms");
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%9d %-5s %9d %9d %10.0f %8.2f %11d %8d %8d %8.4f %9.2f", keys, phase,
+          TimeUnit.NANOSECONDS.toMillis(nanos), keysMoved, keysPerSecond(),
+          bytesMoved * 1e3 / nanos, TimeUnit.NANOSECONDS.toMillis(blockedWindow), blocked, writes,
+          errorRate(), latency.getValueAtPercentile(99) / 1e6);
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    RebalanceBenchmark benchmark = new RebalanceBenchmark();
+    CommandLine cl = new CommandLine(benchmark);
+    cl.parseArgs(args);
+    if (benchmark.usagehelp) {
+      cl.usage(System.out);
+      return;
+    }
+    Logger.getLogger(MainECS.class.getName()).setLevel(Level.WARNING);
+    Logger.getLogger(Main.class.getName()).setLevel(Level.WARNING);
+    Logger.getLogger(ClientApp.class.getName()).setLevel(Level.WARNING);
+    List<Result> results = new ArrayList<Result>();
+    for (long keys : benchmark.sizes) {
+      results.addAll(benchmark.run(keys));
+    }
+    System.out.println(Result.header());
+    results.forEach(System.out::println);
+    System.exit(0); // the in-process servers do not stop on their own
+  }
+
+  /**
+   * Starts a cluster, loads it with <code>keys</code> keys and measures a join and a leave
+   *
+   * @return results of the join and the leave
+   */
+  public List<Result> run(long keys) throws IOException, InterruptedException {
+    int ecsport = getFreePort(address);
+    int ecsMetrics = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    Util.createECSServerWithOptions(address, ecsport, "-r", String.valueOf(replicationFactor),
+        "-mp", String.valueOf(ecsMetrics)).start();
+    Thread.sleep(500);
+
+    List<Integer> ports = new ArrayList<Integer>();
+    List<Integer> metricPorts = new ArrayList<Integer>();
+    List<Main> started = new ArrayList<Main>();
+    for (int i = 0; i <= servers; i++) { // the last one joins later
+      ports.add(getFreePort(address));
+      metricPorts.add(getFreePort(address));
+    }
+    for (int i = 0; i < servers; i++) {
+      started.add(start(bootstrap, ports.get(i), metricPorts.get(i)));
+    }
+    awaitRebalances(ecsMetrics, 0);
+    load(ports.get(0), keys);
+
+    List<Result> results = new ArrayList<Result>();
+    Result join = new Result(keys, "join");
+    Writers w = new Writers(ports.get(0), keys, join);
+    double finished = rebalances(ecsMetrics);
+    long start = System.nanoTime();
+    started.add(start(bootstrap, ports.get(servers), metricPorts.get(servers)));
+    awaitRebalances(ecsMetrics, finished);
+    join.nanos = System.nanoTime() - start;
+    w.stop();
+    join.keysMoved = (long) metric(metricPorts.get(servers), "kv_transfer_keys_received_total");
+    join.bytesMoved = (long) metric(metricPorts.get(servers), "kv_transfer_bytes_received_total");
+    results.add(join);
+    System.out.println(join);
+
+    Result leave = new Result(keys, "leave");
+    int leaving = servers - 1; // clients connect to the first server
+    long sentBefore = (long) metric(metricPorts.get(leaving), "kv_transfer_keys_sent_total");
+    long bytesBefore = (long) metric(metricPorts.get(leaving), "kv_transfer_bytes_sent_total");
+    w = new Writers(ports.get(0), keys, leave);
+    finished = rebalances(ecsMetrics);
+    start = System.nanoTime();
+    started.get(leaving).leave();
+    awaitRebalances(ecsMetrics, finished);
+    leave.nanos = System.nanoTime() - start;
+    w.stop();
+    leave.keysMoved = (long) metric(metricPorts.get(leaving), "kv_transfer_keys_sent_total") - sentBefore;
+    leave.bytesMoved = (long) metric(metricPorts.get(leaving), "kv_transfer_bytes_sent_total") - bytesBefore;
+    results.add(leave);
+    System.out.println(leave);
+
+    for (int port : ports) { // the servers stay idle, but their files are not needed anymore
+      delete(Paths.get("data", String.valueOf(port)));
+    }
+    return results;
+  }
+
+  private Main start(String bootstrap, int port, int metricsPort) throws IOException {
+    return Main.startInProcess(new String[] {"-b", bootstrap, "-a", address, "-p",
+        String.valueOf(port), "-d", "data/" + port + "/", "-mp", String.valueOf(metricsPort)});
+  }
+
+  private void load(int port, long keys) throws InterruptedException {
+    long start = System.nanoTime();
+    AtomicLong loaded = new AtomicLong();
+    AtomicLong errors = new AtomicLong();
+    String value = value(new Random(42));
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < loaders; t++) {
+      int id = t;
+      Thread th = new Thread(() -> {
+        ClientLibrary client = new ClientLibrary();
+        try {
+          client.connect(address, port);
+          client.setUsername("loader" + id + "_" + System.nanoTime());
+          for (long i = id; i < keys; i += loaders) {
+            String status = client.putRequest("key" + i, value);
+            if (!status.equals("SUCCESS") && !status.equals("UPDATE")) {
+              errors.incrementAndGet();
+            }
+            long n = loaded.incrementAndGet();
+            if (n % 100000 == 0) {
+              System.out.println("Loaded " + n + " keys");
+            }
+          }
+          client.close();
+        } catch (IOException e) {
+          errors.incrementAndGet();
+          System.err.println("Loader " + id + " failed: " + e.getMessage());
+        }
+      });
+      th.start();
+      threads.add(th);
+    }
+    for (Thread th : threads) {
+      th.join();
+    }
+    System.out.println("Loaded " + keys + " keys in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + errors.get() + " errors");
+  }
+
+  /**
+   * Client threads that update random keys until they are stopped
+   */
+  private class Writers {
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final AtomicLong firstBlocked = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong lastBlocked = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final ArrayList<Thread> threads = new ArrayList<Thread>();
+    private final Result result;
+
+    Writers(int port, long keys, Result result) {
+      this.result = result;
+      for (int t = 0; t < writers; t++) {
+        int id = t;
+        Thread th = new Thread(() -> write(port, keys, id));
+        th.start();
+        threads.add(th);
+      }
+    }
+
+    private void write(int port, long keys, int id) {
+      Random random = new Random(id);
+      ClientLibrary client = new ClientLibrary();
+      try {
+        client.connect(address, port);
+        client.setUsername("writer" + id + "_" + System.nanoTime());
+      } catch (IOException e) {
+        errors.incrementAndGet();
+        return;
+      }
+      while (!stopped.get()) {
+        long start = System.nanoTime();
+        writes.incrementAndGet();
+        try {
+          String status = client.putRequest("key" + (long) (random.nextDouble() * keys), value(random));
+          if (status.equals(BLOCKED)) {
+            blocked.incrementAndGet();
+            firstBlocked.accumulateAndGet(start, Math::min);
+            lastBlocked.accumulateAndGet(System.nanoTime(), Math::max);
+          } else if (!status.equals("SUCCESS") && !status.equals("UPDATE")) {
+            errors.incrementAndGet();
+          } else {
+            result.latency.recordSince(start);
+          }
+        } catch (IOException | RuntimeException e) { // the server may have left
+          errors.incrementAndGet();
+          try {
+            client.close();
+            client = new ClientLibrary();
+            client.connect(address, port);
+            client.setUsername("writer" + id + "_" + System.nanoTime());
+          } catch (IOException e1) {
+            return;
+          }
+        }
+      }
+      try {
+        client.close();
+      } catch (IOException e) { // nothing to handle, the run is over
+      }
+    }
+
+    void stop() throws InterruptedException {
+      stopped.set(true);
+      for (Thread th : threads) {
+        th.join();
+      }
+      result.writes = writes.get();
+      result.blocked = blocked.get();
+      result.errors = errors.get();
+      result.blockedWindow = blocked.get() == 0 ? 0 : lastBlocked.get() - firstBlocked.get();
+    }
+  }
+
+  /**
+   * Gets the rebalances the ECS has finished or given up so far
+   */
+  private static double rebalances(int ecsMetrics) throws IOException {
+    return metric(ecsMetrics, "ecs_rebalances_finished_total")
+        + metric(ecsMetrics, "ecs_rebalances_aborted_total");
+  }
+
+  /**
+   * Waits until the ECS has finished a rebalance since <code>finished</code> rebalances and none is
+   * running or waiting anymore
+   */
+  private static void awaitRebalances(int ecsMetrics, double finished)
+      throws IOException, InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(30);
+    while (System.nanoTime() < deadline) {
+      if (rebalances(ecsMetrics) > finished && metric(ecsMetrics, "ecs_rebalances_running") == 0
+          && metric(ecsMetrics, "ecs_rebalances_waiting") == 0) {
+        return;
+      }
+      Thread.sleep(5);
+    }
+    throw new IOException("Rebalance has not finished in time");
+  }
+
+  /**
+   * Reads a metric without labels from a metrics endpoint
+   *
+   * @return value, 0 if the metric is missing
+   */
+  private static double metric(int port, String name) throws IOException {
+    URL url = new URL("http://" + address + ":" + port + "/metrics");
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(name + " ")) {
+          return Double.parseDouble(line.substring(name.length() + 1));
+        }
+      }
+    }
+    return 0;
+  }
+
+  private String value(Random random) {
+    char[] value = new char[valueSize];
+    for (int i = 0; i < valueSize; i++) {
+      value[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(value);
+  }
+
+  private static void delete(Path dir) throws IOException {
+    if (!Files.exists(dir)) {
+      return;
+    }
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+}
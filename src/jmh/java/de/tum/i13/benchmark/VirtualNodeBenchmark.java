@@ -0,0 +1,130 @@
+package de.tum.i13.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.kv.caching.Cache;
+import de.tum.i13.server.kv.caching.CachingStrategy;
+import de.tum.i13.server.threadperconnection.ServerRing;
+
+/**
+ * Time a server joining a ring of eight servers needs to receive its data, for an increasing amount
+ * of virtual nodes. With more virtual nodes the data comes from several servers at once. The
+ * standard deviation of the share of keys each server owns is printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class VirtualNodeBenchmark {
+  private static final int SERVERS = 8;
+  private static final String ADDRESS = "127.0.0.1";
+
+  @Param({"1", "4", "16", "64", "256"})
+  public int virtualNodes;
+
+  @Param({"1000"})
+  public int keyCount;
+
+  private HashRing hr;
+  private final HashMap<String, KVStore> stores = new HashMap<String, KVStore>();
+  private final List<DiskStore> disks = new ArrayList<DiskStore>();
+  private final String joining = ADDRESS + ":" + (5400 + SERVERS);
+  private List<String> senders;
+
+  @Setup(Level.Trial)
+  public void ownership() {
+    HashRing ring = createRing();
+    HashMap<String, Integer> owned = new HashMap<String, Integer>();
+    for (int k = 0; k < 100000; k++) {
+      owned.merge(ring.getCoordinator("key" + k), 1, Integer::sum);
+    }
+    double mean = 100000.0 / SERVERS;
+    double variance = 0;
+    for (int count : owned.values()) {
+      variance += (count - mean) * (count - mean) / SERVERS;
+    }
+    System.out.printf("%nvirtual nodes %d: ownership stddev %.3f%n", virtualNodes, Math.sqrt(variance) / mean);
+  }
+
+  @Setup(Level.Invocation)
+  public void setup() throws IOException {
+    hr = createRing();
+    for (int i = 0; i <= SERVERS; i++) {
+      DiskStore disk = new DiskStore(Files.createTempDirectory("vnodes-bench").toString());
+      disks.add(disk);
+      stores.put(ADDRESS + ":" + (5400 + i), new KVStore(disk, new Cache(CachingStrategy.LRU, 5)));
+    }
+    for (int k = 0; k < keyCount; k++) {
+      KVStore kvs = stores.get(hr.getCoordinator("key" + k));
+      kvs.setLookID(0);
+      kvs.put("key" + k, "value" + k, 1);
+    }
+    hr.addServer(joining);
+    senders = hr.getSuccessors(joining);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDown() {
+    disks.forEach(DiskStore::deleteAll);
+    disks.clear();
+    stores.clear();
+  }
+
+  private HashRing createRing() {
+    HashRing ring = new HashRing();
+    ring.setVirtualNodes(virtualNodes);
+    ring.setReplicationFactor(1);
+    for (int i = 0; i < SERVERS; i++) {
+      ring.addServer(ADDRESS + ":" + (5400 + i));
+    }
+    return ring;
+  }
+
+  @Benchmark
+  public int join() throws IOException, InterruptedException {
+    try (ServerSocket ss = new ServerSocket()) {
+      ss.bind(new InetSocketAddress(ADDRESS, 0));
+      ArrayList<Thread> threads = new ArrayList<Thread>();
+      for (String sender : senders) {
+        Thread th = new Thread(() -> {
+          try {
+            stores.get(sender).sendData(ADDRESS, ss.getLocalPort(), new ServerRing(hr, joining));
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        });
+        th.start();
+        threads.add(th);
+      }
+      stores.get(joining).receiveData(ss, senders.size());
+      for (Thread th : threads) {
+        th.join();
+      }
+    }
+    return senders.size();
+  }
+}
@@ -49,7 +49,7 @@ public class ClientApp {
       String opt = tokens[0];
       int argNum = tokens.length - 1;
 
-      logger.finest("Input: " + String.join(" ", tokens));
+      logger.finest(() -> "Input: " + String.join(" ", tokens));
 
       if (opt.equals("connect") && argNum == 2) {
         connect(tokens[1], tokens[2]);
@@ -59,6 +59,10 @@ public class ClientApp {
         putRequest(tokens);
       } else if (opt.equals("get") && argNum == 1) {
         getRequest(tokens[1]);
+      } else if (opt.equals("stats") && argNum == 0) {
+        stats();
+      } else if (opt.equals("slowlog") && argNum == 0) {
+        slowlog();
       } else if (opt.equals("chat") && argNum == 1) {
         chat(tokens[1]);
       } else if (opt.equals("logLevel") && argNum == 1) {
@@ -223,6 +227,47 @@ public class ClientApp {
     }
   }
 
+  /**
+   * Prints the state and the latency histograms of the connected server, one per line. Will write
+   * on console.
+   */
+  private void stats() {
+    if (!cl.connected()) {
+      printLine("Error! Not connected!");
+      return;
+    }
+    try {
+      for (String line : cl.statsRequest().split(" ")) {
+        printLine(line);
+      }
+    } catch (IOException e) {
+      printLine("Error during stats request");
+    }
+  }
+
+  /**
+   * Prints the slowest recent requests of the connected server with the time they spent in each
+   * stage, one per line. Will write on console.
+   */
+  private void slowlog() {
+    if (!cl.connected()) {
+      printLine("Error! Not connected!");
+      return;
+    }
+    try {
+      String reply = cl.slowlogRequest();
+      if (reply.isEmpty()) {
+        printLine("No slow requests");
+        return;
+      }
+      for (String request : reply.split(" ")) {
+        printLine(request);
+      }
+    } catch (IOException e) {
+      printLine("Error during slowlog request");
+    }
+  }
+
   /**
    * Starts a chat session at the chatroom with the provided chatID. The user is able to send messages to and receive messages from all users in this chatroom.
    * Will write on log and console.
@@ -423,6 +468,8 @@ public class ClientApp {
     System.out.println("put <key>                --> Deletes the value assigned to the given key");
     System.out.println("get <key>                --> Returns the value assigned to the given key");
     System.out.println("chat <chatID>            --> Enters the chatroom with the provided chatID");
+    System.out.println("stats                    --> Shows the state of the connected server and its latencies in microseconds");
+    System.out.println("slowlog                  --> Shows the slowest recent requests of the connected server and their stages");
     System.out.println("quit                     --> Exits from the application");
     System.out.println("disconnect               --> Disconnects from the connected server");
     System.out.println("logLevel <level>         --> Sets the logger to the specified log level");
@@ -2,10 +2,15 @@ package de.tum.i13.client;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Random;
 import java.util.logging.Logger;
+import de.tum.i13.server.ecs.HashFunction;
 import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.ecs.ReplicationMode;
 import de.tum.i13.shared.ServerUtility;
+import de.tum.i13.shared.Span;
+import de.tum.i13.shared.Tracer;
 
 /**
  * The ClientProgram implements an application logic, a simple command line-based user interface
@@ -16,9 +21,15 @@ public class ClientLibrary {
   public static Logger logger = Logger.getLogger(ClientApp.class.getName());
   private ActiveConnection ac = new ActiveConnection();
   private HashRing hr = new HashRing();
+  private boolean readRangeKnown; // whether a complete read keyrange has been received
   private String serverAddress;
   private ExpBackoff expbackoff = new ExpBackoff();
   private String username;
+  private long lastVersion; // version of the most recent successful write
+  // session tokens: version of the most recent write per coordinator, used to read your own writes
+  private final HashMap<String, Long> sessionTokens = new HashMap<String, Long>();
+  private final HashMap<String, ActiveConnection> quorumConnections = new HashMap<String, ActiveConnection>();
+  private Tracer tracer; // null if requests are not traced
 
   // CLIENT KV-INTERFACE
   /**
@@ -52,6 +63,40 @@ public class ClientLibrary {
     return null;
   }
 
+  /**
+   * Sets the replication mode used by the servers. With chain replication all reads are sent to the
+   * tail of the chain.
+   * 
+   * @param mode
+   */
+  public void setReplicationMode(ReplicationMode mode) {
+    hr.setReplicationMode(mode);
+  }
+
+  /**
+   * Sets the hash function the ECS uses to place keys on the ring. Not needed with servers that send
+   * it with the key range, the client then applies it automatically.
+   * 
+   * @param hashFunction
+   */
+  public void setHashFunction(HashFunction hashFunction) {
+    hr.setHashFunction(hashFunction);
+  }
+
+  /**
+   * Traces the requests of this client: every put, get, delete and chat message starts a trace
+   * that the servers continue, see {@link Tracer}
+   * 
+   * @param tracer tracer of this client, null to stop tracing
+   */
+  public void setTracer(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  private Span startSpan(String name) {
+    return tracer == null ? null : tracer.startTrace(name);
+  }
+
   public String setUsername(String username) throws IOException {
     this.username = username;
     return sendUsername();
@@ -87,24 +132,46 @@ public class ClientLibrary {
    */
   public void close() throws IOException {
     ac.close();
+    for (ActiveConnection c : quorumConnections.values()) {
+      c.close();
+    }
+    quorumConnections.clear();
   }
 
   /**
    * Sends a get request to the server to retrieve the value stored in the KVStore, if it exists.
-   * Will write on console and log.
+   * If the client has written to the coordinator of the key before, its session token is attached,
+   * so that a replica only answers once it has applied that write. Will write on console and log.
    * 
    * @param key key of the value sought-after
    * @return a message to the client with consideration of the servers reply
    */
   public String getRequest(String key) throws IOException {
-    logger.finer("Getting value associated with key \"" + key + "\"..");
+    Span span = startSpan("get");
+    try {
+      return get(key);
+    } finally {
+      if (span != null) {
+        span.close();
+      }
+    }
+  }
+
+  private String get(String key) throws IOException {
+    logger.finer(() -> "Getting value associated with key \"" + key + "\"..");
     connectToReadResponsibleServer(key);
-    ac.send("get " + key);
+    String coordinator = hr.getCoordinator(key);
+    Long token = sessionTokens.get(coordinator);
+    if (token != null && !serverAddress.equals(coordinator)) {
+      ac.send(Tracer.header() + "get " + key + " " + token);
+    } else {
+      ac.send(Tracer.header() + "get " + key);
+    }
     String reply = ac.receive();
     logger.finest(reply);
     String result = checkReadResponse(reply, key);
     if (result.equals("retry")) {
-      return getRequest(key);
+      return get(key);
     }
     if (result.startsWith("No value")) {
       return result;
@@ -112,6 +179,73 @@ public class ClientLibrary {
     return result.split("\\s", 3)[2];
   }
   
+  /**
+   * Sends a get request to <code>R</code> of the servers holding the key, where <code>R</code> is
+   * defined by the consistency level. The newest version among the answers is returned and servers
+   * that answered with an older version are repaired. Will write on console and log.
+   * 
+   * @param key key of the value sought-after
+   * @param level consistency level of the read
+   * @return a message to the client with consideration of the servers replies
+   * @throws IOException if less than <code>R</code> servers answered
+   */
+  public String getRequest(String key, ConsistencyLevel level) throws IOException {
+    ArrayList<String> servers = hr.getReadResponsibleServers(key);
+    if (servers.get(0) == null) {
+      updateReadKeyRange();
+      servers = hr.getReadResponsibleServers(key);
+    }
+    int required = level.required(servers.size());
+    if (required <= 1) {
+      return getRequest(key);
+    }
+
+    logger.finer(() -> "Getting value associated with key \"" + key + "\" from " + required + " servers..");
+    long[] versions = new long[servers.size()];
+    long newest = -1;
+    String value = null;
+    int answers = 0;
+    for (int i = 0; i < servers.size() && answers < required; i++) {
+      versions[i] = -1;
+      String reply = quorumRequest(servers.get(i), "get_version " + key);
+      if (reply == null) { // server unreachable
+        continue;
+      }
+      if (reply.equals("server_not_responsible")) {
+        updateReadKeyRange();
+        return getRequest(key, level);
+      }
+      if (reply.equals("server_stopped")) { // shutting down, the other servers may still answer
+        logger.fine("server " + servers.get(i) + " is currently stopped");
+        continue;
+      }
+      if (!reply.startsWith("get_version_")) {
+        logger.info("Unexpected server response: " + reply);
+        continue;
+      }
+      String[] tokens = reply.split("\\s", 4); // header, key, version and value (if found)
+      versions[i] = Long.parseLong(tokens[2]);
+      answers++;
+      if (versions[i] > newest) {
+        newest = versions[i];
+        value = tokens.length == 4 ? tokens[3] : null;
+      }
+    }
+    if (answers < required) {
+      throw new IOException("Only " + answers + " of " + required + " servers answered");
+    }
+
+    // read repair, the coordinator sends its version to the replicas again
+    for (int i = 0; i < servers.size(); i++) {
+      if (versions[i] != -1 && versions[i] < newest) {
+        logger.fine("Repairing outdated key \"" + key + "\" on server " + servers.get(i));
+        quorumRequest(servers.get(0), "repair " + key);
+        break;
+      }
+    }
+    return value == null ? "No value found for given key" : value;
+  }
+
   /**
    * Parses the input for the key and value and sends a put request to the server. A put request
    * either inserts a new key-value pair into the KVStore, updates an existing value or deletes the
@@ -124,22 +258,41 @@ public class ClientLibrary {
    * 
    */
   public String putRequest(String key, String value) throws IOException {
-    logger.finer("Setting the value \"" + value + " to key \"" + key + "\"..");
+    Span span = startSpan("put");
+    try {
+      return put(key, value);
+    } finally {
+      if (span != null) {
+        span.close();
+      }
+    }
+  }
+
+  private String put(String key, String value) throws IOException {
+    return put(key, value, "");
+  }
+
+  /**
+   * @param quorum prefix of the request that makes the coordinator wait for the replicas
+   */
+  private String put(String key, String value, String quorum) throws IOException {
+    logger.finer(() -> "Setting the value \"" + value + " to key \"" + key + "\"..");
     if (value.equals("\"No value found for given key\"")) {
       return "ERROR: This value is reserved."; // used when no value exists for the key
     }
     
     connectToCoordinator(key);
-    ac.send("put " + key + " " + value);
+    ac.send(Tracer.header() + quorum + "put " + key + " " + value);
     String reply = ac.receive();
     logger.finest(reply);
     if (reply.contains("put")) {
       String status = reply.split("\\s|_")[1];
+      setLastVersion(reply);
       return status.toUpperCase();
     } else if (checkWriteBlock(reply, key)) {
       return "Storage server is currently blocked for write requests due to reallocation";
     }
-    return putRequest(key, value);
+    return put(key, value, quorum);
   }
 
   /**
@@ -152,22 +305,161 @@ public class ClientLibrary {
    * 
    */
   public String deleteRequest(String key) throws IOException {
-    logger.finer("Removing key \"" + key + "\" from storage..");
+    Span span = startSpan("delete");
+    try {
+      return delete(key);
+    } finally {
+      if (span != null) {
+        span.close();
+      }
+    }
+  }
+
+  private String delete(String key) throws IOException {
+    return delete(key, "");
+  }
+
+  /**
+   * @param quorum prefix of the request that makes the coordinator wait for the replicas
+   */
+  private String delete(String key, String quorum) throws IOException {
+    logger.finer(() -> "Removing key \"" + key + "\" from storage..");
     connectToCoordinator(key);
-    ac.send("delete " + key);
+    ac.send(Tracer.header() + quorum + "delete " + key);
     String reply = ac.receive();
     logger.finest(reply);
     if (reply.contains("delete")) {
       String status = reply.split("\\s|_")[1];
+      setLastVersion(reply);
       return status.toUpperCase();
     } else if (checkWriteBlock(reply, key)) {
       return "Storage server is currently blocked for write requests due to reallocation";
     }
-    return deleteRequest(key);
+    return delete(key, quorum);
+  }
+
+  /**
+   * Sends a put request to the coordinator, which answers once <code>W</code> of the servers holding
+   * the key, where <code>W</code> is defined by the consistency level, have stored the new version.
+   * Will write on console and log.
+   * 
+   * @param key
+   * @param value
+   * @param level consistency level of the write
+   * @return a message to the client with consideration of the servers reply
+   * @throws IOException
+   */
+  public String putRequest(String key, String value, ConsistencyLevel level) throws IOException {
+    int replicas = replicasToAwait(key, level);
+    if (replicas <= 0) {
+      return putRequest(key, value);
+    }
+    String status;
+    Span span = startSpan("put");
+    try {
+      status = put(key, value, "quorum " + replicas + " ");
+    } finally {
+      if (span != null) {
+        span.close();
+      }
+    }
+    return status.equals("ERROR") ? "ERROR: write was not acknowledged by enough replicas" : status;
+  }
+
+  /**
+   * Sends a delete request to the coordinator, which answers once <code>W</code> of the servers
+   * holding the key, where <code>W</code> is defined by the consistency level, have deleted it. Will
+   * write on console and log.
+   * 
+   * @param key
+   * @param level consistency level of the write
+   * @return a message to the client with consideration of the servers reply
+   * @throws IOException
+   */
+  public String deleteRequest(String key, ConsistencyLevel level) throws IOException {
+    int replicas = replicasToAwait(key, level);
+    if (replicas <= 0) {
+      return deleteRequest(key);
+    }
+    String status;
+    Span span = startSpan("delete");
+    try {
+      status = delete(key, "quorum " + replicas + " ");
+    } finally {
+      if (span != null) {
+        span.close();
+      }
+    }
+    return status.equals("ERROR") ? "ERROR: deletion was not acknowledged by enough replicas" : status;
   }
 
   
   // HELPER METHODS
+  /**
+   * Returns how many replicas besides the coordinator have to acknowledge a write of the key
+   * 
+   * @param key
+   * @param level consistency level of the write
+   * @return <code>W - 1</code>
+   */
+  private int replicasToAwait(String key, ConsistencyLevel level) throws IOException {
+    ArrayList<String> servers = hr.getReadResponsibleServers(key);
+    if (servers.get(0) == null) {
+      updateReadKeyRange();
+      servers = hr.getReadResponsibleServers(key);
+    }
+    return level.required(servers.size()) - 1;
+  }
+
+  /**
+   * Sends a request to the given server using a dedicated connection that is kept open for further
+   * quorum requests.
+   * 
+   * @param server
+   * @param request
+   * @return reply of the server or null if the server is unreachable
+   */
+  private String quorumRequest(String server, String request) {
+    try {
+      ActiveConnection c = quorumConnections.get(server);
+      if (c == null) {
+        c = new ActiveConnection();
+        quorumConnections.put(server, c);
+        c.connect(ServerUtility.getAddress(server), ServerUtility.getPort(server));
+        c.receive(); // welcome message
+        c.send(username == null ? "QUIT" : username);
+        c.receiveNoNull();
+      }
+      c.send(Tracer.header() + request);
+      String reply = c.receive();
+      if (reply == null) {
+        throw new IOException("connection closed");
+      }
+      return reply;
+    } catch (IOException e) {
+      logger.fine("Server " + server + " unreachable: " + e.getMessage());
+      try {
+        quorumConnections.remove(server).close();
+      } catch (IOException e1) { // nothing to handle, connection is dropped anyway
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Stores the version a successful write reply carries, it is also the session token for the
+   * coordinator.
+   * 
+   * @param reply
+   */
+  private void setLastVersion(String reply) {
+    String[] tokens = reply.split("\\s");
+    if (tokens.length == 3 && !tokens[0].endsWith("error")) {
+      lastVersion = Long.parseLong(tokens[2]);
+      sessionTokens.merge(serverAddress, lastVersion, Math::max);
+    }
+  }
+
   /**
    * checks for server replies in case of not_responsible, server_stopped or server_write_lock
    * when get request is called
@@ -195,6 +487,10 @@ public class ClientLibrary {
         serverStopped();
         return "retry";
       }
+      case "stale": { // replica has not applied the writes of this session yet
+        connectToCoordinator(key);
+        return "retry";
+      }
       default: {
         logger.info("Unexpected server response");
         disconnect();
@@ -271,7 +567,7 @@ public class ClientLibrary {
   /**
    * in case of the key does not belong to the keyrange of the current server for
    * get requests it disconnects from current server and connects to the coordinator server or
-   * one of the replicas randomly
+   * one of the replicas randomly. With chain replication it always connects to the tail.
    * 
    * @param key
    * @throws IOException
@@ -283,11 +579,18 @@ public class ClientLibrary {
       updateReadKeyRange();
       servers = hr.getReadResponsibleServers(key);
     }
+    if (hr.getReplicationMode() == ReplicationMode.CHAIN) {
+      String tail = servers.get(servers.size() - 1);
+      if (!tail.equals(serverAddress)) {
+        reconnect(tail);
+      }
+      return;
+    }
     if (servers.contains(serverAddress)) {
       return;
     }
 
-    int serverIndex = hr.replicationActive() ? new Random().nextInt(3) : 0;
+    int serverIndex = hr.replicationActive() ? new Random().nextInt(servers.size()) : 0;
     String server = servers.get(serverIndex);
     reconnect(server);
   }
@@ -306,33 +609,59 @@ public class ClientLibrary {
    * @throws IOException
    */
   private void updateKeyRange() throws IOException {
-    String reply;
-    do {
-      logger.finer("Updating key range");
-      ac.send("keyrange");
-      reply = ac.receive();
-    } while (!checkUpdateResponse(reply));
-
-    String keyrange = reply.substring(17); // removes header
-    hr.setKeyRange(keyrange);
+    logger.finer("Updating key range");
+    updateKeyRange("keyrange " + hr.getEpoch());
   }
 
   /**
    * sends a keyrange request to the server and updates the keyrange for get requests and sets it
-   * for the hashring
+   * for the hashring. The complete read keyrange is requested once, as the replication factor is
+   * derived from it.
    * 
    * @throws IOException
    */
   private void updateReadKeyRange() throws IOException {
+    logger.finer("Updating read key range");
+    updateKeyRange("keyrange_read " + (readRangeKnown ? hr.getEpoch() : -1));
+  }
+
+  /**
+   * sends the keyrange request with the epoch of the hashring and applies the reply: nothing if the
+   * ring is unchanged, the changes since that epoch or the complete keyrange
+   * 
+   * @param request
+   * @throws IOException
+   */
+  private void updateKeyRange(String request) throws IOException {
     String reply;
     do {
-      logger.finer("Updating read key range");
-      ac.send("keyrange_read");
+      ac.send(Tracer.header() + request);
       reply = ac.receive();
     } while (!checkUpdateResponse(reply));
 
-    String keyrange = reply.substring(22); // removes header
-    hr.setReadKeyRange(keyrange);
+    String[] tokens = reply.split("\\s"); // header, keyrange or epoch, epoch or delta, hash function
+    if (tokens.length > 3) {
+      hr.setHashFunction(HashFunction.valueOf(tokens[3]));
+    }
+    switch (tokens[0]) {
+      case "keyrange_unchanged": {
+        break;
+      }
+      case "keyrange_delta": {
+        hr.applyDelta(tokens[2], Long.parseLong(tokens[1]));
+        break;
+      }
+      case "keyrange_read_success": {
+        hr.setReadKeyRange(tokens[1]);
+        hr.setEpoch(Long.parseLong(tokens[2]));
+        readRangeKnown = true;
+        break;
+      }
+      default: {
+        hr.setKeyRange(tokens[1]);
+        hr.setEpoch(Long.parseLong(tokens[2]));
+      }
+    }
   }
 
   /**
@@ -392,9 +721,40 @@ public class ClientLibrary {
   }
   
   public void chatSend(String msg) throws IOException {
-    ac.send("chat " + msg); 
+    Span span = startSpan("chat");
+    try {
+      ac.send(Tracer.header() + "chat " + msg);
+    } finally {
+      if (span != null) {
+        span.close();
+      }
+    }
   }
   
+  /**
+   * Requests a snapshot of the state and the latency histograms of the connected server
+   * 
+   * @return state and histograms separated by spaces, see the stats command of the server
+   * @throws IOException
+   */
+  public String statsRequest() throws IOException {
+    ac.send("stats");
+    String reply = ac.receive();
+    return reply.startsWith("stats_success") ? reply.substring(14) : reply;
+  }
+
+  /**
+   * Requests the slowest recent requests of the connected server
+   * 
+   * @return requests separated by spaces, newest first, see the slowlog command of the server
+   * @throws IOException
+   */
+  public String slowlogRequest() throws IOException {
+    ac.send("slowlog");
+    String reply = ac.receive();
+    return reply.startsWith("slowlog_success") ? reply.substring(15).trim() : reply;
+  }
+
   public String chatReceive() throws IOException {
     return ac.receiveNoNull();
   }
@@ -0,0 +1,31 @@
+package de.tum.i13.client;
+
+/**
+ * Defines how many of the servers holding a key (coordinator and replicas) have to answer a request
+ * before the client accepts the result. Reads with a level above ONE return the newest version
+ * among the answers and repair outdated servers, writes above ONE wait for the replicas to
+ * acknowledge the new version.
+ */
+public enum ConsistencyLevel {
+  ONE, QUORUM, ALL;
+
+  /**
+   * Returns the number of servers that have to answer a request
+   *
+   * @param servers number of servers holding the key
+   * @return required amount of answers (R for reads, W for writes)
+   */
+  public int required(int servers) {
+    switch (this) {
+      case ONE: {
+        return 1;
+      }
+      case QUORUM: {
+        return servers / 2 + 1;
+      }
+      default: {
+        return servers;
+      }
+    }
+  }
+}
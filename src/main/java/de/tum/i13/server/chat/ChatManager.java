@@ -28,6 +28,16 @@ public class ChatManager {
     this.kvcp = kvcp;
   }
 
+  /**
+   * Returns how many chatrooms exist on this server
+   * 
+   * @return chatrooms
+   */
+  public static int getChatroomCount() {
+    ArrayList<Chatroom> rooms = chs;
+    return rooms == null ? 0 : rooms.size();
+  }
+
   public void process(String line) {
     String[] tokens = line.split("\\s", 2);
     switch (tokens[0]) {
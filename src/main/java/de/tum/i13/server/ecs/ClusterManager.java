@@ -0,0 +1,593 @@
+package de.tum.i13.server.ecs;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import de.tum.i13.shared.MetricsRegistry;
+import de.tum.i13.shared.ServerUtility;
+
+/**
+ * Single writer of the cluster state. Joins, leaves, failures and moves of hot ranges are submitted
+ * as commands and applied one after another by one thread, which queues the resulting messages for
+ * the affected servers (see {@link ServerCommThread#send(Runnable)}). Nobody waits on the hash ring.
+ * <p>
+ * A rebalance (join, leave or move) lasts until its data has been transferred. Rebalances that
+ * involve disjoint sets of servers run at the same time, a rebalance that overlaps a running or an
+ * earlier waiting one is started once they have finished. Servers that join at about the same time
+ * are added together: the final ring is computed once and all of them receive their data in
+ * parallel.
+ */
+public class ClusterManager {
+  private static final Logger logger = Logger.getLogger(MainECS.class.getName());
+  static final long REBALANCE_TIMEOUT = 60000; // a rebalance without completion is given up
+  static final long JOIN_DELAY = 100; // ms to wait for further servers to join together
+
+  private final HashRing hr;
+  private final ScheduledExecutorService commands = Executors.newSingleThreadScheduledExecutor();
+  private final Map<String, ServerCommThread> servers = new ConcurrentHashMap<String, ServerCommThread>();
+  private final Map<String, InetSocketAddress> repList = new ConcurrentHashMap<String, InetSocketAddress>();
+  private final HeartbeatMonitor heartbeats = new HeartbeatMonitor();
+  private volatile boolean gossip; // servers spread ring updates among themselves
+  // rebalance progress, read by the metrics
+  private volatile int runningCount;
+  private volatile int waitingCount;
+  private final AtomicLong started = new AtomicLong();
+  private final AtomicLong finished = new AtomicLong();
+  private final AtomicLong aborted = new AtomicLong(); // interrupted by a failure or timed out
+
+  // only used by the command thread
+  private final LoadBalancer balancer = new LoadBalancer();
+  private final HashMap<String, Rebalance> running = new HashMap<String, Rebalance>(); // by the servers that finish it
+  private final ArrayDeque<Rebalance> waiting = new ArrayDeque<Rebalance>();
+  private final HashSet<Integer> reservedPorts = new HashSet<Integer>();
+
+  public ClusterManager(HashRing hr) {
+    this.hr = hr;
+  }
+
+  public HashRing getHashRing() {
+    return hr;
+  }
+
+  /**
+   * Lets the servers gossip ring updates. The ECS then only sends them to a few servers and to
+   * those with a task or new replicas.
+   *
+   * @param gossip
+   */
+  public void setGossip(boolean gossip) {
+    this.gossip = gossip;
+  }
+
+  /**
+   * Exposes the state of the cluster, e.g. the rebalance progress
+   *
+   * @param metrics
+   */
+  public void registerMetrics(MetricsRegistry metrics) {
+    metrics.gauge("ecs_servers", "Servers connected to the ECS", servers::size);
+    metrics.gauge("ecs_ring_epoch", "Epoch of the hash ring", hr::getEpoch);
+    metrics.gauge("ecs_rebalances_running", "Rebalances whose data is being transferred", () -> runningCount);
+    metrics.gauge("ecs_rebalances_waiting", "Rebalances waiting for running ones to finish", () -> waitingCount);
+    metrics.counter("ecs_rebalances_started_total", "Rebalances that transfer data", started::get);
+    metrics.counter("ecs_rebalances_finished_total", "Rebalances whose transfers have completed", finished::get);
+    metrics.counter("ecs_rebalances_aborted_total", "Rebalances interrupted by a failure or not finished in time", aborted::get);
+  }
+
+  HeartbeatMonitor getHeartbeats() {
+    return heartbeats;
+  }
+
+  /**
+   * Gets the address on which the server receives updates from its coordinators
+   *
+   * @param server
+   * @return replication address, null if the server is unknown
+   */
+  InetSocketAddress getReplicationAddress(String server) {
+    return repList.get(server);
+  }
+
+  /**
+   * Adds a new server to the ring once no running rebalance involves the servers it receives data
+   * from.
+   *
+   * @param server thread communicating with the new server
+   */
+  void join(ServerCommThread server) {
+    join(Collections.singletonList(server));
+  }
+
+  /**
+   * Adds several servers to the ring at once. All servers that are waiting to join when the
+   * rebalance starts are added together, so this also happens for servers that connect shortly
+   * one after another.
+   *
+   * @param joining threads communicating with the new servers
+   */
+  void join(List<ServerCommThread> joining) {
+    commands.execute(() -> {
+      for (ServerCommThread server : joining) {
+        servers.put(server.getKvAddress(), server);
+      }
+      waiting.addLast(new Join(joining));
+      commands.schedule(this::schedule, JOIN_DELAY, TimeUnit.MILLISECONDS);
+    });
+  }
+
+  /**
+   * Lets a server hand over its data and leave the ring. It is removed from the ring by
+   * {@link #remove(String)} after it has finished.
+   *
+   * @param server
+   */
+  void leave(String server) {
+    commands.execute(() -> plan(new Leave(server)));
+  }
+
+  /**
+   * Removes a server that has left or failed from the ring and informs the remaining servers
+   *
+   * @param server
+   */
+  void remove(String server) {
+    commands.execute(() -> {
+      ServerCommThread thread = servers.remove(server);
+      if (thread != null) {
+        thread.stopSending();
+      }
+      InetSocketAddress repAddress = repList.remove(server);
+      if (repAddress != null) {
+        reservedPorts.remove(repAddress.getPort());
+      }
+      waiting.removeIf(r -> r.drop(server));
+      for (Rebalance r : new HashSet<Rebalance>(running.values())) {
+        if (r.involved.contains(server)) {
+          if (!(r instanceof Leave) || !r.name().equals(server)) {
+            logger.warning("Rebalance of " + r.name() + " interrupted, " + server + " is gone");
+            aborted.incrementAndGet();
+          } else {
+            finished.incrementAndGet();
+          }
+          end(r);
+        }
+      }
+      if (hr.contains(server)) {
+        hr.removeServer(server);
+        balancer.reset();
+        update(new HashMap<String, Runnable>());
+      }
+      schedule();
+    });
+  }
+
+  /**
+   * Called when the server has received all data of its rebalance
+   *
+   * @param server
+   */
+  void finished(String server) {
+    commands.execute(() -> {
+      Rebalance r = running.remove(server);
+      if (r != null) {
+        r.reporters.remove(server);
+        if (r.reporters.isEmpty()) {
+          logger.fine("Rebalance of " + r.name() + " finished");
+          finished.incrementAndGet();
+          end(r);
+          schedule();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stores the load report of a server and moves half of a hot range if needed
+   *
+   * @param server
+   * @param requests requests per range since the last report
+   */
+  void report(String server, Map<String, Long> requests) {
+    commands.execute(() -> {
+      LoadBalancer.Migration move = balancer.report(server, requests);
+      if (move != null) {
+        plan(new Move(move));
+      }
+    });
+  }
+
+  /**
+   * Waits until all submitted commands have been applied, used to shut the ECS down
+   */
+  public void shutdown() throws InterruptedException {
+    commands.shutdown();
+    commands.awaitTermination(REBALANCE_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  private void plan(Rebalance r) {
+    waiting.addLast(r);
+    schedule();
+  }
+
+  /**
+   * Starts every waiting rebalance that neither overlaps a running one nor an earlier waiting one,
+   * so that conflicting rebalances keep their order.
+   */
+  private void schedule() {
+    mergeJoins();
+    HashSet<String> busy = new HashSet<String>();
+    running.values().forEach(r -> busy.addAll(r.involved));
+    Iterator<Rebalance> it = waiting.iterator();
+    while (it.hasNext()) {
+      Rebalance r = it.next();
+      Set<String> involved = r.involved();
+      boolean free = true;
+      for (String server : involved) {
+        free &= !busy.contains(server);
+      }
+      busy.addAll(involved);
+      if (!free) {
+        continue;
+      }
+      it.remove();
+      r.involved = involved;
+      try {
+        if (r.start() && !r.reporters.isEmpty()) {
+          r.reporters.forEach(server -> running.put(server, r));
+          started.incrementAndGet();
+          commands.schedule(() -> expire(r), REBALANCE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } else {
+          reservedPorts.removeAll(r.ports);
+        }
+      } catch (IOException e) {
+        logger.severe("Unable to start rebalance of " + r.name() + ": " + e.getMessage());
+        reservedPorts.removeAll(r.ports);
+      }
+    }
+    progress();
+  }
+
+  /**
+   * Combines all waiting joins into the first one, so that the servers are added at once
+   */
+  private void mergeJoins() {
+    Join first = null;
+    Iterator<Rebalance> it = waiting.iterator();
+    while (it.hasNext()) {
+      Rebalance r = it.next();
+      if (r instanceof Join) {
+        if (first == null) {
+          first = (Join) r;
+        } else {
+          first.joining.addAll(((Join) r).joining);
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private void end(Rebalance r) {
+    running.values().removeIf(other -> other == r);
+    reservedPorts.removeAll(r.ports);
+    progress();
+  }
+
+  private void progress() {
+    runningCount = new HashSet<Rebalance>(running.values()).size();
+    waitingCount = waiting.size();
+  }
+
+  private void expire(Rebalance r) {
+    if (running.containsValue(r)) {
+      logger.warning("Rebalance of " + r.name() + " has not finished in time");
+      aborted.incrementAndGet();
+      end(r);
+      schedule();
+    }
+  }
+
+  /**
+   * Finds a port on the given server's host that is not in use and not handed out to another
+   * rebalance yet.
+   */
+  private int reservePort(String address, Rebalance r) throws IOException {
+    int port;
+    do {
+      port = ServerUtility.getFreePort(address);
+    } while (!reservedPorts.add(port));
+    if (r != null) {
+      r.ports.add(port);
+    }
+    return port;
+  }
+
+  /**
+   * Sends the new metadata to every server of the ring after it has changed. Servers with a
+   * specific task get it right after the metadata. With gossip only about log2(n) random servers
+   * are informed besides those with a task or new replicas, the others learn the ring from them.
+   */
+  private void update(Map<String, Runnable> tasks) {
+    ArrayList<ServerCommThread> members = new ArrayList<ServerCommThread>();
+    for (ServerCommThread server : servers.values()) {
+      if (hr.contains(server.getKvAddress())) { // others have not joined yet
+        members.add(server);
+      }
+    }
+    Collections.shuffle(members);
+    int seeds = gossip ? 2 + 31 - Integer.numberOfLeadingZeros(members.size()) : members.size();
+    for (int i = 0; i < members.size(); i++) {
+      ServerCommThread server = members.get(i);
+      Runnable task = tasks.get(server.getKvAddress());
+      if (i >= seeds && task == null && !server.replicasChanged()) {
+        continue;
+      }
+      server.send(() -> {
+        server.updateServer();
+        if (task != null) {
+          task.run();
+        }
+      });
+    }
+  }
+
+  /**
+   * Adds a task for the server after the ones it already has
+   */
+  private static void addTask(Map<String, Runnable> tasks, String server, Runnable task) {
+    tasks.merge(server, task, (first, second) -> () -> {
+      first.run();
+      second.run();
+    });
+  }
+
+  private HashRing copyRing() {
+    HashRing copy = new HashRing(hr.getKeyRange());
+    copy.setHashFunction(hr.getHashFunction());
+    copy.setVirtualNodes(hr.getVirtualNodes());
+    return copy;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+
+  /**
+   * Change of the ring that requires data to be transferred between servers
+   */
+  private abstract static class Rebalance {
+    final List<Integer> ports = new ArrayList<Integer>();
+    final Set<String> reporters = new HashSet<String>(); // servers that still have to report completion
+    Set<String> involved = new HashSet<String>();
+
+    /**
+     * Gets the servers that send or receive data, based on the current ring
+     */
+    abstract Set<String> involved();
+
+    /**
+     * Changes the ring and sends the servers their tasks
+     *
+     * @return true if data is transferred, false if the rebalance is already done
+     */
+    abstract boolean start() throws IOException;
+
+    /**
+     * Gets the name used in log messages
+     */
+    abstract String name();
+
+    /**
+     * Removes a server that is gone from a waiting rebalance
+     *
+     * @return true if the rebalance is no longer needed
+     */
+    boolean drop(String server) {
+      return name().equals(server);
+    }
+  }
+
+  /**
+   * New servers receive their ranges from the servers that owned them before. All new servers are
+   * added to the ring at once, so every range is moved only once and the transfers to the
+   * different servers run in parallel.
+   */
+  private class Join extends Rebalance {
+    private final List<ServerCommThread> joining;
+
+    Join(List<ServerCommThread> joining) {
+      this.joining = new ArrayList<ServerCommThread>(joining);
+    }
+
+    private Set<String> addresses() {
+      HashSet<String> addresses = new HashSet<String>();
+      joining.forEach(thread -> addresses.add(thread.getKvAddress()));
+      return addresses;
+    }
+
+    @Override
+    String name() {
+      return joining.size() == 1 ? joining.get(0).getKvAddress() : joining.size() + " new servers";
+    }
+
+    @Override
+    boolean drop(String server) {
+      joining.removeIf(thread -> thread.getKvAddress().equals(server));
+      return joining.isEmpty();
+    }
+
+    @Override
+    Set<String> involved() {
+      HashRing next = copyRing();
+      for (ServerCommThread thread : joining) {
+        next.addServer(thread.getKvAddress(), thread.getWeight());
+      }
+      Set<String> involved = addresses();
+      for (ServerCommThread thread : joining) {
+        involved.addAll(next.getSuccessors(thread.getKvAddress(), involved));
+      }
+      return involved;
+    }
+
+    @Override
+    boolean start() throws IOException {
+      Set<String> joiners = addresses();
+      for (ServerCommThread thread : joining) {
+        logger.info("Server " + thread.getKvAddress() + " connected with weight " + thread.getWeight());
+        hr.addServer(thread.getKvAddress(), thread.getWeight());
+      }
+      balancer.reset();
+
+      HashMap<String, Runnable> tasks = new HashMap<String, Runnable>();
+      for (ServerCommThread thread : joining) {
+        String server = thread.getKvAddress();
+        int repPort = reservePort(InetAddress.getLocalHost().getHostAddress(), null);
+        repList.put(server, new InetSocketAddress(InetAddress.getLocalHost().getHostAddress(), repPort));
+        ECSLibrary lib = thread.lib;
+        thread.send(() -> {
+          lib.setReplicationFactor(hr.getReplicationFactor());
+          lib.setReplicationMode(hr.getReplicationMode());
+          lib.setHashFunction(hr.getHashFunction());
+          if (gossip) {
+            lib.enableGossip();
+          }
+          try {
+            lib.openReplicationPort(repPort);
+          } catch (IOException e) {
+            logger.severe("Unable to assign replication port");
+          }
+        });
+
+        List<String> senders = hr.getSuccessors(server, joiners);
+        if (senders.isEmpty()) {
+          continue; // the ring was empty
+        }
+        int port = reservePort(ServerUtility.getAddress(server), this);
+        reporters.add(server);
+        addTask(tasks, server, () -> lib.sendSenderPort(port, senders.size()));
+        for (String sender : senders) {
+          ServerCommThread s = servers.get(sender);
+          addTask(tasks, sender, () -> s.lib.sendReceiverAddress(server, port));
+        }
+      }
+      update(tasks);
+      return !reporters.isEmpty();
+    }
+  }
+
+  /**
+   * A leaving server hands its data to the servers following its tokens. With replication the
+   * replicas take over its keys on their own once it is removed.
+   */
+  private class Leave extends Rebalance {
+    private final String server;
+
+    Leave(String server) {
+      this.server = server;
+      reporters.add(server);
+    }
+
+    @Override
+    String name() {
+      return server;
+    }
+
+    private boolean handOff() {
+      return !hr.replicationActive() || hr.replicationSwitch();
+    }
+
+    @Override
+    Set<String> involved() {
+      HashSet<String> involved = new HashSet<String>(
+          handOff() ? hr.getSuccessors(server) : hr.getReplicas(server));
+      involved.add(server);
+      return involved;
+    }
+
+    @Override
+    boolean start() throws IOException {
+      ServerCommThread thread = servers.get(server);
+      if (thread == null) {
+        return false;
+      }
+      logger.info("Server " + server + " closing..");
+      if (hr.onlyOneServer()) {
+        thread.send(thread.lib::close);
+      } else if (handOff()) {
+        LinkedHashMap<String, Integer> targets = new LinkedHashMap<String, Integer>();
+        for (String successor : hr.getSuccessors(server)) {
+          int port = reservePort(ServerUtility.getAddress(successor), this);
+          targets.put(successor, port);
+          ServerCommThread target = servers.get(successor);
+          target.send(() -> target.lib.sendSenderPort(port, 1));
+        }
+        thread.send(() -> {
+          thread.lib.handOff(targets);
+          thread.lib.close();
+        });
+      } else {
+        thread.send(() -> {
+          thread.lib.endReplication();
+          thread.lib.close();
+        });
+      }
+      return true; // finished by remove
+    }
+  }
+
+  /**
+   * Half of a hot range is handed to another server, using the same transfer as for a new server
+   */
+  private class Move extends Rebalance {
+    private final LoadBalancer.Migration move;
+
+    Move(LoadBalancer.Migration move) {
+      this.move = move;
+      reporters.add(move.to);
+    }
+
+    @Override
+    String name() {
+      return move.to;
+    }
+
+    @Override
+    Set<String> involved() {
+      HashSet<String> involved = new HashSet<String>();
+      involved.add(move.from);
+      involved.add(move.to);
+      return involved;
+    }
+
+    @Override
+    boolean start() throws IOException {
+      ServerCommThread from = servers.get(move.from);
+      ServerCommThread to = servers.get(move.to);
+      if (from == null || to == null || !hr.splitRange(move.from, move.token, move.to)) {
+        return false;
+      }
+      logger.info("Moving half of hot range " + move.token + " from " + move.from + " to " + move.to);
+      int port = reservePort(ServerUtility.getAddress(move.to), this);
+      HashMap<String, Runnable> tasks = new HashMap<String, Runnable>();
+      tasks.put(move.to, () -> to.lib.sendSenderPort(port, 1));
+      tasks.put(move.from, () -> from.lib.sendReceiverAddress(move.to, port));
+      update(tasks);
+      return true;
+    }
+  }
+}
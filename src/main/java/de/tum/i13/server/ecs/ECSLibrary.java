@@ -3,11 +3,12 @@ package de.tum.i13.server.ecs;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
-import de.tum.i13.shared.ServerUtility;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 public class ECSLibrary {
   private final PrintWriter out;
-  private static int eventPort;
   
   public ECSLibrary(PrintWriter out) {
     this.out = out;
@@ -15,28 +16,73 @@ public class ECSLibrary {
 
   /**
    * Sends the newest version of metadata to the server
+   * 
+   * @param keyRange
+   * @param epoch version of the hash ring
    */
-  public synchronized void updateServer(String keyRange) {
+  public synchronized void updateServer(String keyRange, long epoch) {
     out.println("update");
     out.println(keyRange);
+    out.println(epoch);
+    out.flush();
+  }
+
+  /**
+   * Sends the changes of the metadata since the version the server already knows
+   * 
+   * @param from epoch known by the server
+   * @param to current epoch
+   * @param delta changes of the hash ring
+   */
+  public synchronized void updateServer(long from, long to, String delta) {
+    out.println("delta");
+    out.println(from);
+    out.println(to);
+    out.println(delta);
     out.flush();
   }
   
-  public synchronized void startReplication(int repPort) {
-    out.println("startReplication");
-    out.println(repPort);
+  /**
+   * Informs the server how many servers store each key
+   * 
+   * @param replicationFactor
+   */
+  public synchronized void setReplicationFactor(int replicationFactor) {
+    out.println("replicationFactor");
+    out.println(replicationFactor);
     out.flush();
   }
 
-  public synchronized void startup(int num, InetSocketAddress cooAddress, int thisPort) {
-    out.println("startup");
-    out.println(num);
-    out.println(cooAddress.getHostString());
-    out.println(cooAddress.getPort());
-    out.println(thisPort);
+  /**
+   * Informs the server how updates are passed on to its replicas
+   * 
+   * @param mode
+   */
+  public synchronized void setReplicationMode(ReplicationMode mode) {
+    out.println("replicationMode");
+    out.println(mode);
     out.flush();
   }
-  
+
+  /**
+   * Informs the server which hash function places keys on the ring
+   * 
+   * @param hashFunction
+   */
+  public synchronized void setHashFunction(HashFunction hashFunction) {
+    out.println("hashFunction");
+    out.println(hashFunction);
+    out.flush();
+  }
+
+  /**
+   * Lets the server spread ring updates to the other servers
+   */
+  public synchronized void enableGossip() {
+    out.println("gossip");
+    out.flush();
+  }
+
   public synchronized void openReplicationPort(int repPort) throws IOException {
     out.println("openReplicationPort");
     out.println(repPort);
@@ -47,42 +93,57 @@ public class ECSLibrary {
    * Informs the server the port on which it should receive data
    * 
    * @param port
+   * @param senders amount of servers that will send data in parallel
    */
-  public synchronized void sendSenderPort() {
+  public synchronized void sendSenderPort(int port, int senders) {
     out.println("receive");
-    out.println(eventPort);
+    out.println(port);
+    out.println(senders);
     out.flush();
   }
 
   /**
-   * Informs the server the address to which it should send data
+   * Informs the server the address of a new server to which it should send the keys that the new
+   * server is now responsible for
    * 
    * @param address
-   * @param port
-   * @param sendAll true, if the server is shutting down and all data has to be sent, false
-   *        otherwise
+   * @param port on which the new server receives
    */
-  public synchronized void sendReceiverAddress(String address, boolean sendAll) {
+  public synchronized void sendReceiverAddress(String address, int port) {
     out.println("send");
     out.println(address);
-    out.println(eventPort);
-    out.println(sendAll);
+    out.println(port);
     out.flush();
   }
-  
-  public synchronized void setReplica(int replicaNum, InetSocketAddress sa, boolean adding) {
-    out.println("setReplica");
-    out.println(replicaNum);
-    out.println(sa.getHostString());
-    out.println(sa.getPort());
-    out.println(adding);
+
+  /**
+   * Informs a shutting down server to which servers and ports it should send its data. Every
+   * server receives the keys that it is responsible for once the closing server is gone.
+   * 
+   * @param targets ports on which the servers receive, by their address
+   */
+  public synchronized void handOff(Map<String, Integer> targets) {
+    out.println("handoff");
+    out.println(targets.size());
+    for (Entry<String, Integer> target : targets.entrySet()) {
+      out.println(target.getKey());
+      out.println(target.getValue());
+    }
     out.flush();
   }
   
-  public synchronized void setCoordinator(int coordinatorNum, boolean adding) {
-    out.println("setCoordinator");
-    out.println(coordinatorNum);
-    out.println(adding);
+  /**
+   * Informs the server about the replication addresses of its current replicas
+   * 
+   * @param replicas
+   */
+  public synchronized void setReplicas(List<InetSocketAddress> replicas) {
+    out.println("replicas");
+    out.println(replicas.size());
+    for (InetSocketAddress sa : replicas) {
+      out.println(sa.getHostString());
+      out.println(sa.getPort());
+    }
     out.flush();
   }
 
@@ -101,14 +162,6 @@ public class ECSLibrary {
     out.flush();
   }
 
-  public void setFreeEventPort(String address) throws IOException {
-    eventPort = ServerUtility.getFreePort(address);
-  }
-
-  public int getEventPort() {
-    return eventPort;
-  }
-
   public synchronized void userResult(boolean found, String username) {
     out.println("userResult");
     out.println(found);
@@ -0,0 +1,185 @@
+package de.tum.i13.server.ecs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash functions that place keys and servers on the ring. Both write the 128 bit position as two
+ * longs into the provided array, so a lookup does not allocate. Clients and servers have to use the
+ * same function as the ECS. MD5 is the default and matches the original protocol.
+ */
+public enum HashFunction {
+  MD5 {
+    @Override
+    public void token(String key, long[] token) {
+      byte[] digest = digest(key);
+      token[0] = toLong(digest, 0);
+      token[1] = toLong(digest, 8);
+    }
+  },
+
+  /**
+   * MurmurHash3 x64 128 bit (seed 0) of the UTF-8 bytes of the key, several times faster than MD5.
+   */
+  MURMUR3 {
+    @Override
+    public void token(String key, long[] token) {
+      murmur3(key, token);
+    }
+  };
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+  private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+  private static final ThreadLocal<byte[][]> buffers = ThreadLocal.withInitial(() -> new byte[][] {new byte[64], new byte[16]});
+
+  /**
+   * Computes the position of the key on the ring
+   *
+   * @param key
+   * @param token array of length 2 that receives the high and low 64 bits
+   */
+  public abstract void token(String key, long[] token);
+
+  /**
+   * Computes the MD5 digest of the key. ASCII keys are encoded into a per-thread buffer, the
+   * returned array is reused by the next call of the same thread.
+   *
+   * @param key
+   * @return digest of 16 bytes
+   */
+  static byte[] digest(String key) {
+    MessageDigest md = md5.get();
+    byte[][] buffer = buffers.get();
+    int length = key.length();
+    boolean ascii = length <= buffer[0].length;
+    for (int i = 0; i < length && ascii; i++) {
+      char c = key.charAt(i);
+      ascii = c < 0x80;
+      buffer[0][i] = (byte) c;
+    }
+    if (ascii) {
+      md.update(buffer[0], 0, length);
+    } else {
+      md.update(key.getBytes(StandardCharsets.UTF_8));
+    }
+    try {
+      md.digest(buffer[1], 0, 16);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+    return buffer[1];
+  }
+
+  private static void murmur3(String key, long[] token) {
+    long h1 = 0;
+    long h2 = 0;
+    long k1 = 0;
+    long k2 = 0;
+    int position = 0; // bytes in the current block
+    long length = 0;
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      int bytes; // UTF-8 encoding, first byte in the lowest bits
+      int count;
+      if (c < 0x80) {
+        bytes = c;
+        count = 1;
+      } else if (c < 0x800) {
+        bytes = (0xc0 | (c >> 6)) | (0x80 | (c & 0x3f)) << 8;
+        count = 2;
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < key.length()
+            && Character.isLowSurrogate(key.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, key.charAt(++i));
+          bytes = (0xf0 | (cp >> 18)) | (0x80 | ((cp >> 12) & 0x3f)) << 8
+              | (0x80 | ((cp >> 6) & 0x3f)) << 16 | (0x80 | (cp & 0x3f)) << 24;
+          count = 4;
+        } else {
+          bytes = '?'; // like String.getBytes for malformed input
+          count = 1;
+        }
+      } else {
+        bytes = (0xe0 | (c >> 12)) | (0x80 | ((c >> 6) & 0x3f)) << 8 | (0x80 | (c & 0x3f)) << 16;
+        count = 3;
+      }
+
+      for (int j = 0; j < count; j++) {
+        long b = (bytes >>> (8 * j)) & 0xff;
+        if (position < 8) {
+          k1 |= b << (8 * position);
+        } else {
+          k2 |= b << (8 * (position - 8));
+        }
+        length++;
+        if (++position == 16) {
+          k1 *= C1;
+          k1 = Long.rotateLeft(k1, 31);
+          k1 *= C2;
+          h1 ^= k1;
+          h1 = Long.rotateLeft(h1, 27);
+          h1 += h2;
+          h1 = h1 * 5 + 0x52dce729;
+          k2 *= C2;
+          k2 = Long.rotateLeft(k2, 33);
+          k2 *= C1;
+          h2 ^= k2;
+          h2 = Long.rotateLeft(h2, 31);
+          h2 += h1;
+          h2 = h2 * 5 + 0x38495ab5;
+          k1 = 0;
+          k2 = 0;
+          position = 0;
+        }
+      }
+    }
+
+    if (position > 8) {
+      k2 *= C2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= C1;
+      h2 ^= k2;
+    }
+    if (position > 0) {
+      k1 *= C1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= C2;
+      h1 ^= k1;
+    }
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    token[0] = h1;
+    token[1] = h2;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static long toLong(byte[] b, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (b[i] & 0xff);
+    }
+    return value;
+  }
+}
@@ -1,29 +1,48 @@
 package de.tum.i13.server.ecs;
 
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Consistent hashing ring of the storage servers. Every server owns the keys whose MD5 hash lies
+ * between the token of its predecessor (exclusive) and its own token (inclusive). Tokens are kept as
+ * two longs (high and low 64 bits, compared unsigned) in sorted arrays, so that the responsible
+ * server of a key is found by binary search. The keyrange strings are only built for the wire.
+ * <p>
+ * Every server may own several tokens (virtual nodes), so that its keys are spread over many small
+ * ranges. A joining or leaving server then exchanges data with many servers instead of only its
+ * direct neighbour. Replicas of a key are the next distinct servers following its token.
+ * <p>
+ * Every change of the ring increases its epoch and is recorded as a delta (tokens added, servers
+ * removed), so that servers and clients that know an older epoch only need the recent changes.
+ */
 public class HashRing {
 
-  private final TreeMap<String, String> buf;
-  private MessageDigest md5;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final ThreadLocal<long[]> position = ThreadLocal.withInitial(() -> new long[2]);
+  private static final int HISTORY = 100; // amount of changes kept for delta updates
+
+  private volatile Tokens tokens = new Tokens(new long[0], new long[0], new String[0]);
   private String keyRange;
   private String readKeyRange;
+  // amount of servers storing each key (coordinator and replicas), at most all servers of the ring
+  private volatile int replicationFactor = 3;
+  private ReplicationMode replicationMode = ReplicationMode.FANOUT;
+  private int virtualNodes = 1; // tokens per server
+  private volatile HashFunction hashFunction = HashFunction.MD5;
+  private long epoch = 0;
+  private final ArrayDeque<Change> history = new ArrayDeque<Change>();
 
   // constructors
   /**
    * Creates a new empty hash ring
    */
   public HashRing() {
-    buf = new TreeMap<String, String>();
-    try {
-      md5 = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) { // nothing to handle
-    }
   }
 
   /**
@@ -32,10 +51,8 @@ public class HashRing {
    * @param keyRange
    */
   public HashRing(String keyRange) {
-    this();
     this.keyRange = keyRange;
-    buildReadKeyRange();
-    updateBuf();
+    tokens = parse(keyRange);
   }
 
 
@@ -48,64 +65,215 @@ public class HashRing {
    */
   public synchronized void setKeyRange(String newRange) {
     keyRange = newRange;
-    updateBuf();
-    buildReadKeyRange();
+    tokens = parse(newRange);
+    readKeyRange = null;
+    history.clear();
   }
 
   public synchronized void setReadKeyRange(String newRange) {
     readKeyRange = newRange;
-    keyRange = newRange;
-    updateBuf();
-    buildKeyRange();
+    tokens = parse(newRange);
+    keyRange = null;
+    history.clear();
+    inferReplicationFactor();
+  }
 
+  /**
+   * Sets the epoch of the ring, after the complete keyrange of that epoch has been set
+   * 
+   * @param epoch
+   */
+  public synchronized void setEpoch(long epoch) {
+    this.epoch = epoch;
+  }
+
+  public synchronized long getEpoch() {
+    return epoch;
   }
 
   /**
-   * updates the keyrange
+   * Applies the changes another ring has made since the epoch of this ring.
+   * 
+   * @param delta changes as returned by {@link #getDelta(long)}
+   * @param newEpoch epoch of the other ring
    */
-  private synchronized void buildKeyRange() {
-    if (buf.isEmpty()) {
-      keyRange = "";
-      return;
+  public synchronized void applyDelta(String delta, long newEpoch) {
+    Tokens t = tokens;
+    for (String op : delta.split(";")) {
+      if (op.startsWith("+")) { // +token,server
+        t = t.with(Long.parseUnsignedLong(op.substring(1, 17), 16),
+            Long.parseUnsignedLong(op.substring(17, 33), 16), op.substring(34));
+      } else if (op.startsWith("-")) { // -server
+        t = t.without(op.substring(1));
+      }
     }
-    BigInteger from = new BigInteger(buf.lastKey(), 16).add(BigInteger.ONE);
-    if (from.shiftRight(128).compareTo(BigInteger.ONE) == 0) { // is max value (FFF...F)
-      from = BigInteger.ZERO;
+    tokens = t;
+    epoch = newEpoch - 1;
+    recordChange(delta);
+  }
+
+  /**
+   * Returns the changes of the ring since the given epoch. Changes are idempotent, so applying a
+   * delta that partly contains known changes is harmless.
+   * 
+   * @param since epoch known by the receiver
+   * @return changes separated by ';', empty if there were none, null if they are no longer known
+   */
+  public synchronized String getDelta(long since) {
+    if (since == epoch) {
+      return "";
+    }
+    if (since > epoch || history.isEmpty() || history.peekFirst().epoch > since + 1) {
+      return null;
     }
-    StringBuilder keyRange = new StringBuilder();
-    for (Entry<String, String> e : buf.entrySet()) {
-      keyRange.append(String.format("%032x,%s,%s;", from, e.getKey(), e.getValue()));
-      from = new BigInteger(e.getKey(), 16).add(BigInteger.ONE);
+    StringBuilder sb = new StringBuilder();
+    for (Change change : history) {
+      if (change.epoch > since) {
+        sb.append(sb.length() == 0 ? "" : ";").append(change.ops);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Starts a new epoch after the tokens have changed. The keyrange strings are rebuilt when they
+   * are needed next.
+   * 
+   * @param ops changes of this epoch
+   */
+  private void recordChange(String ops) {
+    epoch++;
+    history.addLast(new Change(epoch, ops));
+    if (history.size() > HISTORY) {
+      history.removeFirst();
     }
-    this.keyRange = keyRange.toString();
+    keyRange = null;
+    readKeyRange = null;
+  }
+
+  /**
+   * Derives the replication factor from the read keyrange: the read range of a server starts where
+   * the range of its furthest coordinator starts.
+   */
+  private void inferReplicationFactor() {
+    Tokens t = tokens;
+    int n = t.size();
+    if (n == 0) {
+      return;
+    }
+    String readFrom = readKeyRange.split(",", 2)[0];
+    long fromHi = Long.parseUnsignedLong(readFrom.substring(0, 16), 16);
+    long fromLo = Long.parseUnsignedLong(readFrom.substring(16, 32), 16);
+    HashSet<String> passed = new HashSet<String>();
+    for (int step = 1; step <= n; step++) { // walks back from the first range
+      int k = (n - step) % n;
+      long lo = t.lo[k] + 1;
+      long hi = lo == 0 ? t.hi[k] + 1 : t.hi[k];
+      if (hi == fromHi && lo == fromLo) {
+        replicationFactor = passed.size() + 1;
+        return;
+      }
+      if (!t.servers[k].equals(t.servers[0])) {
+        passed.add(t.servers[k]);
+      }
+    }
+  }
+
+  /**
+   * Sets the amount of servers that store each key, i.e. the coordinator and its replicas
+   * 
+   * @param replicationFactor
+   */
+  public synchronized void setReplicationFactor(int replicationFactor) {
+    this.replicationFactor = replicationFactor;
+    readKeyRange = null;
+  }
+
+  /**
+   * Sets the amount of tokens each server owns. Only affects servers added afterwards.
+   * 
+   * @param virtualNodes
+   */
+  public synchronized void setVirtualNodes(int virtualNodes) {
+    this.virtualNodes = Math.max(1, virtualNodes);
+  }
+
+  public int getVirtualNodes() {
+    return virtualNodes;
+  }
+
+  /**
+   * Sets the function that places keys and servers on the ring. Has to be the same on the ECS, the
+   * servers and the clients.
+   * 
+   * @param hashFunction
+   */
+  public void setHashFunction(HashFunction hashFunction) {
+    this.hashFunction = hashFunction;
+  }
+
+  public HashFunction getHashFunction() {
+    return hashFunction;
+  }
+
+  /**
+   * updates the keyrange
+   */
+  private synchronized void buildKeyRange() {
+    keyRange = buildRanges(0, ";");
   }
 
   public synchronized void buildReadKeyRange() {
-    if (buf.size() < 3) {
-      readKeyRange = keyRange;
+    if (!replicationActive()) {
+      readKeyRange = getKeyRange();
       return;
     }
-    String[] ranges = keyRange.split(";");
-    String[] newranges = new String[ranges.length];
-    for (int i = 0; i < ranges.length; i++) {
-      String range = ranges[i];
-      String rangeWithoutFrom = "," + range.split(",", 2)[1];
-      int twobefore = (i - 2 + ranges.length) % ranges.length;
-      newranges[i] = ranges[twobefore].split(",")[0] + rangeWithoutFrom;
+    readKeyRange = buildRanges(replicationFactor - 1, "");
+  }
+
+  /**
+   * Builds the wire format of the ranges: <code>from,to,server;</code> for every server.
+   * 
+   * @param replicas amount of distinct predecessors whose ranges are added to the range of each
+   *        token
+   * @param end appended to the last range
+   * @return keyrange
+   */
+  private String buildRanges(int replicas, String end) {
+    Tokens t = tokens;
+    int n = t.size();
+    StringBuilder sb = new StringBuilder(n * 90);
+    for (int i = 0; i < n; i++) {
+      int prev = t.readStart(i, replicas); // range starts after the token of this server
+      long lo = t.lo[prev] + 1;
+      long hi = lo == 0 ? t.hi[prev] + 1 : t.hi[prev];
+      appendHex(sb, hi, lo).append(',');
+      appendHex(sb, t.hi[i], t.lo[i]).append(',').append(t.servers[i]);
+      if (i < n - 1) {
+        sb.append(';');
+      }
     }
-    readKeyRange = String.join(";", newranges);
+    return n == 0 ? "" : sb.append(end).toString();
   }
 
   /**
-   * Uses the keyRange to setup the ring
+   * Parses the tokens of the servers from the <code>to</code> fields of a keyrange.
+   * 
+   * @param range keyrange in wire format
+   * @return tokens of the ring
    */
-  public synchronized void updateBuf() {
-    buf.clear();
-    String[] rangeAll = keyRange.split(";");
-    for (String l : rangeAll) {
-      String server = l.split(",")[2];
-      buf.put(hash(server), server);
+  private static Tokens parse(String range) {
+    String[] rangeAll = range.isEmpty() ? new String[0] : range.split(";");
+    long[] hi = new long[rangeAll.length];
+    long[] lo = new long[rangeAll.length];
+    String[] servers = new String[rangeAll.length];
+    for (int i = 0; i < rangeAll.length; i++) {
+      String[] fields = rangeAll[i].split(",");
+      hi[i] = Long.parseUnsignedLong(fields[1].substring(0, 16), 16);
+      lo[i] = Long.parseUnsignedLong(fields[1].substring(16, 32), 16);
+      servers[i] = fields[2];
     }
+    return new Tokens(hi, lo, servers).sorted();
   }
 
 
@@ -116,11 +284,17 @@ public class HashRing {
    * 
    * @return keyrange
    */
-  public String getKeyRange() {
+  public synchronized String getKeyRange() {
+    if (keyRange == null) {
+      buildKeyRange();
+    }
     return keyRange;
   }
 
-  public String getReadKeyRange() {
+  public synchronized String getReadKeyRange() {
+    if (readKeyRange == null) {
+      buildReadKeyRange();
+    }
     return readKeyRange;
   }
 
@@ -145,9 +319,9 @@ public class HashRing {
   }
 
   private String getRange(String server, boolean read) {
-    String[] rangeAll = (read ? readKeyRange : keyRange).split(";");
+    String[] rangeAll = (read ? getReadKeyRange() : getKeyRange()).split(";");
     for (String range : rangeAll) {
-      if (range.endsWith(server)) {
+      if (range.endsWith("," + server)) {
         return range;
       }
     }
@@ -161,57 +335,132 @@ public class HashRing {
    * @return successor server
    */
   public String getSuccessor(String server) {
-    if (buf.size() < 2 || server == null) {
+    Tokens t = tokens;
+    if (t.members < 2 || server == null) {
       return null;
     }
-    String res;
-    return (res = buf.higherKey(hash(server))) == null ? buf.firstEntry().getValue() : buf.get(res);
+    int i = ceiling(t, server);
+    while (t.servers[i % t.size()].equals(server)) {
+      i++; // strictly higher and not owned by the server itself
+    }
+    return t.servers[i % t.size()];
   }
 
   public String getPredecessor(String server) {
-    if (buf.size() < 2) {
+    Tokens t = tokens;
+    if (t.members < 2) {
       return null;
     }
-    String res;
-    return (res = buf.lowerKey(hash(server))) == null ? buf.lastEntry().getValue() : buf.get(res);
+    int i = ceiling(t, server) - 1 + t.size(); // strictly lower
+    while (t.servers[i % t.size()].equals(server)) {
+      i--;
+    }
+    return t.servers[i % t.size()];
   }
 
   /**
-   * Gets the servers that contain a replica (are successors) of the provided server.
+   * Gets the servers that directly follow one of the tokens of the given server. These servers
+   * hand over data to the server when it joins and receive its data when it leaves.
    * 
    * @param server
-   * @return
+   * @return successors, ordered by the position of the tokens of the server
+   */
+  public ArrayList<String> getSuccessors(String server) {
+    LinkedHashSet<String> m = new LinkedHashSet<String>();
+    Tokens t = tokens;
+    if (t.members > 1) {
+      for (int i : t.indicesOf(server, ceiling(t, server))) {
+        m.addAll(t.walk(i + 1, 1, 1, server));
+      }
+    }
+    return new ArrayList<String>(m);
+  }
+
+  /**
+   * Gets the servers that owned the ranges of the given server before it was added together with
+   * others: for every token the first following server that is not skipped.
+   *
+   * @param server
+   * @param skipped servers that were added at the same time
+   * @return distinct previous owners, ordered by the position of the tokens of the server
+   */
+  public ArrayList<String> getSuccessors(String server, Set<String> skipped) {
+    LinkedHashSet<String> m = new LinkedHashSet<String>();
+    Tokens t = tokens;
+    int n = t.servers.length;
+    for (int i : t.indicesOf(server, ceiling(t, server))) {
+      for (int j = 1; j < n; j++) {
+        String candidate = t.servers[(i + j) % n];
+        if (!candidate.equals(server) && !skipped.contains(candidate)) {
+          m.add(candidate);
+          break;
+        }
+      }
+    }
+    return new ArrayList<String>(m);
+  }
+
+  /**
+   * Gets all servers of the ring
+   * 
+   * @return distinct servers, ordered by their first token
+   */
+  public ArrayList<String> getServers() {
+    return new ArrayList<String>(new LinkedHashSet<String>(Arrays.asList(tokens.servers)));
+  }
+
+  public int getReplicationFactor() {
+    return replicationFactor;
+  }
+
+  public ReplicationMode getReplicationMode() {
+    return replicationMode;
+  }
+
+  public void setReplicationMode(ReplicationMode replicationMode) {
+    this.replicationMode = replicationMode;
+  }
+
+  /**
+   * Gets the servers that contain a replica (are successors) of the provided server, ordered by
+   * their distance to it. With virtual nodes these are the replicas of all of its tokens.
+   * 
+   * @param server
+   * @return replicas, empty if replication is not active
    */
   public ArrayList<String> getReplicas(String server) {
-    if (!replicationActive()) {
-      return null;
+    LinkedHashSet<String> m = new LinkedHashSet<String>();
+    if (replicationActive()) {
+      Tokens t = tokens;
+      for (int i : t.indicesOf(server, ceiling(t, server))) {
+        m.addAll(t.walk(i + 1, 1, replicationFactor - 1, server));
+      }
     }
-    ArrayList<String> m = new ArrayList<String>();
-    m.add(getSuccessor(server));
-    m.add(getSuccessor(m.get(0)));
-    return m;
+    return new ArrayList<String>(m);
   }
 
   /**
-   * Gets the servers that the provided server possesses a replica to (predecessors)
+   * Gets the servers that the provided server possesses a replica to (predecessors), ordered by
+   * their distance to it.
    * 
    * @param server
-   * @return
+   * @return coordinators, empty if replication is not active
    */
   public ArrayList<String> getCoordinators(String server) {
-    if (!replicationActive()) {
-      return null;
+    LinkedHashSet<String> m = new LinkedHashSet<String>();
+    if (replicationActive()) {
+      Tokens t = tokens;
+      for (int i : t.indicesOf(server, ceiling(t, server))) {
+        m.addAll(t.walk(i - 1, -1, replicationFactor - 1, server));
+      }
     }
-    ArrayList<String> m = new ArrayList<String>();
-    m.add(getPredecessor(server));
-    m.add(getPredecessor(m.get(0)));
-    return m;
+    return new ArrayList<String>(m);
   }
 
 
   // responsibility
   public boolean isCoordinator(String server, String key) {
-    return responsible(server, key, false);
+    return server.equals(getCoordinator(key));
   }
 
   /**
@@ -221,67 +470,67 @@ public class HashRing {
    * @return server
    */
   public String getCoordinator(String key) {
-    for (String server : buf.values()) {
-      if (isCoordinator(server, key)) {
-        return server;
-      }
+    Tokens t = tokens;
+    if (t.size() == 0) {
+      return null;
     }
-    return null;
+    return t.servers[owner(t, key)];
   }
 
   public boolean isReadResponsible(String server, String key) {
-    return responsible(server, key, true);
+    Tokens t = tokens;
+    if (t.size() == 0) {
+      return false;
+    }
+    return t.isAmong(owner(t, key), replicationActive() ? replicationFactor : 1, server);
   }
 
   /**
    * finds the responsible servers for the given key and returns them in the order: coordinator,
-   * replica 1, replica 2
+   * replica 1, ..., replica n
    * 
    * @param key
    * @return server
    */
   public ArrayList<String> getReadResponsibleServers(String key) {
-    ArrayList<String> servers = new ArrayList<String>();
-    servers.add(getCoordinator(key));
-    if (replicationActive()) {
-      servers.add(getSuccessor(servers.get(0)));
-      servers.add(getSuccessor(servers.get(1)));
+    Tokens t = tokens;
+    if (t.size() == 0) {
+      ArrayList<String> servers = new ArrayList<String>();
+      servers.add(null);
+      return servers;
     }
-    return servers;
+    return t.walk(owner(t, key), 1, replicationActive() ? replicationFactor : 1, null);
   }
 
+
+
+  // map operations
   /**
-   * checks if the server is responsible for the given key
+   * adds server to hashring
    * 
    * @param server
-   * @param key
-   * @return true if server is responsible for the key otherwise false
    */
-  private boolean responsible(String server, String key, boolean read) {
-    String range[] = (read ? getReadKeyRange(server) : getKeyRange(server)).split(",");
-    String k = hash(key);
-    String from = range[0];
-    String to = range[1];
-
-    if (to.compareTo(from) >= 0) {
-      return k.compareTo(from) >= 0 && k.compareTo(to) <= 0;
-    }
-    return k.compareTo(from) >= 0 || k.compareTo(to) <= 0;
+  public synchronized void addServer(String server) {
+    addServer(server, 1);
   }
 
-
-
-  // map operations
   /**
-   * adds server to hashring
+   * adds server to hashring with a share of the token space proportional to its weight. The server
+   * gets <code>weight * virtualNodes</code> tokens (at least one), so weights are only honoured as
+   * precisely as the amount of virtual nodes allows.
    * 
    * @param server
+   * @param weight capacity of the server relative to the other servers
    */
-  public synchronized void addServer(String server) {
-    String serverHash = hash(server);
-    buf.put(serverHash, server);
-    buildKeyRange();
-    buildReadKeyRange();
+  public synchronized void addServer(String server, double weight) {
+    int count = Math.max(1, (int) Math.round(weight * virtualNodes));
+    StringBuilder ops = new StringBuilder(count * 55);
+    for (int i = 0; i < count; i++) {
+      long[] h = token(i == 0 ? server : server + "#" + i);
+      tokens = tokens.with(h[0], h[1], server);
+      appendHex(ops.append(i == 0 ? "+" : ";+"), h[0], h[1]).append(',').append(server);
+    }
+    recordChange(ops.toString());
   }
 
   /**
@@ -290,14 +539,44 @@ public class HashRing {
    * @param server
    */
   public synchronized void removeServer(String server) {
-    String serverHash = hash(server);
-    try {
-      buf.remove(serverHash);
-    } catch (NullPointerException e) {
+    Tokens t = tokens;
+    tokens = t.without(server);
+    if (tokens == t) {
       return; // won't do anything if server is not in hash ring
     }
-    buildKeyRange();
-    buildReadKeyRange();
+    recordChange("-" + server);
+  }
+
+  /**
+   * Splits the range that ends at the given token of <code>server</code> in half. The lower half is
+   * handed to <code>target</code> by adding a token for it in the middle of the range.
+   * 
+   * @param server current owner of the range
+   * @param token end of the range in hex, as sent in the keyrange
+   * @param target server that takes over the lower half
+   * @return true if the range has been split, false if it no longer exists or is too small
+   */
+  public synchronized boolean splitRange(String server, String token, String target) {
+    Tokens t = tokens;
+    long tokenHi = Long.parseUnsignedLong(token.substring(0, 16), 16);
+    long tokenLo = Long.parseUnsignedLong(token.substring(16, 32), 16);
+    int i = t.ceiling(tokenHi, tokenLo);
+    if (i == t.size() || t.hi[i] != tokenHi || t.lo[i] != tokenLo || !t.servers[i].equals(server)
+        || t.members < 2) {
+      return false;
+    }
+    int prev = (i - 1 + t.size()) % t.size();
+    BigInteger space = BigInteger.ONE.shiftLeft(128);
+    BigInteger from = toBigInteger(t.hi[prev], t.lo[prev]);
+    BigInteger width = toBigInteger(tokenHi, tokenLo).subtract(from).mod(space);
+    if (width.compareTo(BigInteger.TWO) < 0) {
+      return false;
+    }
+    BigInteger middle = from.add(width.shiftRight(1)).mod(space);
+    tokens = t.with(middle.shiftRight(64).longValue(), middle.longValue(), target);
+    recordChange(appendHex(new StringBuilder("+"), middle.shiftRight(64).longValue(),
+        middle.longValue()).append(',').append(target).toString());
+    return true;
   }
 
   /**
@@ -306,16 +585,29 @@ public class HashRing {
    * @return true if the ring is empty else false
    */
   public boolean isEmpty() {
-    return buf.isEmpty();
+    return tokens.size() == 0;
   }
 
   /**
-   * checks if replication is currently active
+   * checks whether the server is part of the ring
+   * 
+   * @param server
+   * @return true if the server is in the ring
+   */
+  public boolean contains(String server) {
+    Tokens t = tokens;
+    int i = ceiling(t, server);
+    return i < t.size() && server.equals(t.servers[i]);
+  }
+
+  /**
+   * checks if replication is currently active. With fewer servers than the replication factor every
+   * key is stored on all servers.
    * 
    * @return true if replication is active
    */
   public boolean replicationActive() {
-    return buf.size() >= 3;
+    return replicationFactor > 1 && tokens.members > 1;
   }
 
   /**
@@ -324,7 +616,17 @@ public class HashRing {
    * @return true if replication is now active or inactive due to the most recent hash ring change
    */
   public boolean replicationSwitch() {
-    return buf.size() == 3;
+    return replicationFactor > 1 && tokens.members == 2;
+  }
+
+  /**
+   * checks if servers own several tokens of the ring. Also works for rings received over the wire.
+   * 
+   * @return true if virtual nodes are used
+   */
+  public boolean hasVirtualNodes() {
+    Tokens t = tokens;
+    return t.size() > t.members;
   }
 
   /**
@@ -333,7 +635,7 @@ public class HashRing {
    * @return true if only one server is online
    */
   public boolean onlyOneServer() {
-    return buf.size() == 1;
+    return tokens.members == 1;
   }
 
 
@@ -346,12 +648,305 @@ public class HashRing {
    * @return hashed string
    */
   public String hash(String k) {
-    byte[] digest = md5.digest(k.getBytes());
-    StringBuilder hexString = new StringBuilder();
-    for (byte b : digest) {
-      hexString.append(String.format("%02x", b));
+    byte[] digest = HashFunction.digest(k);
+    char[] hex = new char[32];
+    for (int i = 0; i < digest.length; i++) {
+      hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+      hex[2 * i + 1] = HEX[digest[i] & 0xf];
     }
-    return hexString.toString();
+    return new String(hex);
   }
-}
 
+  /**
+   * Gets the end of the range that contains the key, which identifies the range on the wire.
+   * 
+   * @param key
+   * @return token of the coordinator's range in hex, null if the ring is empty
+   */
+  public String getRangeToken(String key) {
+    Tokens t = tokens;
+    if (t.size() == 0) {
+      return null;
+    }
+    return t.rangeToken(owner(t, key));
+  }
+
+  /**
+   * Gets the end of the range that contains the key if the server is its coordinator. The key is
+   * hashed once and the token string is kept with the ring, so that counting requests per range
+   * does not allocate.
+   * 
+   * @param server
+   * @param key
+   * @return token of the range in hex, null if the server is not the coordinator of the key
+   */
+  public String getCoordinatorRange(String server, String key) {
+    Tokens t = tokens;
+    if (t.size() == 0) {
+      return null;
+    }
+    int i = owner(t, key);
+    return t.servers[i].equals(server) ? t.rangeToken(i) : null;
+  }
+
+  private static BigInteger toBigInteger(long hi, long lo) {
+    return new BigInteger(Long.toUnsignedString(hi)).shiftLeft(64)
+        .add(new BigInteger(Long.toUnsignedString(lo)));
+  }
+
+  /**
+   * Hashes the string to its position on the ring. The returned array is reused by the next call of
+   * the same thread.
+   * 
+   * @param k
+   * @return high and low 64 bits of the hash
+   */
+  private long[] token(String k) {
+    long[] h = position.get();
+    hashFunction.token(k, h);
+    return h;
+  }
+
+  /**
+   * Binary search for the first token that is greater than or equal to the hash of the string.
+   */
+  private int ceiling(Tokens t, String k) {
+    long[] h = token(k);
+    return t.ceiling(h[0], h[1]);
+  }
+
+  /**
+   * Finds the index of the token that the key belongs to.
+   */
+  private int owner(Tokens t, String key) {
+    int i = ceiling(t, key);
+    return i == t.size() ? 0 : i; // wraps around
+  }
+
+  private static StringBuilder appendHex(StringBuilder sb, long hi, long lo) {
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      sb.append(HEX[(int) (hi >>> shift) & 0xf]);
+    }
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      sb.append(HEX[(int) (lo >>> shift) & 0xf]);
+    }
+    return sb;
+  }
+
+
+
+  /**
+   * Changes of one epoch in the format of {@link #getDelta(long)}
+   */
+  private static final class Change {
+    private final long epoch;
+    private final String ops;
+
+    private Change(long epoch, String ops) {
+      this.epoch = epoch;
+      this.ops = ops;
+    }
+  }
+
+  /**
+   * Immutable sorted arrays of the tokens and the servers owning them. A new instance is created on
+   * every change of the ring, so that lookups never need a lock.
+   */
+  private static final class Tokens {
+    private final long[] hi;
+    private final long[] lo;
+    private final String[] servers;
+    private final String[] rangeTokens; // hex of each token, built on first use
+    private final int members; // distinct servers
+
+    private Tokens(long[] hi, long[] lo, String[] servers) {
+      this.hi = hi;
+      this.lo = lo;
+      this.servers = servers;
+      this.rangeTokens = new String[servers.length];
+      this.members = new HashSet<String>(Arrays.asList(servers)).size();
+    }
+
+    private int size() {
+      return servers.length;
+    }
+
+    /**
+     * Gets the token at index i in hex. Racing threads may both build it, which is harmless as
+     * strings are immutable.
+     */
+    private String rangeToken(int i) {
+      String token = rangeTokens[i];
+      if (token == null) {
+        token = appendHex(new StringBuilder(32), hi[i], lo[i]).toString();
+        rangeTokens[i] = token;
+      }
+      return token;
+    }
+
+    /**
+     * Binary search for the first token that is greater than or equal to the given one.
+     * 
+     * @return index of the token or size() if all tokens are lower
+     */
+    private int ceiling(long keyHi, long keyLo) {
+      int low = 0;
+      int high = servers.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        int c = Long.compareUnsigned(hi[mid], keyHi);
+        if (c == 0) {
+          c = Long.compareUnsigned(lo[mid], keyLo);
+        }
+        if (c < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Collects distinct servers by walking along the ring.
+     * 
+     * @param start index of the first token
+     * @param step 1 to walk clockwise, -1 to walk counterclockwise
+     * @param count amount of servers to collect
+     * @param exclude server that is skipped, may be null
+     * @return servers in the order they were reached
+     */
+    private ArrayList<String> walk(int start, int step, int count, String exclude) {
+      ArrayList<String> found = new ArrayList<String>(count);
+      int n = servers.length;
+      for (int i = 0; i < n && found.size() < count; i++) {
+        String server = servers[Math.floorMod(start + i * step, n)];
+        if (!server.equals(exclude) && !found.contains(server)) {
+          found.add(server);
+        }
+      }
+      return found;
+    }
+
+    /**
+     * Checks whether the server is among the first <code>count</code> distinct servers following
+     * the index, without allocating.
+     */
+    private boolean isAmong(int start, int count, String server) {
+      int n = servers.length;
+      int found = 0;
+      for (int i = 0; i < n && found < count; i++) {
+        String candidate = servers[(start + i) % n];
+        if (candidate.equals(server)) {
+          return true;
+        }
+        boolean seen = false;
+        for (int j = 0; j < i && !seen; j++) {
+          seen = servers[(start + j) % n].equals(candidate);
+        }
+        if (!seen) {
+          found++;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Finds the token after which the read range of the token at index i starts, i.e. the token
+     * that is reached when walking back over the given amount of distinct other servers.
+     */
+    private int readStart(int i, int replicas) {
+      int n = servers.length;
+      HashSet<String> passed = new HashSet<String>();
+      for (int step = 1; step < n; step++) {
+        String server = servers[Math.floorMod(i - step, n)];
+        if (!server.equals(servers[i]) && !passed.contains(server)) {
+          if (passed.size() == replicas) {
+            return Math.floorMod(i - step, n);
+          }
+          passed.add(server);
+        }
+      }
+      return i;
+    }
+
+    /**
+     * Gets the indices of all tokens of the server, starting with its first token.
+     * 
+     * @param first index of the first token of the server
+     */
+    private ArrayList<Integer> indicesOf(String server, int first) {
+      ArrayList<Integer> indices = new ArrayList<Integer>();
+      for (int i = 0; i < servers.length; i++) {
+        int index = (first + i) % servers.length;
+        if (servers[index].equals(server)) {
+          indices.add(index);
+        }
+      }
+      return indices;
+    }
+
+    private Tokens with(long tokenHi, long tokenLo, String server) {
+      int i = ceiling(tokenHi, tokenLo);
+      boolean replace = i < servers.length && hi[i] == tokenHi && lo[i] == tokenLo;
+      int n = replace ? servers.length : servers.length + 1;
+      long[] newHi = new long[n];
+      long[] newLo = new long[n];
+      String[] newServers = new String[n];
+      System.arraycopy(hi, 0, newHi, 0, i);
+      System.arraycopy(lo, 0, newLo, 0, i);
+      System.arraycopy(servers, 0, newServers, 0, i);
+      newHi[i] = tokenHi;
+      newLo[i] = tokenLo;
+      newServers[i] = server;
+      int rest = replace ? i + 1 : i;
+      System.arraycopy(hi, rest, newHi, i + 1, servers.length - rest);
+      System.arraycopy(lo, rest, newLo, i + 1, servers.length - rest);
+      System.arraycopy(servers, rest, newServers, i + 1, servers.length - rest);
+      return new Tokens(newHi, newLo, newServers);
+    }
+
+    private Tokens without(String server) {
+      int n = 0;
+      for (String s : servers) {
+        if (!s.equals(server)) {
+          n++;
+        }
+      }
+      if (n == servers.length) {
+        return this;
+      }
+      long[] newHi = new long[n];
+      long[] newLo = new long[n];
+      String[] newServers = new String[n];
+      for (int i = 0, j = 0; i < servers.length; i++) {
+        if (!servers[i].equals(server)) {
+          newHi[j] = hi[i];
+          newLo[j] = lo[i];
+          newServers[j++] = servers[i];
+        }
+      }
+      return new Tokens(newHi, newLo, newServers);
+    }
+
+    private Tokens sorted() {
+      Integer[] order = new Integer[servers.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> {
+        int c = Long.compareUnsigned(hi[a], hi[b]);
+        return c != 0 ? c : Long.compareUnsigned(lo[a], lo[b]);
+      });
+      long[] newHi = new long[order.length];
+      long[] newLo = new long[order.length];
+      String[] newServers = new String[order.length];
+      for (int i = 0; i < order.length; i++) {
+        newHi[i] = hi[order[i]];
+        newLo[i] = lo[order[i]];
+        newServers[i] = servers[order[i]];
+      }
+      return new Tokens(newHi, newLo, newServers);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package de.tum.i13.server.ecs;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Watches the heartbeats that all servers send to the ECS. One scheduled thread checks the
+ * suspicion level of every server and reports a server as failed once its phi exceeds
+ * {@link #THRESHOLD}.
+ */
+public class HeartbeatMonitor {
+  private static final Logger logger = Logger.getLogger(MainECS.class.getName());
+  public static final long HEARTBEAT_INTERVAL = 500; // ms between two heartbeats of a server
+  static final long CHECK_INTERVAL = 100; // ms between two checks of all servers
+  static final double THRESHOLD = 8;
+
+  private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+  private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread th = new Thread(r, "heartbeat-monitor");
+    th.setDaemon(true);
+    return th;
+  });
+
+  private static class Watch {
+    private final PhiAccrualDetector detector = new PhiAccrualDetector(HEARTBEAT_INTERVAL);
+    private final Runnable onFailure;
+
+    private Watch(Runnable onFailure) {
+      this.onFailure = onFailure;
+    }
+  }
+
+  public HeartbeatMonitor() {
+    checker.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts watching a server. It is only suspected after its first heartbeat.
+   *
+   * @param server
+   * @param onFailure called once by the monitor thread if the server is suspected to have failed
+   */
+  public void watch(String server, Runnable onFailure) {
+    watches.put(server, new Watch(onFailure));
+  }
+
+  /**
+   * Stops watching a server, e.g. because it is shutting down on purpose
+   *
+   * @param server
+   */
+  public void unwatch(String server) {
+    watches.remove(server);
+  }
+
+  public void heartbeat(String server) {
+    Watch watch = watches.get(server);
+    if (watch != null) {
+      watch.detector.heartbeat(System.currentTimeMillis());
+    }
+  }
+
+  private void check() {
+    long now = System.currentTimeMillis();
+    Iterator<Entry<String, Watch>> it = watches.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry<String, Watch> entry = it.next();
+      double phi = entry.getValue().detector.phi(now);
+      if (phi > THRESHOLD) {
+        logger.warning("Server " + entry.getKey() + " suspected to have failed, phi " + (int) phi);
+        it.remove();
+        try {
+          entry.getValue().onFailure.run();
+        } catch (RuntimeException e) {
+          logger.severe("Error while removing server " + entry.getKey() + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package de.tum.i13.server.ecs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Collects the load reports of the servers and decides when a hot range has to be split. A range
+ * is hot if it receives more than {@link #HOT_FACTOR} times the mean load of the other servers for
+ * {@link #SUSTAINED} consecutive reports. Half of it is then moved to the least loaded server, as
+ * long as that lowers the load of the busiest of the two.
+ */
+public class LoadBalancer {
+  static final double HOT_FACTOR = 2.0;
+  static final long MIN_REQUESTS = 100; // per report, quieter ranges are never moved
+  static final int SUSTAINED = 3;
+
+  private final HashMap<String, Map<String, Long>> reports = new HashMap<String, Map<String, Long>>();
+  private final HashMap<String, String> hotRanges = new HashMap<String, String>();
+  private final HashMap<String, Integer> hotStreaks = new HashMap<String, Integer>();
+
+  /**
+   * Describes a range that is split: the lower half of the range ending at <code>token</code> moves
+   * from <code>from</code> to <code>to</code>.
+   */
+  public static class Migration {
+    public final String from;
+    public final String to;
+    public final String token;
+
+    public Migration(String from, String to, String token) {
+      this.from = from;
+      this.to = to;
+      this.token = token;
+    }
+  }
+
+  /**
+   * Stores the newest report of a server and checks whether its hottest range should be split.
+   * 
+   * @param server address of the reporting server
+   * @param requests requests per range since its last report
+   * @return the migration to perform, null if the load is balanced well enough
+   */
+  public synchronized Migration report(String server, Map<String, Long> requests) {
+    reports.put(server, requests);
+    if (reports.size() < 2 || requests.isEmpty()) {
+      hotStreaks.remove(server);
+      return null;
+    }
+
+    Entry<String, Long> hottest = null;
+    for (Entry<String, Long> range : requests.entrySet()) {
+      if (hottest == null || range.getValue() > hottest.getValue()) {
+        hottest = range;
+      }
+    }
+    String coolest = null;
+    long others = 0;
+    for (Entry<String, Map<String, Long>> report : reports.entrySet()) {
+      if (!report.getKey().equals(server)) {
+        long load = total(report.getValue());
+        others += load;
+        if (coolest == null || load < total(reports.get(coolest))) {
+          coolest = report.getKey();
+        }
+      }
+    }
+    double mean = others / (double) (reports.size() - 1);
+    long rate = hottest.getValue();
+    boolean improves = total(reports.get(coolest)) + rate / 2 < total(requests);
+    if (rate < MIN_REQUESTS || rate <= HOT_FACTOR * mean || !improves) {
+      hotStreaks.remove(server);
+      return null;
+    }
+
+    if (!hottest.getKey().equals(hotRanges.put(server, hottest.getKey()))) {
+      hotStreaks.remove(server); // another range became the hottest
+    }
+    if (hotStreaks.merge(server, 1, Integer::sum) < SUSTAINED) {
+      return null;
+    }
+    reset();
+    return new Migration(server, coolest, hottest.getKey());
+  }
+
+  /**
+   * Forgets all reports, called whenever the ring changes so that decisions are only based on the
+   * new ranges.
+   */
+  public synchronized void reset() {
+    reports.clear();
+    hotRanges.clear();
+    hotStreaks.clear();
+  }
+
+  private static long total(Map<String, Long> requests) {
+    long sum = 0;
+    for (long count : requests.values()) {
+      sum += count;
+    }
+    return sum;
+  }
+}
@@ -8,6 +8,7 @@ import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.logging.Logger;
 import de.tum.i13.shared.ConfigECS;
+import de.tum.i13.shared.MetricsRegistry;
 import de.tum.i13.shared.ServerStart;
 
 public class MainECS {
@@ -38,12 +39,35 @@ public class MainECS {
     });
 
     HashRing hr = new HashRing();
+    hr.setReplicationFactor(cfg.replicationFactor);
+    hr.setReplicationMode(cfg.replicationMode);
+    hr.setHashFunction(cfg.hashFunction);
+    if (cfg.replicationMode == ReplicationMode.CHAIN && cfg.virtualNodes > 1) {
+      logger.warning("Chain replication requires a single token per server, ignoring virtual nodes");
+    } else {
+      hr.setVirtualNodes(cfg.virtualNodes);
+    }
 
+    ClusterManager cluster = new ClusterManager(hr);
+    cluster.setGossip(cfg.gossip);
+    if (cfg.metricsPort > 0) {
+      MetricsRegistry metrics = new MetricsRegistry();
+      cluster.registerMetrics(metrics);
+      metrics.serve(cfg.listenaddr, cfg.metricsPort);
+      logger.info("Metrics available at http://" + cfg.listenaddr + ":" + cfg.metricsPort + "/metrics");
+    }
     logger.info("ECS server starting..");
     try {
       while (running) {
         Socket serverSocket = mainSocket.accept(); // new server
-        Thread th = new ServerCommThread(serverSocket, hr);
+        Thread th;
+        try {
+          th = new ServerCommThread(serverSocket, cluster);
+        } catch (IOException e) { // not a server, e.g. a check whether the ECS is up
+          logger.fine("Dropping connection: " + e.getMessage());
+          serverSocket.close();
+          continue;
+        }
         workers.add(th);
         th.start();
       }
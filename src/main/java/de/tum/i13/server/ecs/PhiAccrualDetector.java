@@ -0,0 +1,79 @@
+package de.tum.i13.server.ecs;
+
+/**
+ * Phi accrual failure detector of one server. Instead of a fixed timeout it keeps the intervals
+ * between the last heartbeats and computes how unlikely the current silence is:
+ * <code>phi = -log10(P(interval &gt; silence))</code>, assuming normally distributed intervals. A
+ * phi of 8 means that a live server stays silent that long once in 10^8 times, so servers with
+ * jittery heartbeats get more time than servers with regular ones.
+ */
+public class PhiAccrualDetector {
+  static final int WINDOW = 100; // intervals kept
+  static final double MIN_STD_DEVIATION = 100; // ms, keeps very regular servers from being too strict
+  static final double ACCEPTABLE_PAUSE = 1000; // ms of extra silence tolerated, e.g. for GC pauses
+
+  private final double[] intervals = new double[WINDOW];
+  private int count;
+  private int next;
+  private double sum;
+  private double squares;
+  private long last = -1;
+
+  /**
+   * Creates a detector that expects heartbeats every <code>interval</code> ms until it has seen
+   * some.
+   *
+   * @param interval expected time between two heartbeats
+   */
+  public PhiAccrualDetector(long interval) {
+    add(interval - interval / 4); // two samples with mean interval and deviation interval / 4
+    add(interval + interval / 4);
+  }
+
+  /**
+   * Records a heartbeat
+   *
+   * @param now arrival time in ms
+   */
+  public synchronized void heartbeat(long now) {
+    if (last >= 0) {
+      add(now - last);
+    }
+    last = now;
+  }
+
+  /**
+   * Computes the suspicion level that the server has failed
+   *
+   * @param now current time in ms
+   * @return phi, 0 before the first heartbeat
+   */
+  public synchronized double phi(long now) {
+    if (last < 0) {
+      return 0;
+    }
+    double mean = sum / count + ACCEPTABLE_PAUSE;
+    double deviation = Math.max(Math.sqrt(Math.max(0, squares / count - (sum / count) * (sum / count))),
+        MIN_STD_DEVIATION);
+    double y = (now - last - mean) / deviation;
+    // logistic approximation of the normal distribution, stays finite for long silences
+    double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+    if (now - last > mean) {
+      return -Math.log10(e / (1 + e));
+    }
+    return -Math.log10(1 - 1 / (1 + e));
+  }
+
+  private void add(double interval) {
+    if (count == WINDOW) {
+      sum -= intervals[next];
+      squares -= intervals[next] * intervals[next];
+    } else {
+      count++;
+    }
+    intervals[next] = interval;
+    sum += interval;
+    squares += interval * interval;
+    next = (next + 1) % WINDOW;
+  }
+}
@@ -4,365 +4,622 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 import de.tum.i13.server.kv.KVStore;
 import de.tum.i13.server.threadperconnection.Main;
+import de.tum.i13.server.threadperconnection.ServerRing;
 import de.tum.i13.shared.ServerUtility;
+import de.tum.i13.shared.Span;
+import de.tum.i13.shared.Tracer;
 
 /**
  * This class takes care of the replication process. It is responsible for forwarding every put
  * operation to the replicas, and keeping its replicated data up to date with the respective
- * coordinators.
+ * coordinators. Replicas and coordinators are identified by their address, so a server can have any
+ * amount of them as defined by the replication factor of the hash ring.
+ * 
+ * <p>
+ * With chain replication a server only sends to its successor. Every line is then prefixed with the
+ * address of the coordinator, replicas pass it on until it reaches the tail of the chain, which
+ * acknowledges it back along the chain.
  */
 public class ReplicationManager {
 
   private KVStore kvs;
   private ServerSocket ss;
-  private ReplicationThread[] threads = new ReplicationThread[2];
-  private PrintWriter[] replicaWriters = new PrintWriter[2];
+  private String kvAddress; // address of this server, used by replicas to identify their coordinator
+  private final Map<String, ReplicationThread> threads = new HashMap<String, ReplicationThread>();
+  private final Map<InetSocketAddress, PrintWriter> replicaWriters = new ConcurrentHashMap<InetSocketAddress, PrintWriter>();
+  private volatile List<InetSocketAddress> replicas = new ArrayList<InetSocketAddress>(); // ordered by distance
+  private volatile List<String> coordinators = new ArrayList<String>(); // ordered by distance
+  private volatile ReplicationMode mode = ReplicationMode.FANOUT;
+  private volatile PrintWriter upstream; // predecessor in the chain, receives the acknowledgements
+  private final Map<String, CompletableFuture<Void>> pendingAcks = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+  // fan-out: newest version each replica has acknowledged, writes are forwarded in version order
+  private final Map<InetSocketAddress, Long> replicaAcks = new HashMap<InetSocketAddress, Long>();
+  private static final int ACK_TIMEOUT = 5000;
+  // replicas: newest version of each coordinator up to which all of its writes have been applied
+  private final Map<String, Long> applied = new ConcurrentHashMap<String, Long>();
+  // chain: updates of coordinators this server did not know yet, handled once the ring is updated
+  private final List<String> deferred = new ArrayList<String>();
+  private static final int READ_WAIT = 500;
   private final static Logger logger = Logger.getLogger(Main.class.getName());
 
   public ReplicationManager(KVStore kvs) {
     this.kvs = kvs;
   }
 
+  public void setReplicationMode(ReplicationMode mode) {
+    this.mode = mode;
+  }
+
   // coordinator methods
   /**
-   * Called by a server when one of its replicas has to be changed due to a server starting or
-   * shutting down. This method switches the order of replicas if required then calls
-   * {@link #ReplicationManager setReplica(int, InetSocketAddress)}.
-   * 
-   * @param replicaNum number of the new replica
-   * @param sa socket address of the new replica
-   * @param adding true if the method is called due to a server starting, false if it is called due
-   *        to a server shutting down
-   * @throws IOException
+   * Called by a server whenever its replicas might have changed due to a server starting or
+   * shutting down. Connections to servers that are no longer replicas are closed. New replicas are
+   * reached and receive all the data of this server.
+   *
+   * @param replicas replication addresses of the new replicas
    */
-  public void changeReplica(int replicaNum, InetSocketAddress sa, boolean adding) throws IOException {
-    if (adding || replicaNum == 1) {
-      closeWriter(1);
-      if (replicaNum == 0) {
-        replicaWriters[1] = replicaWriters[0];
-        logger.fine("Connected to replica 1");
+  public synchronized void setReplicas(List<InetSocketAddress> replicas) {
+    this.replicas = new ArrayList<InetSocketAddress>(replicas);
+    for (InetSocketAddress sa : new ArrayList<InetSocketAddress>(replicaWriters.keySet())) {
+      if (!replicas.contains(sa)) {
+        logger.fine("Disconnecting from replica " + sa);
+        replicaWriters.remove(sa).close();
+        synchronized (replicaAcks) {
+          replicaAcks.remove(sa);
+        }
       }
-    } else {
-      closeWriter(0);
-      replicaWriters[0] = replicaWriters[1];
-      logger.fine("Connected to replica " + replicaNum);
-      replicaNum = 1;
-    }
-    
-    setReplica(replicaNum, sa);
-    kvs.replicateData(replicaWriters[replicaNum], 0);
+    }
+
+    for (InetSocketAddress sa : replicas) {
+      if (!replicaWriters.containsKey(sa)) {
+        try {
+          PrintWriter out = setReplica(sa);
+          replicaWriters.put(sa, out); // new updates are forwarded while the existing data is sent
+          if (mode == ReplicationMode.CHAIN) {
+            replicateChain(out);
+          } else {
+            kvs.replicateData(out, 0);
+            synchronized (kvs) { // no write can be assigned a version without being forwarded
+              out.println(kvs.getClock()); // the replica is now up to date
+              out.flush();
+            }
+          }
+        } catch (IOException e) {
+          logger.warning("Unable to reach replica " + sa + ": " + e.getMessage());
+        }
+      }
+    }
   }
 
   /**
-   * Used to set one replica of the server. After the replica has been reached, the replica number
-   * is sent to it so that it can set up the coordinator. The replicated data is then sent to the
-   * new replica.
-   * 
-   * @param replicaNum number of the new replica
+   * Used to set one replica of the server. After the replica has been reached, the address of this
+   * server is sent to it so that it can set up the coordinator.
+   *
    * @param sa socket address of the new replica
    * @throws IOException
    */
-  private Socket setReplica(int replicaNum, InetSocketAddress sa) throws IOException {
+  private PrintWriter setReplica(InetSocketAddress sa) throws IOException {
     Socket s = ServerUtility.connectNonstop(sa);
-    logger.fine("Connected to replica " + replicaNum);
-    replicaWriters[replicaNum] = new PrintWriter(s.getOutputStream());
-    replicaWriters[replicaNum].println(replicaNum);
-    replicaWriters[replicaNum].flush();
-    return s;
+    logger.fine("Connected to replica " + sa);
+    PrintWriter out = new PrintWriter(s.getOutputStream());
+    out.println(kvAddress);
+    out.flush();
+    new AckThread(s, sa).start();
+    return out;
+  }
+
+  /**
+   * Sends all data the successor has to store to it: the data of this server and the replicated
+   * data of every coordinator this server is not the tail for.
+   *
+   * @param out connection to the successor
+   */
+  private void replicateChain(PrintWriter out) {
+    kvs.replicateData(out, 0, kvAddress + " ");
+    List<String> current = coordinators;
+    for (int i = 0; i < current.size() - 1; i++) {
+      int folder = kvs.getReplicaFolder(current.get(i));
+      if (folder != -1) {
+        kvs.replicateData(out, folder, current.get(i) + " ");
+      }
+    }
   }
 
   /**
    * Used to send data to replicas. Called by the KVStore after a successful put or delete operation. The parameter
-   * <code>cmd</code> contains either a key and value seperated by a space for a put operation or just the key for a delete operation.
-   * 
+   * <code>cmd</code> contains the key, version and value seperated by spaces for a put operation or just the key and
+   * version for a delete operation.
+   *
    * @param cmd
    */
   public void forward(String cmd) {
-    for (PrintWriter out : replicaWriters) {
-      if (out != null) {
+    long start = System.nanoTime();
+    if (mode == ReplicationMode.CHAIN) {
+      if (!replicaWriters.isEmpty()) {
+        String[] kv = cmd.split("\\s", 3);
+        pendingAcks.put(kv[0] + " " + kv[1], new CompletableFuture<Void>());
+      }
+      cmd = kvAddress + " " + cmd;
+    }
+    Span span = kvs.getTracer().start("replication.forward");
+    try {
+      cmd = Tracer.header() + cmd; // replicas continue the trace of the write
+      for (PrintWriter out : replicaWriters.values()) {
         out.println(cmd);
         out.flush();
       }
+    } finally {
+      if (span != null) {
+        span.close();
+      }
     }
+    kvs.latencies.recordSince("replication.forward", start);
   }
 
   /**
-   * Closes the writer dedicated to the replica <code>replicaNum</code> if it is set up.
-   * 
-   * @param replicaNum
+   * Returns how many updates forwarded along the chain have not been acknowledged by the tail yet
+   *
+   * @return pending acknowledgements, always 0 without chain replication
    */
-  private void closeWriter(int replicaNum) {
-    if (replicaWriters[replicaNum] != null) {
-      replicaWriters[replicaNum].close();
-    }
+  public int getPendingAcks() {
+    return pendingAcks.size();
   }
 
+  public int getReplicaCount() {
+    return replicaWriters.size();
+  }
+
+  public ReplicationMode getReplicationMode() {
+    return mode;
+  }
 
-  // replica methods
   /**
-   * This method is called by a new server to set up both of its coordinators and start them up. The
-   * server socket used to communicate with coordinators is set up.
-   * 
-   * @param port port that the coordinators are using to reach this server
+   * Returns how many coordinators this server stores replicas for
+   *
+   * @return coordinators, 0 if replication is not active
    */
-  public void openReplicationSocket(int port) {
-    try {
-      ss = new ServerSocket(port);
-      logger.finest("Waiting on port " + port + " for coordinators");
-      for (int i = 0; i <= 1; i++) {
-        Socket s = ss.accept();
-        int replicaNum = s.getInputStream().read() - '0';
-        threads[replicaNum] = new ReplicationThread(s, replicaNum);
-        threads[replicaNum].start();
+  public int getCoordinatorCount() {
+    return coordinators.size();
+  }
+
+  /**
+   * Sends the given keys of this server to its furthest replica in the background. Called after a
+   * replica has been promoted, as the other replicas already store these keys. With chain
+   * replication the keys travel along the whole chain. With fan-out replication their versions are
+   * negated, as they are copies of writes of other coordinators that must not be taken as writes of
+   * this server (see {@link #awaitApplied(String, long)}).
+   *
+   * @param keys
+   */
+  public void replicateToLastReplica(String[] keys) {
+    List<InetSocketAddress> current = replicas;
+    if (current.isEmpty()) {
+      return;
+    }
+    PrintWriter out = replicaWriters.get(current.get(current.size() - 1));
+    if (out == null) {
+      return;
+    }
+    String prefix = mode == ReplicationMode.CHAIN ? kvAddress + " " : "";
+    new Thread(() -> {
+      int counter = 0;
+      for (String k : keys) {
+        String line = kvs.replicationLine(k);
+        if (line != null) {
+          if (mode == ReplicationMode.FANOUT) {
+            String[] kv = line.split("\\s", 3);
+            line = kv[0] + " -" + kv[1] + " " + kv[2];
+          }
+          out.println(prefix + line);
+          counter++;
+        }
       }
-    } catch (IOException e) {
+      out.flush();
+      logger.fine("Sent " + counter + " promoted keys to replica " + current.get(current.size() - 1));
+    }).start();
+  }
+
+  /**
+   * Waits until the write has been acknowledged. With chain replication the tail acknowledges it
+   * for the whole chain, with fan-out replication <code>replicas</code> replicas have to
+   * acknowledge it. Returns immediately if chain replication is not used and no acknowledgement is
+   * required, or the update has not been sent to a replica.
+   *
+   * @param key
+   * @param version
+   * @param replicas replicas that have to acknowledge a fan-out write, see ConsistencyLevel
+   * @return true if the write has been acknowledged in time
+   */
+  public boolean awaitAck(String key, long version, int replicas) {
+    if (mode == ReplicationMode.FANOUT) {
+      return awaitReplicaAcks(version, replicas);
+    }
+    String id = key + " " + version;
+    CompletableFuture<Void> ack = pendingAcks.get(id);
+    if (ack == null) {
+      return true;
+    }
+    try {
+      ack.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      logger.warning("Tail did not acknowledge VERSION " + version + " of KEY " + key);
+    } catch (InterruptedException | ExecutionException e) {
       e.printStackTrace();
+    } finally {
+      pendingAcks.remove(id);
     }
+    return false;
   }
 
   /**
-   * Called by a running server when one of its coordinators has to be changed due to a server
-   * starting or shutting down. This method switches the order of coordinators if required then
-   * waits for the new coordinator to reach out.
-   * 
-   * @param coordinatorNum number of the new coordinator
-   * @param adding true if the method is called due to a server starting, false if it is called due
-   *        to a server shutting down
-   * @throws IOException
+   * Waits until <code>count</code> replicas have acknowledged a forwarded write of the given
+   * version or a newer one
+   *
+   * @param version
+   * @param count
+   * @return true if enough replicas acknowledged it in time
    */
-  public void changeCoordinator(int coordinatorNum, boolean adding) {
-    try {
-      logger.finest("Changing the coordinator");
-      if (adding || coordinatorNum == 1) {
-        closeReplicationThread(1);
-        if (coordinatorNum == 0) {
-          switchReplicationThreads(0);
-          logger.fine("Established connection to coordinator 1");
+  private boolean awaitReplicaAcks(long version, int count) {
+    if (count <= 0) {
+      return true;
+    }
+    if (replicaWriters.size() < count) {
+      logger.warning("Only " + replicaWriters.size() + " replicas available, " + count + " have to acknowledge");
+      return false;
+    }
+    long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+    synchronized (replicaAcks) {
+      long remaining;
+      while (acknowledged(version) < count && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          replicaAcks.wait(remaining);
+        } catch (InterruptedException e) {
+          return false;
         }
-      } else {
-        addToResponsibility();
-        closeReplicationThread(0);
-        switchReplicationThreads(1);
-        logger.fine("Established connection to coordinator 0");
-        coordinatorNum = 1;
       }
+      if (acknowledged(version) < count) {
+        logger.warning("Only " + acknowledged(version) + " of " + count + " replicas acknowledged VERSION " + version);
+        return false;
+      }
+      return true;
+    }
+  }
 
-      Socket s = ss.accept();
-      s.getInputStream().read(); // unimportant
-      threads[coordinatorNum] = new ReplicationThread(s, coordinatorNum);
-      threads[coordinatorNum].start();
-    } catch (IOException e) {
-      e.printStackTrace();
+  private int acknowledged(long version) {
+    int count = 0;
+    for (long acked : replicaAcks.values()) {
+      if (acked >= version) {
+        count++;
+      }
     }
+    return count;
   }
 
+
+  // replica methods
   /**
-   * Called when the predecessor of the server has closed. The server is now the coordinator for all
-   * the data of its closed predecessor, so it should transfer the keys and send them to its
-   * replicas.
+   * Waits until this server has applied all writes of <code>coordinator</code> up to the given
+   * version, so that a client reads its own writes. With chain replication the tail has applied a
+   * write before the client is answered, so there is nothing to wait for.
+   *
+   * @param coordinator
+   * @param version session token of the client
+   * @return true if the version has been applied, false if it has not been applied in time
    */
-  private void addToResponsibility() {
-    kvs.addToResponsibility();
-    logger.fine("Sending new data to replicas");
-    for (PrintWriter out : replicaWriters) {
-      if (out != null) {
-        kvs.replicateData(out, 1);
+  public boolean awaitApplied(String coordinator, long version) {
+    if (mode == ReplicationMode.CHAIN) {
+      return true;
+    }
+    long deadline = System.currentTimeMillis() + READ_WAIT;
+    synchronized (applied) {
+      long remaining;
+      while (applied.getOrDefault(coordinator, -1L) < version
+          && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          applied.wait(remaining);
+        } catch (InterruptedException e) {
+          return false;
+        }
       }
+      return applied.getOrDefault(coordinator, -1L) >= version;
     }
   }
 
   /**
-   * Closes the thread dedicated to coordinator <code>coordinatorNum</code> if it is set up and
-   * deletes all coordinator data from the server.
-   * 
-   * @param coordinatorNum
+   * Handles a line sent by <code>coordinator</code>. A line consisting of a single version marks
+   * that all writes of the coordinator up to that version have been sent, afterwards every applied
+   * write raises that version and is acknowledged to the coordinator. Lines with a negative version
+   * are copies of promoted keys, they are applied with the positive version only.
+   *
+   * @param coordinator
+   * @param line key, version and value (missing for deletes) or the version only
+   * @param acks connection back to the coordinator
    */
-  private void closeReplicationThread(int coordinatorNum) throws IOException {
-    if (threads[coordinatorNum] != null) {
-      threads[coordinatorNum].close();
-      kvs.emptyDirectory(coordinatorNum + 1);
+  private void applyFanout(String coordinator, String line, PrintWriter acks) {
+    String[] cmd = line.split("\\s", 3);
+    long version = Long.parseLong(cmd.length == 1 ? cmd[0] : cmd[1]);
+    if (version < 0) { // not a write of the coordinator, its version may be newer than its writes
+      cmd[1] = Long.toString(-version);
+      apply(coordinator, cmd);
+      return;
+    }
+    if (cmd.length > 1) {
+      apply(coordinator, cmd);
+    }
+    boolean synced;
+    synchronized (applied) {
+      if (cmd.length == 1) {
+        applied.merge(coordinator, version, Math::max);
+      } else {
+        applied.computeIfPresent(coordinator, (c, v) -> Math.max(v, version));
+      }
+      synced = applied.containsKey(coordinator);
+      applied.notifyAll();
+    }
+    if (synced) { // before, the data is still being sent and the coordinator does not wait for it
+      acks.println(version);
+      acks.flush();
     }
   }
 
   /**
-   * Used to change the position of coordinator <code>coordinatorNum</code>.
-   * 
-   * @param coordinatorNum
+   * This method is called by a new server to open the server socket used by its coordinators. The
+   * coordinators are accepted in the background, so they can reach the server at any time.
+   *
+   * @param port port that the coordinators are using to reach this server
+   * @param kvAddress address of this server
    */
-  private void switchReplicationThreads(int coordinatorNum) {
-    int otherNum = (coordinatorNum + 1) % 2;
-    threads[otherNum] = threads[coordinatorNum];
-    kvs.replaceReplica(coordinatorNum + 1);
+  public void openReplicationSocket(int port, String kvAddress) {
+    this.kvAddress = kvAddress;
+    try {
+      ss = new ServerSocket(port);
+      logger.finest("Waiting on port " + port + " for coordinators");
+      new AcceptThread().start();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
-
-  // replication setup methods
   /**
-   * Called by the third server (moderator) to join the hash ring. The moderator is responsible for
-   * the communication between the three servers. It receives the address of the leader and sends it
-   * over to the follower, while also using it to establish a connection to the leader.
-   * 
-   * @param port
-   * @throws IOException
-   * @throws InterruptedException
+   * Called by a running server after the hash ring has changed. Replicated data of servers that are
+   * no longer coordinators of this server is deleted. If such a server has left the hash ring, its
+   * replica is promoted instead (see {@link KVStore#addToResponsibility(String, ServerRing)}). With
+   * chain replication the successor receives the data it has to store again if a new coordinator has
+   * been added, as its updates might have arrived before the hash ring was updated.
+   *
+   * @param sr updated server ring
    */
-  public void setup(int port) throws IOException, InterruptedException {
-    ss = new ServerSocket(port);
-    BufferedReader[] brs = new BufferedReader[2];
-    PrintWriter[] outs = new PrintWriter[2];
-
-    // setup coordinators and establish communication to both servers
-    logger.finest("Waiting on port " + port + " for coordinators");
-    for (int i = 0; i <= 1; i++) {
-      Socket s = ss.accept();
-      BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream()));
-      int replicaNum = br.read() - '0';
-      brs[replicaNum] = br;
-      outs[replicaNum] = new PrintWriter(s.getOutputStream());
-      threads[replicaNum] = new ReplicationThread(s, replicaNum);
-    }
-
-    // inform servers to start the next step
-    for (PrintWriter out : outs) {
-      out.println("y");
-      out.flush();
+  public void updateCoordinators(ServerRing sr) {
+    List<String> previous = coordinators;
+    List<String> pending;
+    synchronized (deferred) {
+      coordinators = new ArrayList<String>(sr.getCoordinators());
+      pending = new ArrayList<String>(deferred);
+      deferred.clear();
+    }
+    if (mode == ReplicationMode.CHAIN && !previous.containsAll(coordinators)) {
+      replicaWriters.values().forEach(this::replicateChain);
+    }
+    for (String line : pending) {
+      int distance = coordinators.indexOf(line.split("\\s", 2)[0]);
+      if (distance == -1) { // not a coordinator of this server after all
+        logger.fine("Dropping chain update of unknown coordinator: " + line);
+      } else {
+        continueChain(line, distance);
+      }
     }
+    for (String coordinator : kvs.getReplicatedCoordinators()) {
+      if (!coordinators.contains(coordinator)) {
+        closeReplicationThread(coordinator);
+        if (!sr.contains(coordinator)) {
+          kvs.addToResponsibility(coordinator, sr);
+        } else {
+          kvs.freeReplicaFolder(coordinator);
+        }
+      }
+    }
+  }
 
-    // setup replicas and inform the follower server of the leaders address
-    for (int i = 1; i >= 0; i--) {
-      String address = readNoNull(brs[i]);
-      port = Integer.parseInt(readNoNull(brs[i]));
-      PrintWriter out = outs[(i + 1) % 2];
-      sendSocketAddress(out, address, port);
-      InetSocketAddress sa = new InetSocketAddress(address, port);
-      setReplica((i + 1) % 2, sa);
-      threads[i].start();
-    } 
-    
-    for (int i = 0; i<=1; i++) {
-      kvs.replicateData(replicaWriters[i], 0); 
+  /**
+   * Closes the thread dedicated to coordinator <code>coordinator</code> if it is set up.
+   *
+   * @param coordinator
+   */
+  private void closeReplicationThread(String coordinator) {
+    ReplicationThread thread;
+    synchronized (threads) {
+      thread = threads.remove(coordinator);
+    }
+    if (thread != null) {
+      thread.close();
     }
   }
-  
-  private String readNoNull(BufferedReader br) throws IOException {
-    String res = br.readLine();
-    while (res.isBlank()) {
-      res = br.readLine();
+
+  /**
+   * Used when a server is shutting down to halt the replication process.
+   *
+   * @throws IOException
+   */
+  public void endReplication() throws IOException {
+    logger.info("Ending connection to coordinators and replicas");
+    synchronized (threads) {
+      threads.values().forEach(ReplicationThread::close);
+      threads.clear();
+    }
+    replicaWriters.values().forEach(PrintWriter::close);
+    replicaWriters.clear();
+    if (ss != null) {
+      ss.close();
     }
-    return res;
   }
 
   /**
-   * Called by both servers in the hash ring when a third one (moderator) joins. Sets the replica
-   * for the moderator first, then each server takes over as the leader while the other is in the
-   * follower position.
-   * 
-   * @param replicaNum
-   * @param socketAddress
-   * @param myPort
+   * Accepts coordinators of this server. Each coordinator introduces itself with its address and is
+   * then handled by its own {@link ReplicationThread}.
    */
-  public void startupReplica(int replicaNum, InetSocketAddress socketAddress, int myPort) {
-    try {
-      Socket s = setReplica(replicaNum, socketAddress);
-      BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream()));
-      readNoNull(br);
-      if (replicaNum == 1) {
-        leader(replicaWriters[1], myPort);
-        follower(br, 0);
-      } else {
-        follower(br, 1);
-        leader(replicaWriters[0], myPort);
-      }     
-      for (PrintWriter out : replicaWriters) {
-        kvs.replicateData(out, 0); 
+  private class AcceptThread extends Thread {
+    @Override
+    public void run() {
+      try {
+        while (!ss.isClosed()) {
+          Socket s = ss.accept();
+          BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+          String coordinator = in.readLine();
+          if (coordinator == null) {
+            s.close();
+            continue;
+          }
+          ReplicationThread thread = new ReplicationThread(s, in, coordinator);
+          ReplicationThread previous;
+          synchronized (threads) {
+            previous = threads.put(coordinator, thread);
+          }
+          if (previous != null) {
+            previous.close();
+          }
+          thread.start();
+        }
+      } catch (SocketException e) { // replication socket has been closed
+      } catch (IOException e) {
+        e.printStackTrace();
       }
-    } catch (IOException e) {
-      e.printStackTrace();
     }
   }
 
   /**
-   * Used to setup coordinators. A server socket is opened and its address gets sent to both
-   * followers through the moderator
-   * 
-   * @param out
-   * @throws IOException
+   * Applies an update of <code>coordinator</code> to its replica directory.
+   *
+   * @param coordinator
+   * @param cmd key, version and value (missing for deletes)
    */
-  private void leader(PrintWriter out, int port) throws IOException {
-    String address = InetAddress.getLocalHost().getHostAddress();
-    sendSocketAddress(out, address, port);
-    openReplicationSocket(port);
+  private void apply(String coordinator, String[] cmd) {
+    long start = System.nanoTime();
+    synchronized (kvs) {
+      kvs.setLookID(kvs.allocateReplicaFolder(coordinator));
+      if (cmd.length == 3) {
+        kvs.put(cmd[0], cmd[2], Long.parseLong(cmd[1]));
+      }
+      else {
+        kvs.delete(cmd[0], Long.parseLong(cmd[1]));
+      }
+    }
+    kvs.latencies.recordSince("replication.apply", start);
   }
 
   /**
-   * Used to setup replicas, the address of which is provided by the moderator.
-   * 
-   * @param br
-   * @param num
-   * @throws IOException
+   * Handles an update that travels along the chain. It is passed on to the successor unless this
+   * server is the tail of the coordinator's chain, in which case it is acknowledged. Updates of a
+   * coordinator that is not in the hash ring of this server yet are kept until it has been updated.
+   *
+   * @param line coordinator, key, version and value (missing for deletes)
    */
-  private void follower(BufferedReader br, int num) throws IOException {
-    String address = br.readLine();
-    int port = Integer.parseInt(br.readLine());
-    InetSocketAddress sa = new InetSocketAddress(address, port);
-    setReplica(num, sa);
+  private void applyChain(String line) {
+    String[] tokens = line.split("\\s", 2);
+    String coordinator = tokens[0];
+    apply(coordinator, tokens[1].split("\\s", 3));
+
+    int distance;
+    synchronized (deferred) {
+      distance = coordinators.indexOf(coordinator);
+      if (distance == -1) {
+        deferred.add(line);
+        return;
+      }
+    }
+    continueChain(line, distance);
   }
 
-  private void sendSocketAddress(PrintWriter out, String address, int port) {
-    out.println(address);
-    out.println(port);
-    out.flush();
+  /**
+   * Passes an applied update on to the successor or acknowledges it if this server is the tail
+   *
+   * @param line coordinator, key, version and value (missing for deletes)
+   * @param distance position of the coordinator among the coordinators of this server
+   */
+  private void continueChain(String line, int distance) {
+    if (distance < coordinators.size() - 1) {
+      line = Tracer.header() + line;
+      for (PrintWriter out : replicaWriters.values()) {
+        out.println(line);
+        out.flush();
+      }
+    } else {
+      String[] ack = line.split("\\s", 4);
+      acknowledge(ack[0] + " " + ack[1] + " " + ack[2]);
+    }
   }
 
   /**
-   * Used when a server is shutting down or when replication is no longer active to halt the
-   * replication process.
-   * 
-   * @throws IOException
+   * Sends an acknowledgement back to the predecessor in the chain.
+   *
+   * @param ack coordinator, key and version
    */
-  public void endReplication() throws IOException {
-    logger.info("Ending connection to coordinators and replicas");
-    for (int i = 0; i <= 1; i++) {
-      closeReplicationThread(i);
-      closeWriter(i);
+  private void acknowledge(String ack) {
+    PrintWriter out = upstream;
+    if (out != null) {
+      synchronized (out) {
+        out.println(ack);
+        out.flush();
+      }
     }
-    ss.close();
   }
 
   private class ReplicationThread extends Thread {
-    private final int coordinatorNum;
+    private final String coordinator; // predecessor with chain replication
     private final Socket s;
-    private boolean running = true;
+    private final BufferedReader in;
+    private volatile boolean running = true;
 
-    public ReplicationThread(Socket s, int coordinatorNum) {
-      logger.fine("Established connection to coordinator " + coordinatorNum);
-      this.coordinatorNum = coordinatorNum;
+    public ReplicationThread(Socket s, BufferedReader in, String coordinator) {
+      logger.fine("Established connection to coordinator " + coordinator);
+      this.coordinator = coordinator;
       this.s = s;
+      this.in = in;
     }
 
     @Override
     public void run() {
-      try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+      try (in) {
+        PrintWriter acks = new PrintWriter(s.getOutputStream());
+        if (mode == ReplicationMode.CHAIN) {
+          upstream = acks;
+        } else {
+          applied.remove(coordinator); // not up to date until the coordinator has sent its data
+        }
         String line;
         while (running && (line = in.readLine()) != null) {
-          if (line.length() != 0) {
-          String[] cmd = line.split("\\s", 2);
-            synchronized (kvs) {
-              kvs.setLookID(coordinatorNum + 1);
-              if (cmd.length == 2) {
-                kvs.put(cmd[0], cmd[1]); 
-              }
-              else {
-                kvs.delete(cmd[0]);
-              }
+          if (line.length() == 0) {
+            continue;
+          }
+          String[] traced = Tracer.split(line); // context of a traced write and the update
+          Span span = kvs.getTracer().start("replication.apply", traced[0]);
+          try {
+            if (mode == ReplicationMode.CHAIN) {
+              applyChain(traced[1]);
+            } else {
+              applyFanout(coordinator, traced[1], acks);
+            }
+          } finally {
+            if (span != null) {
+              span.close();
             }
           }
         }
@@ -373,11 +630,60 @@ public class ReplicationManager {
       } catch (IOException e) {
         e.printStackTrace();
       }
+
+      if (running && mode == ReplicationMode.FANOUT && !coordinators.contains(coordinator)) { // replica is no longer needed
+        kvs.freeReplicaFolder(coordinator);
+      }
     }
 
-    public void close() throws IOException {
+    public void close() {
       running = false;
-      s.close();
+      try {
+        s.close();
+      } catch (IOException e) { // nothing to handle, connection is closed anyway
+      }
+    }
+  }
+
+  /**
+   * Reads the acknowledgements a replica sends back. With fan-out replication every replica
+   * acknowledges the versions it has applied. With chain replication acknowledgements of updates of
+   * this server complete the waiting write, the others are passed on to the predecessor.
+   */
+  private class AckThread extends Thread {
+    private final Socket s;
+    private final InetSocketAddress replica;
+
+    public AckThread(Socket s, InetSocketAddress replica) {
+      this.s = s;
+      this.replica = replica;
+    }
+
+    @Override
+    public void run() {
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (mode == ReplicationMode.FANOUT) {
+            long version = Long.parseLong(line);
+            synchronized (replicaAcks) {
+              replicaAcks.merge(replica, version, Math::max);
+              replicaAcks.notifyAll();
+            }
+            continue;
+          }
+          String[] ack = line.split("\\s", 2); // coordinator, key and version
+          if (ack[0].equals(kvAddress)) {
+            CompletableFuture<Void> pending = pendingAcks.remove(ack[1]);
+            if (pending != null) {
+              pending.complete(null);
+            }
+          } else {
+            acknowledge(line);
+          }
+        }
+      } catch (IOException e) { // connection to the successor has been closed
+      }
     }
   }
 }
@@ -0,0 +1,11 @@
+package de.tum.i13.server.ecs;
+
+/**
+ * Defines how updates travel from a coordinator to its replicas. With <code>FANOUT</code> the
+ * coordinator sends every update to all of its replicas. With <code>CHAIN</code> the update travels
+ * along the ring (coordinator, successor 1, successor 2, ...), the last replica (tail) acknowledges
+ * it and serves the reads.
+ */
+public enum ReplicationMode {
+  FANOUT, CHAIN;
+}
@@ -5,231 +5,132 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
-import de.tum.i13.shared.ServerUtility;
 
 /**
- * Is responsible for one server to keep it always updated
+ * Is responsible for one server to keep it always updated. Messages for the server are queued by
+ * the {@link ClusterManager} and sent by this thread in order, so that no server waits for another.
  */
 public class ServerCommThread extends Thread {
   private static final Logger logger = Logger.getLogger(MainECS.class.getName());
-  private String kvAddress;
+  private static final Runnable STOP = () -> {
+  };
+  private final String kvAddress;
+  private final double weight; // capacity of the server relative to the others
   private final Socket serverSocket;
-  private BufferedReader in;
-  private final ECSLibrary lib;
+  private final BufferedReader in;
+  final ECSLibrary lib;
   private final HashRing hr;
-  
-  private static enum Event {OPEN, CLOSE, UPDATE};
-  private static volatile Event currentEvent;
-  private static volatile String eventAddress;
-  private static volatile HashMap<String, InetSocketAddress> repList;
-  private static volatile CloseLock closeLock;
+  private final ClusterManager cluster;
+  private final BlockingQueue<Runnable> outbox = new LinkedBlockingQueue<Runnable>();
+  private long sentEpoch = -1; // version of the hash ring the server knows
+  private volatile List<InetSocketAddress> sentReplicas;
+
   private static volatile HashSet<String> users = new HashSet<String>();
 
-  public ServerCommThread(Socket serverSocket, HashRing hr) throws IOException {
-    this.hr = hr;
-    synchronized (hr) {
-      if (repList == null) {
-        repList = new HashMap<String, InetSocketAddress>();
-        closeLock = new CloseLock();
-      }
-    }
+  public ServerCommThread(Socket serverSocket, ClusterManager cluster) throws IOException {
+    this.cluster = cluster;
+    this.hr = cluster.getHashRing();
     this.serverSocket = serverSocket;
     PrintWriter out = new PrintWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
     in = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
     kvAddress = in.readLine();
+    String weightLine = in.readLine();
+    if (kvAddress == null || weightLine == null) {
+      throw new IOException("connection closed before the server introduced itself");
+    }
+    weight = Double.parseDouble(weightLine);
     lib = new ECSLibrary(out);
   }
 
   @Override
   public void run() {
+    cluster.join(this);
     new SignalThread().start();
 
     try {
-      addServer();
-    } catch (IOException e) {
-      logger.warning("Error during adding server " + kvAddress);
-    }
-
-    while (true) {
-      synchronized (hr) {
-        waitForEvent();
-
-        if (serverSocket.isClosed()) { // server has shutdown
-          break;
-        }
-
-        switch (currentEvent) {
-          case OPEN: {
-            updateServer();
-            openAction();
-            break;
-          }
-
-          case CLOSE: {
-            updateServer();
-            closeAction();
-            break;
-          }
-
-          case UPDATE: {
-            closeLock.unlock();
-            updateServer();
-            break;
-          }
-        }
+      for (Runnable message = outbox.take(); message != STOP; message = outbox.take()) {
+        message.run();
       }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
     }
-
   }
 
-  /**
-   * This method integrates the new server into the system. It is added into the hash ring, has its
-   * coordinators and replicas setup and receives its share of the data.
-   * 
-   * @throws IOException
-   */
-  private void addServer() throws IOException {
-    synchronized (hr) {
-      logger.info("Server " + kvAddress + " connected");
-      eventAddress = kvAddress;
-      hr.addServer(kvAddress);
-      updateServer();
-
-      String address = InetAddress.getLocalHost().getHostAddress();
-      lib.setFreeEventPort(address);
-      int repPort = addReplicationPort(address);
-
-      if (!hr.onlyOneServer()) { // data transfer is required
-        lib.sendSenderPort();
-      }
-      if (hr.replicationSwitch()) {
-        lib.startReplication(repPort);
-      } else if (hr.replicationActive()) {
-        lib.openReplicationPort(repPort);
-        ArrayList<String> replicas = hr.getReplicas(eventAddress);
-        lib.setReplica(0, repList.get(replicas.get(0)), true);
-        lib.setReplica(1, repList.get(replicas.get(1)), true);
-      }
-
-      setEvent(Event.OPEN);
-    }
+  String getKvAddress() {
+    return kvAddress;
   }
 
-  /**
-   * Called when a server has started. Coordinators of the new server have to adjust their replicas
-   * and replicas of the new server have to adjust their coordinators. The direct successor also has
-   * to send data to the new server.
-   */
-  private void openAction() {
-    if (kvAddress.equals(hr.getSuccessor(eventAddress))) {
-      lib.sendReceiverAddress(eventAddress, false);
-    }
-    
-    int index;
-    if (hr.replicationSwitch()) {
-      if ((index = hr.getCoordinators(eventAddress).indexOf(kvAddress)) != -1) {
-        lib.startup(index, repList.get(eventAddress), repList.get(kvAddress).getPort());
-      }
-    }
-
-    else if (hr.replicationActive()) {   
-      if ((index = hr.getCoordinators(eventAddress).indexOf(kvAddress)) != -1) {
-        lib.setReplica(index, repList.get(eventAddress), true);
-      }      
-      if ((index = hr.getReplicas(eventAddress).indexOf(kvAddress)) != -1) {
-        lib.setCoordinator(index, true);
-      }
-    }
+  double getWeight() {
+    return weight;
   }
 
   /**
-   * Called when a server has shut down. Coordinators of the closed server have to adjust their
-   * replicas and replicas of the closed server have to adjust their coordinators. The direct
-   * successor also has to receive data from the closed server.
+   * Queues messages for the server
+   * 
+   * @param message sends one or more messages using {@link #lib}
    */
-  private void closeAction() {
-    if (hr.replicationSwitch()) {
-      lib.endReplication();
-      if (kvAddress.equals(hr.getSuccessor(eventAddress))) {
-        lib.sendSenderPort();
-      }
-    }
-
-    else if (hr.replicationActive()) {
-      int index;
-      if ((index = hr.getCoordinators(eventAddress).indexOf(kvAddress)) != -1) {
-        String replica = hr.getReplicas(eventAddress).get((index+1) % 2);
-        lib.setReplica(index, repList.get(replica), false);
-      }  
-      if ((index = hr.getReplicas(eventAddress).indexOf(kvAddress)) != -1) {
-        lib.setCoordinator(index, false);
-      }
-    }
-
-    else if (kvAddress.equals(hr.getSuccessor(eventAddress))) {
-      lib.sendSenderPort();
-    }
+  void send(Runnable message) {
+    outbox.add(message);
   }
 
   /**
-   * Finds an empty port on the provided address and assigns that port as a replication port for it.
-   * 
-   * @param address
-   * @returns the new replication port
-   * @throws IOException
+   * Lets this thread end after the queued messages have been sent
    */
-  private int addReplicationPort(String address) {
-    int repPort = -1;
-    try {
-      do {
-        repPort = ServerUtility.getFreePort(address);
-      } while (repPort == lib.getEventPort());
-      InetSocketAddress socketaddress = new InetSocketAddress(address, repPort);
-      repList.put(kvAddress, socketaddress);
-    } catch (IOException e) {
-      logger.severe("Unable to assign replication port");
-    }
-    return repPort;
+  void stopSending() {
+    outbox.add(STOP);
   }
 
   /**
-   * Waits until a thread informs it that the hash ring has changed and it needs to update.
-   * Triggered by {@link #setEvent(Event)}.
+   * Sends the newest version of metadata and the current replicas to the server. Metadata is only
+   * sent if it has changed, and then only the changes if the ECS still knows them. With chain
+   * replication the server only sends updates to its successor.
    */
-  private void waitForEvent() {
-    try {
-      hr.wait();
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+  void updateServer() {
+    long epoch = hr.getEpoch();
+    if (epoch != sentEpoch) {
+      String delta = sentEpoch < 0 ? null : hr.getDelta(sentEpoch);
+      if (delta == null) {
+        lib.updateServer(hr.getKeyRange(), epoch);
+      } else {
+        lib.updateServer(sentEpoch, epoch, delta);
+      }
+      sentEpoch = epoch;
     }
+    sentReplicas = replicas();
+    lib.setReplicas(sentReplicas);
   }
 
   /**
-   * Sends the newest version of metadata to the server
+   * Checks whether the replicas of the server have changed since they were last sent, so that it
+   * has to be updated even if it learns the ring by gossip.
    */
-  private void updateServer() {
-    lib.updateServer(hr.getKeyRange());
+  boolean replicasChanged() {
+    return !replicas().equals(sentReplicas);
   }
 
-  /**
-   * Informs other servers that the hash ring has changed and they need to update accordingly
-   * 
-   * @param event describes whether a new server has started (<code>OPEN</code>), a server has shut
-   *        down (<code>CLOSE</code>) or a regular update is needed (<code>UPDATE</code>)
-   */
-  private void setEvent(Event event) {
-    currentEvent = event;
-    hr.notifyAll();
+  private List<InetSocketAddress> replicas() {
+    ArrayList<InetSocketAddress> replicas = new ArrayList<InetSocketAddress>();
+    List<String> targets = hr.getReplicas(kvAddress);
+    if (hr.getReplicationMode() == ReplicationMode.CHAIN && !targets.isEmpty()) {
+      targets = targets.subList(0, 1);
+    }
+    for (String replica : targets) {
+      InetSocketAddress sa = cluster.getReplicationAddress(replica);
+      if (sa != null) {
+        replicas.add(sa);
+      }
+    }
+    return replicas;
   }
 
   /////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -240,12 +141,11 @@ public class ServerCommThread extends Thread {
    * Receives signal from server that is is ready to close or receive data
    */
   private class SignalThread extends Thread {
-    private boolean running = true;
-    private Thread pingThread;
-    private final Timer pinger = new Timer();
-    
+    private volatile boolean running = true;
+    private final HeartbeatMonitor heartbeats = cluster.getHeartbeats();
+
     public SignalThread() {
-      pinger.scheduleAtFixedRate(new PingTask(), 15000, 1500);
+      heartbeats.watch(kvAddress, this::shutdown);
     }
 
     @Override
@@ -254,19 +154,18 @@ public class ServerCommThread extends Thread {
         readLoop: while (!serverSocket.isClosed()) {
           String line = in.readLine();
           //System.out.println("ECS: server " + kvAddress + " says " + line);
+          if (line == null) { // connection closed by the server
+            break;
+          }
           switch (line) {
             case "closing": {
-              logger.info("Server " + kvAddress + " closing..");
-              pinger.cancel();
-              closeLock.lock();
-              synchronized (hr) {
-                if (hr.onlyOneServer()) {
-                  break readLoop;
-                } else {
-                  transferData();
-                }
-              }
-              lib.close();
+              heartbeats.unwatch(kvAddress); // stops sending heartbeats
+              cluster.leave(kvAddress);
+              break;
+            }
+
+            case "received": {
+              cluster.finished(kvAddress);
               break;
             }
 
@@ -275,10 +174,9 @@ public class ServerCommThread extends Thread {
               break readLoop;
             }
 
+            case "heartbeat":
             case "pong": {
-              if (pingThread != null) {
-                pingThread.interrupt(); 
-              }
+              heartbeats.heartbeat(kvAddress);
               break;
             }
             
@@ -297,6 +195,17 @@ public class ServerCommThread extends Thread {
               break;
             }
             
+            case "load": {
+              int count = Integer.parseInt(in.readLine());
+              HashMap<String, Long> requests = new HashMap<String, Long>();
+              for (int i = 0; i < count; i++) {
+                String[] range = in.readLine().split(" ");
+                requests.put(range[0], Long.parseLong(range[1]));
+              }
+              cluster.report(kvAddress, requests);
+              break;
+            }
+
             case "removeUser": {
               String username = in.readLine();
               boolean success = users.remove(username);
@@ -317,12 +226,9 @@ public class ServerCommThread extends Thread {
         logger.severe("Error with ServerCommThread of server " + kvAddress + ": " + e.getMessage());
       }
       
+      heartbeats.unwatch(kvAddress);
       lib.close();
-      repList.remove(kvAddress);
-      synchronized (hr) {
-        hr.removeServer(kvAddress);
-        setEvent(Event.UPDATE);
-      }
+      cluster.remove(kvAddress);
       
       try {
         serverSocket.close();
@@ -331,52 +237,18 @@ public class ServerCommThread extends Thread {
       }
     }
 
-    private void transferData() throws IOException {
-      eventAddress = kvAddress;
-      if (!hr.replicationActive() || hr.replicationSwitch()) {
-        String successor = hr.getSuccessor(eventAddress);
-        lib.setFreeEventPort(ServerUtility.getAddress(successor));
-        lib.sendReceiverAddress(successor, true);
-      } else {
-        lib.endReplication();
-        lib.close();
-      }
-      setEvent(Event.CLOSE);
-    }
-
-    private void shutdown() throws IOException {
+    /**
+     * Closes the connection to a server that is suspected to have failed, which removes it from the
+     * ring.
+     */
+    private void shutdown() {
       logger.info("Closing server " + kvAddress + " due to unresponsiveness");
-      pinger.cancel();
       running = false;
-      
-      eventAddress = kvAddress;
-      String successor = hr.getSuccessor(eventAddress);
-      if (successor != null) {
-        lib.setFreeEventPort(ServerUtility.getAddress(successor));      
-        synchronized (hr) {
-          setEvent(Event.CLOSE); 
-        }
-      }
-      
       lib.close();
-      serverSocket.close();
-    }
-
-
-    private class PingTask extends TimerTask {     
-      @Override
-      public void run() {
-        if (pingThread == null) {
-          pingThread = Thread.currentThread(); 
-        }
-        lib.ping();
-        try {
-          Thread.sleep(3000);
-          shutdown();
-        } catch (InterruptedException e) { // nothing to handle, server is alive
-        } catch (IOException e) {
-          logger.warning("Error with pinging server " + kvAddress + ": " + e.getMessage());
-        }
+      try {
+        serverSocket.close();
+      } catch (IOException e) {
+        logger.warning("Error with closing connection to server " + kvAddress + ": " + e.getMessage());
       }
     }
   }
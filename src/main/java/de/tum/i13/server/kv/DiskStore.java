@@ -7,70 +7,122 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import de.tum.i13.server.threadperconnection.Main;
 
 /**
- * Persists KV-pairs on disk at the path specified.
+ * Persists KV-pairs on disk at the path specified. Every KV-pair is a .txt file holding the value
+ * and its version, every deleted key a tombstone file holding the version of its deletion, so that
+ * versions survive a restart.
  */
 public class DiskStore implements KVStorageSystem {
 
   // constants
   private final static Logger logger = Logger.getLogger(Main.class.getName());
-  private final String dataPath; // the path to the base folder which holds the 3 sub folders
+  private final String dataPath; // the path to the base folder which holds the sub folders
   private final char euro = (char) 8364; // euro character
+  private static final String TOMBSTONE = ".del";
 
   // attributes
-  private int lookID; // defines in which folder we currently look can be 0, 1 or 2
+  private int lookID; // defines in which folder we currently look, 0 for the original data
   private String lookPath;
+  // directories that have been merged into another folder, see mergeFolder(src, dst)
+  private final Map<Integer, List<Integer>> segments = new ConcurrentHashMap<>();
+  // merged directories that may still hold keys of their destination, see resolve(segment, key)
+  private final Set<Integer> unresolved = ConcurrentHashMap.newKeySet();
+  // stored keys per folder including its segments, kept up to date so they never have to be counted
+  private final Map<Integer, AtomicLong> keyCounts = new ConcurrentHashMap<>();
   
   /**
-   * Constructor of the class. It creates 3 new sub folders in the directory of dataPath. Each of
-   * them represents either the original data of this server or one of the the two replicas.
+   * Constructor of the class. It creates the sub folder for the original data of this server in the
+   * directory of dataPath. The sub folders for replicated data are created once they are used (see
+   * {@link #emptySubFolder()}).
    * @param dataPath the path to the folder its allowed to work on
    */
   public DiskStore(String dataPath) {
   	this.dataPath = dataPath;
   	
-    // create 3 folders, 1 for the original data, the first and second replica
     new File(dataPath.toString() + "/0").mkdirs(); // replica 0 = original
-    new File(dataPath.toString() + "/1").mkdirs(); // replica 1
-    new File(dataPath.toString() + "/2").mkdirs(); // replica 2
-    
     new File(dataPath.toString() + "/chats").mkdirs();
     
     lookPath = dataPath + "/0"; //default value
     lookID = 0;
+    loadSegments(); // data of an earlier run, resolved again as it might have been interrupted
+    segments.values().forEach(unresolved::addAll);
+    long count = getAllTxtFiles(lookPath).length;
+    for (int id : segments.getOrDefault(0, Collections.emptyList())) {
+      count += getAllTxtFiles(dataPath + "/" + id).length;
+    }
+    keyCount(0).set(count);
   }
 
   /**
-   * Creates or overrides a .txt file which represents the KV-pair. Always call setLookID first
-   * before calling this method, to make sure you are working on the correct directory.
+   * Creates or overrides a .txt file which represents the KV-pair and keeps its current version.
+   * Always call setLookID first before calling this method, to make sure you are working on the
+   * correct directory.
    * 
    * @param key key of the KV-pair
    * @param value value of the KV-pair
    * @return info about success, error or override happened
    */
   public ServerStatus put(String key, String value) {
+    return put(key, value, getVersion(key));
+  }
+
+  /**
+   * Creates or overrides a .txt file which represents the KV-pair. The file also holds the version of
+   * the KV-pair. Always call setLookID first before calling this method, to make sure you are
+   * working on the correct directory.
+   * 
+   * @param key key of the KV-pair
+   * @param value value of the KV-pair
+   * @param version version of the KV-pair
+   * @return info about success, error or override happened
+   */
+  public ServerStatus put(String key, String value, long version) {
     String keyPath = keyPath(key);
     File f = new File(keyPath);
-    boolean update = f.exists();
+    boolean update = contains(key);
+    boolean created = !f.exists();
     ServerStatus status;
 
     try (BufferedWriter writer = new BufferedWriter(new FileWriter(f))) {
       if (update) {
-        logger.finer("Overwriting file of KEY " + key);
+        logger.finer(() -> "Overwriting file of KEY " + key);
         status = ServerStatus.UPDATE;
       } else {
-        logger.finer("Creating new file for KEY " + key);
+        logger.finer(() -> "Creating new file for KEY " + key);
         status = ServerStatus.SUCCESS;
       }
       f.createNewFile();
       writer.write(value);
+      writer.newLine();
+      writer.write(Long.toString(version));
+      if (created) {
+        keyCount(lookID).incrementAndGet();
+        new File(lookPath + "/" + keyToFileName(key) + TOMBSTONE).delete(); // key has been deleted before
+      }
     } catch (IOException e) {
       logger.severe("Error: Failed at creating/writing txt file");
       status = ServerStatus.ERROR;
     }
+    if (status != ServerStatus.ERROR) {
+      deleteSegmentCopies(key); // outdated now
+    }
 
     return status;
   }
@@ -83,8 +135,38 @@ public class DiskStore implements KVStorageSystem {
    * @return the first line in the .txt file = value, on failure it return null
    */
   public String get(String key) {
-    String keyPath = keyPath(key);
-    try (BufferedReader reader = new BufferedReader(new FileReader(keyPath))) {
+    if (isUnresolved(lookID)) {
+      int folder = newestFolder(lookID, key);
+      return folder == -1 ? null : read(new File(dataPath + "/" + folder + "/" + keyToFileName(key) + ".txt"));
+    }
+    String value = read(new File(keyPath(key)));
+    if (value == null) {
+      File f = segmentFile(key);
+      if (f != null) {
+        value = read(f);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Checks if the key is stored in the directory defined in lookPath without reading its file.
+   * Always call setLookID first before calling this method, to make sure you are working on the
+   * correct directory.
+   * 
+   * @param key key of the KV-pair
+   * @return true if the directory or a directory merged into it holds the key
+   */
+  public boolean contains(String key) {
+    if (isUnresolved(lookID)) {
+      int folder = newestFolder(lookID, key);
+      return folder != -1 && new File(dataPath + "/" + folder + "/" + keyToFileName(key) + ".txt").exists();
+    }
+    return new File(keyPath(key)).exists() || segmentFile(key) != null;
+  }
+
+  private String read(File f) {
+    try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
       return reader.readLine();
     } catch (IOException e) {
       return null; // key not found
@@ -92,20 +174,81 @@ public class DiskStore implements KVStorageSystem {
   }
 
   /**
-   * Deletes the .txt file associated with the key in the directory defined in lookPath. If .txt
-   * doesn't exist it does nothing. Always call setLookID first before calling this method, to make
-   * sure you are working on the correct directory.
+   * Reads the version of a KV-pair from its .txt file (second line) or its tombstone.
+   * 
+   * @param folder path of the directory
+   * @param fileName file name of the key without extension
+   * @return version, 0 for files of an earlier run without version, -1 if there is no file
+   */
+  private long readVersion(String folder, String fileName) {
+    try (BufferedReader reader = new BufferedReader(new FileReader(folder + "/" + fileName + ".txt"))) {
+      reader.readLine(); // value
+      String version = reader.readLine();
+      return version == null ? 0 : Long.parseLong(version);
+    } catch (IOException | NumberFormatException e) { // not stored, look for a tombstone
+    }
+    try (BufferedReader reader = new BufferedReader(new FileReader(folder + "/" + fileName + TOMBSTONE))) {
+      return Long.parseLong(reader.readLine());
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Searches the segments merged into the directory defined in lookPath for the .txt file of the key.
+   * 
+   * @param key key of the KV-pair
+   * @return the file or null if no segment contains the key
+   */
+  private File segmentFile(String key) {
+    List<Integer> merged = segments.get(lookID);
+    if (merged != null) {
+      String fileName = keyToFileName(key) + ".txt";
+      for (int id : merged) {
+        File f = new File(dataPath + "/" + id + "/" + fileName);
+        if (f.exists()) {
+          return f;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Deletes the .txt file associated with the key in the directory defined in lookPath and keeps its
+   * current version. Always call setLookID first before calling this method, to make sure you are
+   * working on the correct directory.
    * 
    * @param key key of the KV-pair
    * @return ServerStatus.SUCCESS on successful deletion, else ServerStatus.ERROR
    */
   public ServerStatus delete(String key) {
+    return delete(key, getVersion(key));
+  }
+
+  /**
+   * Deletes the .txt file associated with the key in the directory defined in lookPath. If .txt
+   * doesn't exist it does nothing. A tombstone keeps the version of the deletion. Always call
+   * setLookID first before calling this method, to make sure you are working on the correct
+   * directory.
+   * 
+   * @param key key of the KV-pair
+   * @param version version of the deletion
+   * @return ServerStatus.SUCCESS on successful deletion, else ServerStatus.ERROR
+   */
+  public ServerStatus delete(String key, long version) {
     String keyPath = keyPath(key);
     File f = new File(keyPath);
+    writeTombstone(key, version);
+    boolean deleted = deleteSegmentCopies(key);
     if (!f.exists()) {
-      logger.finer(key + " not found");
+      if (deleted) {
+        return ServerStatus.SUCCESS;
+      }
+      logger.finer(() -> key + " not found");
     } else if (f.delete()) {
-      logger.finest("Deletion success with KEY : " + key);
+      logger.finest(() -> "Deletion success with KEY : " + key);
+      keyCount(lookID).decrementAndGet();
       return ServerStatus.SUCCESS;
     } else {
       logger.severe("Deletion failure with KEY : " + key);
@@ -113,6 +256,43 @@ public class DiskStore implements KVStorageSystem {
     return ServerStatus.ERROR;
   }
 
+  /**
+   * Deletes the copies of the key in the segments merged into the directory defined in lookPath,
+   * which are outdated once the key has been written to the directory itself.
+   * 
+   * @param key key of the KV-pair
+   * @return true if a .txt file has been deleted
+   */
+  private boolean deleteSegmentCopies(String key) {
+    boolean deleted = false;
+    String fileName = keyToFileName(key);
+    for (int id : segments.getOrDefault(lookID, Collections.emptyList())) {
+      if (new File(dataPath + "/" + id + "/" + fileName + ".txt").delete()) {
+        keyCount(lookID).decrementAndGet();
+        deleted = true;
+      }
+      new File(dataPath + "/" + id + "/" + fileName + TOMBSTONE).delete();
+    }
+    return deleted;
+  }
+
+  /**
+   * Writes the tombstone of a deleted key in the directory defined in lookPath
+   * 
+   * @param key
+   * @param version version of the deletion, no tombstone is written for 0
+   */
+  private void writeTombstone(String key, long version) {
+    if (version <= 0) {
+      return;
+    }
+    try (FileWriter writer = new FileWriter(lookPath + "/" + keyToFileName(key) + TOMBSTONE)) {
+      writer.write(Long.toString(version));
+    } catch (IOException e) {
+      logger.severe("Error: Failed at writing tombstone of KEY " + key);
+    }
+  }
+
   /**
    * Some keys are invalid as file names and have to be translated into a valid file name. e.g.
    * specific names like "AUX" are forbidden or names starting with a '.' etc.
@@ -167,7 +347,7 @@ public class DiskStore implements KVStorageSystem {
   
   /**
    * Defines on which folder you are currently working on. Set lookID depending on the folder:
-   * 0 for original, 1 for replica 1, 2 for replica 2. On success it changes lookID and lookPath
+   * 0 for original, 1 or higher for a replica. On success it changes lookID and lookPath
    * of the object, which are crucial for almost every other method in the class. Throws error on
    * failure.
    * */
@@ -175,18 +355,18 @@ public class DiskStore implements KVStorageSystem {
   	if(this.lookID == lookID) {
   		return;
   	}
-  	else if (lookID >= 3 || lookID < 0) {
+  	else if (lookID < 0) {
     	logger.severe("Error @setlookID: bad input, lookID = " + lookID);
     } else {
     	this.lookID = lookID;
 	    lookPath = dataPath + "/" + lookID; 
-	    logger.finest("Success @setLookID: lookID = " + lookID);
+	    logger.finest(() -> "Success @setLookID: lookID = " + lookID);
 	  }
   }
   
   /**
-   * Returns the value of the variable lookID. It can either be 0, 1 or 2 representing the folder
-   * that is currently worked on. 0 for original, 1 for replica 1, 2 for replica 2.
+   * Returns the value of the variable lookID. It represents the folder that is currently worked on,
+   * 0 for original, 1 or higher for a replica.
    * 
    * @return lookID value of this object
    * */
@@ -201,13 +381,19 @@ public class DiskStore implements KVStorageSystem {
    * @return an array of all the keys in the directory
    */
   public String[] getAllKeys() {
-    File[] files = getAllTxtFiles();
-    String[] keys = new String[files.length];
-    for (int i = 0; i < keys.length; i++) {
-      String fileName = files[i].getName();
-      keys[i] = fileNameToKey(fileName);
+    Set<String> keys = new LinkedHashSet<String>();
+    for (File f : getAllTxtFiles(lookPath)) {
+      keys.add(fileNameToKey(f.getName()));
+    }
+    for (int id : segments.getOrDefault(lookID, Collections.emptyList())) {
+      for (File f : getAllTxtFiles(dataPath + "/" + id)) {
+        keys.add(fileNameToKey(f.getName()));
+      }
     }
-    return keys;
+    if (isUnresolved(lookID)) { // a newer copy might have deleted the key
+      keys.removeIf(key -> !contains(key));
+    }
+    return keys.toArray(new String[keys.size()]);
   }
 
   /**
@@ -216,6 +402,9 @@ public class DiskStore implements KVStorageSystem {
    * @return true if the deletion process has been successful, false otherwise
    */
   public boolean deleteAll() {
+  	segments.clear();
+  	unresolved.clear();
+  	keyCounts.clear();
   	if(deleteFolder(dataPath)) {
   		return true;
   	} else {
@@ -225,14 +414,23 @@ public class DiskStore implements KVStorageSystem {
   }
   
   /**
-   * Deletes every file in the directory defined by lookPath. Always call setLookID first before 
-   * calling this method, to make sure you are working on the correct directory.
+   * Deletes every file in the directory defined by lookPath, including the directories merged into
+   * it, and creates the directory if it does not exist yet. Always call setLookID first before calling this method, to make sure you are working
+   * on the correct directory.
    * 
    * @return true if the deletion process has been successful, false otherwise
    * */
   public boolean emptySubFolder() {
-		if(deleteFolder(lookPath)) {
-			new File(dataPath.toString() + "/" + lookID).mkdirs();
+		keyCounts.remove(lookID);
+		List<Integer> merged = segments.remove(lookID);
+		if (merged != null) {
+		  merged.forEach(id -> deleteFolder(dataPath + "/" + id));
+		  unresolved.removeAll(merged);
+		  saveSegments();
+		}
+		File folder = new File(lookPath);
+		if(!folder.exists() || deleteFolder(lookPath)) {
+			folder.mkdirs();
 			return true;
 		} else {
 			logger.warning("Error @emptySubFolder: files might not be deleted, lookID = " + lookID);
@@ -259,75 +457,298 @@ public class DiskStore implements KVStorageSystem {
   }
   
   /**
-   * The destination directory gets replaced by the source directory. After that the source
-   * directory is empty.
+   * Merges the source directory into the destination directory without touching its files: the
+   * source directory becomes a segment of the destination, which is searched whenever a key is not
+   * found in the destination itself. New writes always go to the destination directory, deletions
+   * remove the key from all segments. Keys stored in both directories are read from their newer copy
+   * until the segment has been resolved, see {@link #resolve(int, String)}.
    * 
    * @param src ID of the source directory
    * @param dst ID of the destination directory
    * @return true on success, false when a error occurred
    * */
-  public boolean replaceFolder(int src, int dst) {
-  	if(src == dst || src < 0 || src > 2 || dst < 0 || dst > 2) {
-  		logger.warning("Error: @replaceFolder src = " + src + " dst = " + dst);
-  		return false;
-  	}
-  	
-  	//delete destination folder
-  	setLookID(dst);
-  	if(!deleteFolder(lookPath))
-  		return false;
-  	
-  	//rename source folder to destination folder
-  	File dstFile = new File(lookPath);
-  	setLookID(src);
-  	File srcFile = new File(lookPath);
-  	if(!srcFile.renameTo(dstFile)) {
-  		logger.severe("Error: @replaceFolder rename");
-  		return false;
-  	}
+  public boolean mergeFolder(int src, int dst) {
+    if (src == dst || src <= 0 || dst < 0) {
+      logger.warning("Error: @mergeFolder src = " + src + " dst = " + dst);
+      return false;
+    }
+    List<Integer> merged = segments.computeIfAbsent(dst, i -> new CopyOnWriteArrayList<>());
+    List<Integer> moved = getFolders(src);
+    unresolved.addAll(moved);
+    merged.addAll(moved);
+    segments.remove(src);
+    AtomicLong srcCount = keyCounts.remove(src);
+    if (srcCount != null) {
+      keyCount(dst).addAndGet(srcCount.get());
+    }
+    saveSegments();
+    logger.finest(() -> "Success @mergeFolder src = " + src + " dst = " + dst);
+    return true;
+  }
 
-  	//create empty source folder
-  	new File(dataPath.toString() + "/" + src).mkdirs();
-  	logger.finest("Success @replaceFolder src = " + src + " dst = " + dst);
-  	return true;
+  /**
+   * Checks if a merged directory has not been resolved yet, see {@link #resolve(int, String)}.
+   * 
+   * @return true if keys might be stored in a directory and a segment merged into it
+   */
+  public boolean hasUnresolvedSegments() {
+    return !unresolved.isEmpty();
   }
-  
+
   /**
-   * Copies all files in source directory into the destination directory.
+   * Returns a merged directory that has not been resolved yet.
    * 
-   * @param src ID of the source directory
-   * @param dst ID of the destination directory
-   * */
-  public void copyFolder(int src, int dst) {
-  	String srcPath = dataPath + "/" + src;
-  	String dstPath = dataPath + "/" + dst;
-  	
-  	setLookID(src);
-  	String[] keys = getAllKeys();	
-  	for(String k : keys) {
-  		lookPath = srcPath;
-  		String value = get(k);
-  		lookPath = dstPath;
-  		put(k, value);
-  	}
-  	logger.finest("Success @copyFolder src = " + src + " dst = " + dst);
-  } 
+   * @return ID of the segment or -1 if all segments have been resolved
+   */
+  public int nextUnresolvedSegment() {
+    for (int id : unresolved) {
+      return id;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the keys a merged directory holds a .txt file or tombstone of, without the directories
+   * it has been merged into.
+   * 
+   * @param segment ID of the merged directory
+   * @return keys of the segment
+   */
+  public String[] getSegmentKeys(int segment) {
+    File[] files = new File(dataPath + "/" + segment).listFiles((dir, name) -> name.endsWith(".txt") || name.endsWith(TOMBSTONE));
+    Set<String> keys = new LinkedHashSet<String>();
+    for (File f : files == null ? new File[0] : files) {
+      keys.add(fileNameToKey(f.getName()));
+    }
+    return keys.toArray(new String[keys.size()]);
+  }
+
+  /**
+   * Keeps only the newest copy of the key among the directory the segment has been merged into and
+   * its segments and adjusts the key count. Must not run concurrently with writes to the key.
+   * 
+   * @param segment ID of the merged directory
+   * @param key key of the KV-pair
+   */
+  public void resolve(int segment, String key) {
+    int dst = getDestination(segment);
+    if (dst == -1) { // emptied in the meantime
+      return;
+    }
+    int newest = newestFolder(dst, key);
+    String fileName = keyToFileName(key);
+    for (int folder : getFolders(dst)) {
+      if (folder != newest) {
+        if (new File(dataPath + "/" + folder + "/" + fileName + ".txt").delete()) {
+          keyCount(dst).decrementAndGet();
+        }
+        new File(dataPath + "/" + folder + "/" + fileName + TOMBSTONE).delete();
+      }
+    }
+  }
+
+  /**
+   * Deletes the copy of the key in a merged directory, e.g. because another server is responsible
+   * for it. Must not run concurrently with writes to the key.
+   * 
+   * @param segment ID of the merged directory
+   * @param key key of the KV-pair
+   */
+  public void drop(int segment, String key) {
+    int dst = getDestination(segment);
+    if (dst == -1) {
+      return;
+    }
+    String fileName = keyToFileName(key);
+    if (new File(dataPath + "/" + segment + "/" + fileName + ".txt").delete()) {
+      keyCount(dst).decrementAndGet();
+    }
+    new File(dataPath + "/" + segment + "/" + fileName + TOMBSTONE).delete();
+  }
+
+  /**
+   * Marks a merged directory as resolved once all of its keys have been passed to
+   * {@link #resolve(int, String)}, so that reads only look at the first copy of a key again.
+   * 
+   * @param segment ID of the merged directory
+   */
+  public void setResolved(int segment) {
+    unresolved.remove(segment);
+  }
+
+  private boolean isUnresolved(int id) {
+    if (unresolved.isEmpty()) {
+      return false;
+    }
+    for (int segment : segments.getOrDefault(id, Collections.emptyList())) {
+      if (unresolved.contains(segment)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the directory a segment has been merged into
+   * 
+   * @param segment ID of the merged directory
+   * @return ID of the directory or -1 if it is not merged into any
+   */
+  private int getDestination(int segment) {
+    for (Map.Entry<Integer, List<Integer>> e : segments.entrySet()) {
+      if (e.getValue().contains(segment)) {
+        return e.getKey();
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the folder that holds the newest copy of the key, a .txt file or a tombstone, among the
+   * directory and the directories merged into it.
+   * 
+   * @param id ID of the directory
+   * @param key key of the KV-pair
+   * @return ID of the folder or -1 if none of them holds the key
+   */
+  private int newestFolder(int id, String key) {
+    String fileName = keyToFileName(key);
+    int newest = -1;
+    long newestVersion = -1;
+    for (int folder : getFolders(id)) {
+      long version = readVersion(dataPath + "/" + folder, fileName);
+      if (version > newestVersion) {
+        newest = folder;
+        newestVersion = version;
+      }
+    }
+    return newest;
+  }
+
+  /**
+   * Returns the directory and the directories merged into it
+   * 
+   * @param id ID of the directory
+   * @return IDs of the directories
+   */
+  public List<Integer> getFolders(int id) {
+    List<Integer> folders = new ArrayList<Integer>();
+    folders.add(id);
+    folders.addAll(segments.getOrDefault(id, Collections.emptyList()));
+    return folders;
+  }
+
+  /**
+   * Writes which directories have been merged into which, one <code>dst src</code> pair per line,
+   * so that merged data is still found after a restart. The file is replaced atomically, a crash
+   * leaves either the old or the new mapping.
+   */
+  private synchronized void saveSegments() {
+    Path file = Paths.get(dataPath, "segments");
+    Path tmp = Paths.get(dataPath, "segments.tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+        for (Map.Entry<Integer, List<Integer>> e : segments.entrySet()) {
+          for (int src : e.getValue()) {
+            writer.write(e.getKey() + " " + src);
+            writer.newLine();
+          }
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.severe("Error: Failed at writing the merged directories");
+    }
+  }
+
+  private void loadSegments() {
+    try (BufferedReader reader = new BufferedReader(new FileReader(dataPath + "/segments"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] ids = line.split("\\s");
+        segments.computeIfAbsent(Integer.parseInt(ids[0]), i -> new CopyOnWriteArrayList<>())
+            .add(Integer.parseInt(ids[1]));
+      }
+    } catch (IOException | NumberFormatException e) { // nothing has been merged
+    }
+  }
+
+  /**
+   * Checks if the directory has been merged into another directory and therefore still holds data.
+   * 
+   * @param id ID of the directory
+   * @return true if the directory is a segment of another directory
+   */
+  public boolean isSegment(int id) {
+    return segments.values().stream().anyMatch(merged -> merged.contains(id));
+  }
   
   /**
-   * Returns all the .txt files in the directory using a filter. Always call setLookID first before
-   * calling this method, to make sure you are working on the correct directory.
+   * Returns the version of the KV-pair in the directory defined by lookPath. Deleted keys keep the
+   * version of their deletion. The version is read from the file of the key, see
+   * {@link #put(String, String, long)}. Always call setLookID first before calling this method, to
+   * make sure you are working on the correct directory.
+   * 
+   * @param key key of the KV-pair
+   * @return version of the KV-pair, 0 if the key has never been stored
+   */
+  public long getVersion(String key) {
+    return Math.max(versionIn(lookID, key), 0);
+  }
+
+  /**
+   * Returns the version of the KV-pair in a directory, including the directories merged into it
+   * 
+   * @param id ID of the directory
+   * @param key key of the KV-pair
+   * @return version of the KV-pair, -1 if the directory holds no file for the key
+   */
+  private long versionIn(int id, String key) {
+    String fileName = keyToFileName(key);
+    boolean newestOnly = isUnresolved(id); // the first copy might be outdated
+    long newest = -1;
+    for (int folder : getFolders(id)) {
+      long stored = readVersion(dataPath + "/" + folder, fileName);
+      if (stored != -1 && !newestOnly) {
+        return stored;
+      }
+      newest = Math.max(newest, stored);
+    }
+    return newest;
+  }
+
+  private AtomicLong keyCount(int id) {
+    return keyCounts.computeIfAbsent(id, i -> new AtomicLong());
+  }
+
+  /**
+   * Returns how many keys every folder stores, without looking at the files. Merged folders are
+   * counted in the folder they have been merged into, keys stored in both count twice until the
+   * merged folder has been resolved.
+   * 
+   * @return key count by folder ID, 0 for the original data
+   */
+  public Map<Integer, Long> getKeyCounts() {
+    Map<Integer, Long> counts = new TreeMap<>();
+    keyCounts.forEach((id, count) -> counts.put(id, count.get()));
+    return counts;
+  }
+
+  /**
+   * Returns all the .txt files in the directory using a filter.
    * 
+   * @param path path of the directory
    * @return array of all the .txt files in the directory
    */
-  private File[] getAllTxtFiles() { // TODO problem: could return chat files
+  private File[] getAllTxtFiles(String path) { // TODO problem: could return chat files
     FilenameFilter filter = new FilenameFilter() {
       @Override
       public boolean accept(File dir, String name) {
         return name.endsWith(".txt"); // filter all files that end with .txt
       }
     };
-    File folder = new File(lookPath);
-    return folder.listFiles(filter); // TODO returns null because directory gets deleted
+    File[] files = new File(path).listFiles(filter);
+    return files == null ? new File[0] : files;
   }
   
   /**
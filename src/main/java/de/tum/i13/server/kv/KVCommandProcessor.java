@@ -2,8 +2,13 @@ package de.tum.i13.server.kv;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import de.tum.i13.server.chat.ChatManager;
+import de.tum.i13.server.ecs.ReplicationManager;
+import de.tum.i13.server.kv.caching.Cache;
 import de.tum.i13.server.threadperconnection.Main;
 import de.tum.i13.server.threadperconnection.ServerRing;
 import de.tum.i13.shared.CommandProcessor;
@@ -12,26 +17,59 @@ public class KVCommandProcessor implements CommandProcessor {
   public final KVStore kvs;
   private final static Logger logger = Logger.getLogger(Main.class.getName());
   public ServerRing sr;
+  public final LoadTracker load = new LoadTracker(); // requests per range, reported to the ECS
+  public final LatencyTracker latencies; // shared with the store and the replication
+  public final SlowLog slowLog = new SlowLog(100);
+  private final AtomicInteger connections = new AtomicInteger(); // open client connections
   private boolean writeLock;
 
   public KVCommandProcessor(KVStore kvs, ServerRing sr) {
     this.kvs = kvs;
     this.sr = sr;
+    latencies = kvs.latencies;
   }
 
   @Override
   public String process(String command) {
-    if (command.equals("keyrange")) {
-      logger.fine("keyrange sent");
-      return "keyrange_success " + sr.getKeyRange();
-    } else if (command.equals("keyrange_read")) {
-      logger.fine("readkeyrange sent");
-      return "keyrange_read_success " + sr.getReadKeyRange();
+    long start = System.nanoTime();
+    String name = command.split("\\s", 2)[0];
+    if (name.equals("keyrange") || name.equals("keyrange_read")) {
+      String reply = keyRange(command);
+      latencies.recordSince("keyrange.service", start);
+      return reply;
+    }
+    if (command.equals("stats")) {
+      return stats();
+    }
+    if (command.startsWith("slowlog")) {
+      return slowLog(command);
+    }
+
+    int acks = 0; // replicas that have to acknowledge a write, quorum <acks> <put or delete>
+    if (command.startsWith("quorum ")) {
+      String[] quorum = command.split("\\s", 3);
+      try {
+        acks = Integer.parseInt(quorum[1]);
+      } catch (NumberFormatException e) {
+        return "error: invalid quorum " + quorum[1];
+      }
+      if (quorum.length < 3) {
+        return "error: quorum requires a write request";
+      }
+      command = quorum[2];
     }
 
-    String reply;
     String[] tokens = command.split("\\s", 3);
+    if (tokens.length < 2) { // every remaining command takes a key
+      return "error: command unrecognized";
+    }
+    RequestEvent event = new RequestEvent();
+    event.begin();
+    String reply;
     String key = tokens[1];
+    long parsed = System.nanoTime() - start;
+    long waited = 0; // for the store lock, measured apart from the service time
+    latencies.begin();
     
     switch (tokens[0]) {
       case "put": {
@@ -42,20 +80,40 @@ public class KVCommandProcessor implements CommandProcessor {
             value = value.substring(1, value.length() - 1); // removes quotations
             // currently: put mykey "myvalue" -> stores: "myvalue" at mykey
           }
-          synchronized (this) {
+          ServerStatus status;
+          long version;
+          long queued = System.nanoTime();
+          synchronized (kvs) {
+            waited = System.nanoTime() - queued;
             kvs.setLookID(0);
-            ServerStatus status = kvs.put(key, value);
-            reply = "put_" + setupReply(status, key, ServerStatus.ERROR, value);
+            status = kvs.put(key, value);
+            version = kvs.getVersion(key);
+          }
+          reply = "put_" + setupReply(status, key, ServerStatus.ERROR, value);
+          if (status != ServerStatus.ERROR) {
+            // outside of the lock, the replicas have to apply it
+            if (kvs.awaitReplication(key, version, acks)) {
+              reply += " " + version;
+            } else {
+              reply = "put_" + setupReply(ServerStatus.ERROR, key, ServerStatus.ERROR, value);
+            }
           }
         }
         break;
       }
 
-      case "get": {
+      case "get": { // get <key> [<token>], the token is the version of the client's last write
         if (!sr.isReadResponsible(key)) {
           reply = "server_not_responsible";
+        } else if (tokens.length == 3 && parseToken(tokens[2]) < 0) {
+          reply = "error: invalid token " + tokens[2];
+        } else if (tokens.length == 3 && !sr.isCoordinator(key)
+            && !kvs.awaitReplicated(sr.getCoordinator(key), parseToken(tokens[2]))) {
+          reply = "server_stale";
         } else {
-          synchronized (this) {
+          long queued = System.nanoTime();
+          synchronized (kvs) {
+            waited = System.nanoTime() - queued;
             setLookID(key);
             String rv = kvs.get(key);
             ServerStatus status2 = (rv == null) ? ServerStatus.ERROR : ServerStatus.SUCCESS;
@@ -68,10 +126,55 @@ public class KVCommandProcessor implements CommandProcessor {
       case "delete": {
         reply = checkWritePermission(key);
         if (reply == null) {
-          synchronized (this) {
+          ServerStatus status;
+          long version;
+          long queued = System.nanoTime();
+          synchronized (kvs) {
+            waited = System.nanoTime() - queued;
             kvs.setLookID(0);
-            ServerStatus status = kvs.delete(key);
-            reply = "delete_" + status + " " + key;
+            status = kvs.delete(key);
+            version = kvs.getVersion(key);
+          }
+          reply = "delete_" + status + " " + key;
+          if (status != ServerStatus.ERROR) {
+            if (kvs.awaitReplication(key, version, acks)) {
+              reply += " " + version;
+            } else {
+              reply = "delete_" + ServerStatus.ERROR + " " + key;
+            }
+          }
+        }
+        break;
+      }
+
+      case "get_version": {
+        if (!sr.isReadResponsible(key)) {
+          reply = "server_not_responsible";
+        } else {
+          long queued = System.nanoTime();
+          synchronized (kvs) {
+            waited = System.nanoTime() - queued;
+            setLookID(key);
+            String rv = kvs.get(key);
+            long version = kvs.getVersion(key);
+            reply = rv == null ? "get_version_error " + key + " " + version
+                : "get_version_success " + key + " " + version + " " + rv;
+          }
+        }
+        break;
+      }
+
+      case "repair": { // repair <key>, the coordinator sends its version to the replicas again
+        reply = checkWritePermission(key);
+        if (reply == null) {
+          if (tokens.length == 3) {
+            reply = "error: repair only takes a key";
+          } else {
+            long queued = System.nanoTime();
+            synchronized (kvs) {
+              waited = System.nanoTime() - queued;
+              reply = "repair_success " + key + " " + kvs.repair(key);
+            }
           }
         }
         break;
@@ -81,7 +184,38 @@ public class KVCommandProcessor implements CommandProcessor {
         reply = "error: command unrecognized";
       }
     }
-    
+
+    if (!reply.startsWith("server_") && !reply.startsWith("error")) {
+      String range = sr.getCoordinatorRange(key);
+      if (range != null) {
+        load.record(range);
+      }
+    }
+    Map<String, Long> stages = latencies.end();
+    long total = System.nanoTime() - start;
+    if (!reply.startsWith("error")) {
+      latencies.record(tokens[0] + ".wait", waited);
+      latencies.record(tokens[0] + ".service", total - waited);
+    }
+    if (slowLog.isSlow(total)) {
+      Map<String, Long> breakdown = new LinkedHashMap<String, Long>();
+      breakdown.put("parse", parsed);
+      breakdown.put("lock", waited);
+      breakdown.putAll(stages);
+      SlowLog.Entry entry = slowLog.add(tokens[0], key, total, breakdown);
+      logger.fine(() -> "Slow request " + entry);
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.command = tokens[0];
+      event.key = key;
+      event.parse = parsed;
+      event.lockWait = waited;
+      event.cache = sum(stages, "cache.");
+      event.disk = sum(stages, "disk.");
+      event.replication = sum(stages, "replication.");
+      event.commit();
+    }
     logger.fine(reply);
     return reply;
   }
@@ -89,22 +223,142 @@ public class KVCommandProcessor implements CommandProcessor {
   @Override
   public String connected(InetSocketAddress address, InetSocketAddress remoteAddress) {
     logger.info("New connection: " + remoteAddress);
+    connections.incrementAndGet();
     return "Connection to KV-storage server established: " + address;
   }
 
   @Override
   public void connectionClosed(InetAddress remoteAddress) {
     logger.info("Connection ended: " + remoteAddress);
+    connections.decrementAndGet();
   }
 
   public void updateServerRing(String newKeyRange) {
     sr.update(newKeyRange);
   }
 
+  public void updateServerRing(String newKeyRange, long epoch) {
+    sr.update(newKeyRange, epoch);
+  }
+
+  /**
+   * Answers a keyrange request. A client that sends the epoch of its ring
+   * (<code>keyrange &lt;epoch&gt;</code>) only gets the changes since then, if the server still
+   * knows them, or <code>keyrange_unchanged</code>. Otherwise the ranges are followed by the epoch
+   * and the hash function, so that the client places keys like the servers.
+   * 
+   * @param command keyrange or keyrange_read, optionally followed by the epoch of the client
+   * @return reply
+   */
+  private String keyRange(String command) {
+    String[] tokens = command.split("\\s");
+    boolean read = tokens[0].equals("keyrange_read");
+    if (tokens.length == 1) {
+      logger.fine(() -> (read ? "readkeyrange" : "keyrange") + " sent");
+      return read ? "keyrange_read_success " + sr.getReadKeyRange()
+          : "keyrange_success " + sr.getKeyRange();
+    }
+    if (tokens.length > 2) {
+      return "error: keyrange only takes an epoch";
+    }
+    long known;
+    try {
+      known = Long.parseLong(tokens[1]);
+    } catch (NumberFormatException e) {
+      return "error: invalid epoch " + tokens[1];
+    }
+    long epoch = sr.getEpoch(); // before the ranges, later changes are just sent again
+    if (known == epoch) {
+      return "keyrange_unchanged " + epoch;
+    }
+    String delta = sr.getDelta(known);
+    if (delta != null) {
+      logger.fine("keyrange delta sent");
+      return "keyrange_delta " + epoch + " " + delta;
+    }
+    logger.fine(() -> (read ? "readkeyrange" : "keyrange") + " sent");
+    return (read ? "keyrange_read_success " + sr.getReadKeyRange()
+        : "keyrange_success " + sr.getKeyRange()) + " " + epoch + " " + sr.getHashFunction();
+  }
+
   public void setWriteLock(boolean flag) {
     writeLock = flag;
   }
 
+  /**
+   * Answers a stats request with a snapshot of this server: keys per directory, cache, hash ring,
+   * clients, replication, transfers and the latency histograms. Only counters are read, neither the
+   * store lock is taken nor the disk is scanned, so it can be polled while serving.
+   * 
+   * @return <code>stats_success keys=&lt;directory&gt;:&lt;count&gt;,... cache=... ring=... clients=...
+   *         replication=... transfers=...</code> followed by the histograms, see
+   *         {@link LatencyTracker#summary()}
+   */
+  private String stats() {
+    StringBuilder sb = new StringBuilder("stats_success keys=");
+    String separator = "";
+    for (Map.Entry<Integer, Long> e : kvs.getKeyCounts().entrySet()) {
+      sb.append(separator).append(e.getKey()).append(':').append(e.getValue());
+      separator = ",";
+    }
+
+    Cache cache = kvs.getCache();
+    long hits = cache.getHits();
+    long lookups = hits + cache.getMisses();
+    sb.append(" cache=size:").append(cache.size()).append(",hits:").append(hits)
+        .append(",lookups:").append(lookups)
+        .append(",ratio:").append(lookups == 0 ? 0 : Math.round(hits * 1000.0 / lookups) / 1000.0);
+
+    sb.append(" ring=epoch:").append(sr.getEpoch()).append(",owned:")
+        .append(String.join("|", sr.getOwnedRanges()));
+    sb.append(" clients=connections:").append(connections.get())
+        .append(",chatrooms:").append(ChatManager.getChatroomCount());
+
+    ReplicationManager rm = kvs.getReplicationManager();
+    sb.append(" replication=mode:").append(rm.getReplicationMode())
+        .append(",replicas:").append(rm.getReplicaCount())
+        .append(",coordinators:").append(rm.getCoordinatorCount())
+        .append(",pending:").append(rm.getPendingAcks());
+    sb.append(" transfers=active:").append(kvs.getActiveTransfers())
+        .append(",sent:").append(kvs.getKeysSent())
+        .append(",received:").append(kvs.getKeysReceived());
+
+    String histograms = latencies.summary();
+    if (!histograms.isEmpty()) {
+      sb.append(' ').append(histograms);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Answers a slowlog request with the slowest recent requests, <code>slowlog reset</code> clears
+   * them
+   * 
+   * @return <code>slowlog_success</code> followed by the requests, newest first, see
+   *         {@link SlowLog.Entry#toString()}
+   */
+  private String slowLog(String command) {
+    if (command.equals("slowlog reset")) {
+      slowLog.reset();
+      return "slowlog_success";
+    }
+    StringBuilder sb = new StringBuilder("slowlog_success");
+    for (SlowLog.Entry entry : slowLog.entries()) {
+      sb.append(' ').append(entry);
+    }
+    return sb.toString();
+  }
+
+  private static long sum(Map<String, Long> stages, String prefix) {
+    long sum = 0;
+    for (Map.Entry<String, Long> e : stages.entrySet()) {
+      if (e.getKey().startsWith(prefix)) {
+        sum += e.getValue();
+      }
+    }
+    return sum;
+  }
+
   private String setupReply(ServerStatus status, String key, ServerStatus checkStatus, String val) {
     String reply = status + " " + key;
     if (status == checkStatus) {
@@ -113,6 +367,20 @@ public class KVCommandProcessor implements CommandProcessor {
     return reply;
   }
 
+  /**
+   * Parses the session token of a get request
+   * 
+   * @param token
+   * @return version or -1 if the token is not a version
+   */
+  private static long parseToken(String token) {
+    try {
+      return Long.parseLong(token);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   private String checkWritePermission(String key) {
     if (!sr.isCoordinator(key)) {
       return "server_not_responsible";
@@ -123,9 +391,18 @@ public class KVCommandProcessor implements CommandProcessor {
     return null;
   }
   
+  /**
+   * Selects the directory that stores the given key: the original directory if this server is its
+   * coordinator, otherwise the replica directory of the coordinator.
+   * 
+   * @param key
+   */
   private void setLookID(String key) {
-    List<String> servers = sr.getReadResponsibleServers(key);
-    int index = servers.indexOf(sr.getServer());
-    kvs.setLookID(index);
+    String coordinator = sr.getCoordinator(key);
+    if (coordinator.equals(sr.getServer())) {
+      kvs.setLookID(0);
+    } else {
+      kvs.setLookID(kvs.allocateReplicaFolder(coordinator));
+    }
   }
 }
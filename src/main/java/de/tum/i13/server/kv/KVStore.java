@@ -7,12 +7,24 @@ import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import de.tum.i13.server.ecs.ReplicationManager;
+import de.tum.i13.server.ecs.ReplicationMode;
 import de.tum.i13.server.kv.caching.Cache;
 import de.tum.i13.server.threadperconnection.Main;
 import de.tum.i13.server.threadperconnection.ServerRing;
 import de.tum.i13.shared.ServerUtility;
+import de.tum.i13.shared.Span;
+import de.tum.i13.shared.Tracer;
 
 /**
  * This implements the three basic operations of a KVStore by using an on-disk storage system and
@@ -23,30 +35,120 @@ public class KVStore implements KVStorageSystem {
   private final Cache cache;
   private final DiskStore disk;
   private final static Logger logger = Logger.getLogger(Main.class.getName());
+  public final LatencyTracker latencies = new LatencyTracker();
+  private volatile Tracer tracer = new Tracer("kv", null); // passes traces on without recording them
+  // key-value pairs and bytes moved to and from other servers when the ring changes
+  private final AtomicLong keysSent = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong keysReceived = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicInteger transfers = new AtomicInteger(); // streams currently sent or received
   private ReplicationManager repManager = new ReplicationManager(this);
+  private long clock; // last version handed out by this server
+  private final HashMap<String, Integer> replicaFolders = new HashMap<String, Integer>(); // coordinator -> directory
+  // promoted directories whose keys are sent to the last replica once they are resolved
+  private final Set<Integer> promoted = new HashSet<Integer>();
+  // directories taken over with virtual nodes, only the keys this server is coordinator of are kept
+  private final Map<Integer, ServerRing> takenOver = new HashMap<Integer, ServerRing>();
+  private final AtomicBoolean compacting = new AtomicBoolean();
 
   public KVStore(DiskStore disk, Cache cache) {
     this.disk = disk;
     this.cache = cache;
+    compact(); // merges of an earlier run
   }
 
   /**
-   * Stores the given key-value pair in the cache and on the disk. Will write on log.
+   * Stores the given key-value pair in the cache and on the disk under a new version. Will write on
+   * log.
    * 
    * @param key key to be stored
    * @param value value to be stored
    * @return ServerStatus to indicate if request was successful
    */
   public ServerStatus put(String key, String value) {
-    logger.fine("Inserting KEY " + key + " and VALUE " + value + " in cache and disk");
+    return put(key, value, nextVersion(getVersion(key)));
+  }
+
+  /**
+   * Stores the given key-value pair in the cache and on the disk if <code>version</code> is newer
+   * than the version currently stored. Used by replicas and for read repair, where updates may
+   * arrive out of order. The coordinator forwards the pair to its replicas once it is stored. Will
+   * write on log.
+   * 
+   * @param key key to be stored
+   * @param value value to be stored
+   * @param version version of the key-value pair
+   * @return ServerStatus to indicate if request was successful
+   */
+  public ServerStatus put(String key, String value, long version) {
+    if (version <= getVersion(key)) {
+      logger.finest(() -> "Ignoring outdated VERSION " + version + " of KEY " + key);
+      return ServerStatus.SUCCESS;
+    }
+    logger.fine(() -> "Inserting KEY " + key + " and VALUE " + value + " in cache and disk");
+    long start = System.nanoTime();
+    ServerStatus s2 = disk.put(key, value, version);
+    latencies.recordSince("disk.write", start);
+    if (s2 == ServerStatus.ERROR) {
+      cache.delete(key); // might hold the previous value
+      return s2;
+    }
+    start = System.nanoTime();
+    ServerStatus s1 = isCoordinator() ? cache.put(key, value, version) : cache.put(key, value);
+    latencies.recordSince("cache.write", start);
     if (isCoordinator()) {
-      repManager.forward(key + " " + value); 
+      advanceClock(version);
+      repManager.forward(key + " " + version + " " + value); 
     }
-    ServerStatus s1 = cache.put(key, value);
-    ServerStatus s2 = disk.put(key, value);
     return ServerStatus.maxValue(s1, s2); // makes sure value is inserted in both
   }
 
+  /**
+   * Returns the version of the given key in the current directory. Deleted keys keep the version of
+   * their deletion. Versions of the original directory are cached with their values, all others are
+   * read from the disk.
+   * 
+   * @param key
+   * @return version of the key, 0 if it has never been stored
+   */
+  public long getVersion(String key) {
+    long version = isCoordinator() ? cache.getVersion(key) : -1;
+    return version == -1 ? disk.getVersion(key) : version;
+  }
+
+  /**
+   * Generates a new version that is higher than every version this server has handed out so far and
+   * than <code>current</code>. Versions are based on the wall clock so that versions of different
+   * coordinators stay comparable after a failover.
+   * 
+   * @param current version currently stored for the key
+   * @return new version
+   */
+  private synchronized long nextVersion(long current) {
+    clock = Math.max(Math.max(clock + 1, current + 1), System.currentTimeMillis());
+    return clock;
+  }
+
+  /**
+   * Raises the clock to a version this server stores as coordinator without having handed it out,
+   * e.g. a key received from another server, so that forwarded versions keep increasing.
+   * 
+   * @param version
+   */
+  private synchronized void advanceClock(long version) {
+    clock = Math.max(clock, version);
+  }
+
+  /**
+   * Returns the newest version this server has handed out.
+   * 
+   * @return version
+   */
+  public synchronized long getClock() {
+    return clock;
+  }
+
   private boolean isCoordinator() {
     return disk.getLookID() == 0;
   }
@@ -62,34 +164,66 @@ public class KVStore implements KVStorageSystem {
    *         status
    */
   public String get(String key) {
-    logger.finest("Looking in CACHE for KEY " + key);
+    logger.finest(() -> "Looking in CACHE for KEY " + key);
+    long start = System.nanoTime();
     String value = cache.get(key);
+    latencies.recordSince("cache.read", start);
     if (value == null) {
-      logger.finest("CACHE MISS for KEY " + key);
+      logger.finest(() -> "CACHE MISS for KEY " + key);
+      start = System.nanoTime();
       value = disk.get(key);
+      latencies.recordSince("disk.read", start);
       if (value == null) {
-        logger.finest("STORE MISS for KEY " + key);
+        logger.finest(() -> "STORE MISS for KEY " + key);
         return null;
       }
-      logger.finest("CACHE UPDATE for KEY " + key);
+      logger.finest(() -> "CACHE UPDATE for KEY " + key);
       cache.put(key, value);
     }
     return value;
   }
 
   /**
-   * Deletes the provided key and its value from the disk and cache.
+   * Deletes the provided key and its value from the disk and cache. Keys that are not stored keep
+   * their version.
    * 
    * @param key
-   * @return ServerStatus to indicate if request was successful
+   * @return ServerStatus to indicate if request was successful, ERROR if the key is not stored
    */
   public ServerStatus delete(String key) {
-    logger.fine("Deleting KEY " + key + " from CACHE and STORE");
-    if (isCoordinator()) {
-      repManager.forward(key); 
+    if (!disk.contains(key)) {
+      logger.finer(() -> key + " not found");
+      return ServerStatus.ERROR;
+    }
+    return delete(key, nextVersion(getVersion(key)));
+  }
+
+  /**
+   * Deletes the provided key and its value from the disk and cache if <code>version</code> is newer
+   * than the version currently stored. The version is kept as a tombstone so that older updates
+   * cannot bring the key back. The coordinator forwards the deletion to its replicas once it is
+   * stored.
+   * 
+   * @param key
+   * @param version version of the deletion
+   * @return ServerStatus to indicate if request was successful
+   */
+  public ServerStatus delete(String key, long version) {
+    if (version <= getVersion(key)) {
+      logger.finest(() -> "Ignoring outdated deletion VERSION " + version + " of KEY " + key);
+      return ServerStatus.SUCCESS;
     }
+    logger.fine(() -> "Deleting KEY " + key + " from CACHE and STORE");
+    long start = System.nanoTime();
     ServerStatus s1 = cache.delete(key);
-    ServerStatus s2 = disk.delete(key);
+    latencies.recordSince("cache.delete", start);
+    start = System.nanoTime();
+    ServerStatus s2 = disk.delete(key, version); // kept in the tombstone
+    latencies.recordSince("disk.delete", start);
+    if (isCoordinator() && s2 != ServerStatus.ERROR) {
+      advanceClock(version);
+      repManager.forward(key + " " + version); 
+    }
     return ServerStatus.maxValue(s1, s2); // makes sure value is deleted in both
   }
   
@@ -97,33 +231,109 @@ public class KVStore implements KVStorageSystem {
     disk.setLookID(index);
   }
 
+  public Cache getCache() {
+    return cache;
+  }
+
   /**
-   * Receives all the data another server is sending using
-   * {@link #sendData(String, int, ServerRing)}
+   * Returns how many keys the original directory and every replica directory store
    * 
-   * @param ss used for the communication with other server return void
+   * @return key count by directory, see {@link DiskStore#getKeyCounts()}
    */
-  public ServerStatus receiveData(ServerSocket ss) throws IOException {
-      Socket s = ss.accept();
-      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-      ServerStatus finalStatus = ServerStatus.SUCCESS;
-      ServerStatus status;
-      int counter = 0;
+  public Map<Integer, Long> getKeyCounts() {
+    return disk.getKeyCounts();
+  }
+
+  public long getKeysSent() {
+    return keysSent.get();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public long getKeysReceived() {
+    return keysReceived.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Returns how many transfers of key-value pairs to or from other servers are running
+   * 
+   * @return transfers, one per server data is sent to or received from
+   */
+  public int getActiveTransfers() {
+    return transfers.get();
+  }
+
+  public ReplicationManager getReplicationManager() {
+    return repManager;
+  }
+
+  /**
+   * Receives all the data other servers are sending using
+   * {@link #sendData(String, int, ServerRing)}. Every sender is handled by its own thread.
+   * 
+   * @param ss used for the communication with other servers
+   * @param senders amount of servers that send data
+   * @return SUCCESS if all pairs have been stored
+   */
+  public ServerStatus receiveData(ServerSocket ss, int senders) throws IOException {
+    ArrayList<Thread> receivers = new ArrayList<Thread>();
+    ServerStatus[] statuses = new ServerStatus[senders];
+    try {
+      for (int i = 0; i < senders; i++) {
+        Socket s = ss.accept();
+        int index = i;
+        Thread receiver = new Thread(() -> statuses[index] = receiveFrom(s));
+        receiver.start();
+        receivers.add(receiver);
+      }
+      for (Thread receiver : receivers) {
+        receiver.join();
+      }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    } finally {
+      ss.close();
+    }
+    ServerStatus finalStatus = ServerStatus.SUCCESS;
+    for (ServerStatus status : statuses) {
+      finalStatus = ServerStatus.maxValue(finalStatus, status == null ? ServerStatus.ERROR : status);
+    }
+    return finalStatus;
+  }
+
+  private ServerStatus receiveFrom(Socket s) {
+    ServerStatus finalStatus = ServerStatus.SUCCESS;
+    ServerStatus status;
+    int counter = 0;
+    transfers.incrementAndGet();
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
       String line;
       while ((line = in.readLine()) != null) {
-        String[] keyvalue = line.split("\\s+");
+        String[] kv = line.split("\\s", 3); // key, version, value
         synchronized (this) {
           disk.setLookID(0);
-          status = disk.put(keyvalue[0], keyvalue[1]); 
+          status = put(kv[0], kv[2], Long.parseLong(kv[1])); // also forwards the pair to the replicas
         }
         finalStatus = ServerStatus.maxValue(finalStatus, status);
         counter++;
+        keysReceived.incrementAndGet();
+        bytesReceived.addAndGet(line.length() + 1);
       }
-      logger.finer("Received " + counter + " key-value pairs");
-      
-      ss.close();
       s.close();
-      return finalStatus;
+    } catch (IOException e) {
+      logger.warning("Error while receiving data: " + e.getMessage());
+      return ServerStatus.ERROR;
+    } finally {
+      transfers.decrementAndGet();
+    }
+    logger.finer("Received " + counter + " key-value pairs");
+    return finalStatus;
   }
 
   /**
@@ -134,6 +344,8 @@ public class KVStore implements KVStorageSystem {
    * @param port port of the second server return void
    */
   public void sendData(String address, int port, ServerRing sr) throws IOException {
+    transfers.incrementAndGet();
+    try {
       InetSocketAddress sa = new InetSocketAddress(address, port);
       Socket s = ServerUtility.connectNonstop(sa);
       PrintWriter out = new PrintWriter(s.getOutputStream());
@@ -147,16 +359,27 @@ public class KVStore implements KVStorageSystem {
       for (String k : keys) {
         if (sr == null || sr.isCoordinator(k)) {
           counter++;
+          String line;
           synchronized (this) {
             disk.setLookID(0);
-            out.println(k + " " + get(k));
+            String value = get(k);
+            line = value == null ? null : k + " " + getVersion(k) + " " + value;
           }
+          if (line == null) { // deleted in the meantime
+            continue;
+          }
+          out.println(line);
+          keysSent.incrementAndGet();
+          bytesSent.addAndGet(line.length() + 1);
         }
       }
       logger.finer("Sending over " + counter + " key-value pairs");
       out.flush();
       s.close();
       out.close();
+    } finally {
+      transfers.decrementAndGet();
+    }
   }
 
   /**
@@ -189,32 +412,109 @@ public class KVStore implements KVStorageSystem {
     return finalStatus;
   }
   
-  public void setupReplication(int port) {
-    repManager.openReplicationSocket(port);
+  /**
+   * Opens the socket on which the coordinators of this server replicate their data.
+   * 
+   * @param port replication port of this server
+   * @param kvAddress address of this server
+   */
+  public void setupReplication(int port, String kvAddress) {
+    repManager.openReplicationSocket(port, kvAddress);
   }
-  
-  public void setReplica(int replicaNum, InetSocketAddress socketaddress, boolean adding) {
+
+  /**
+   * Sets how updates are passed on to the replicas.
+   * 
+   * @param mode
+   */
+  public void setReplicationMode(ReplicationMode mode) {
+    repManager.setReplicationMode(mode);
+  }
+
+  /**
+   * Waits until the replicas have acknowledged the given version of the key: the tail of the chain
+   * with chain replication, otherwise <code>replicas</code> of the replicas.
+   * 
+   * @param key
+   * @param version
+   * @param replicas replicas that have to acknowledge a fan-out write, 0 to not wait
+   * @return true if the write has been acknowledged in time
+   */
+  public boolean awaitReplication(String key, long version, int replicas) {
+    long start = System.nanoTime();
+    boolean acknowledged;
+    Span span = tracer.start("replication.ack");
     try {
-      repManager.changeReplica(replicaNum, socketaddress, adding);
-    } catch (IOException e) {
-      e.printStackTrace();
+      acknowledged = repManager.awaitAck(key, version, replicas);
+    } finally {
+      if (span != null) {
+        span.close();
+      }
     }
-  }
-  
-  public void changeCoordinator(int coordinatorNum, boolean adding) {
-    repManager.changeCoordinator(coordinatorNum, adding);
+    latencies.recordSince("replication.ack", start);
+    return acknowledged;
   }
 
-  public void startReplication(int repPort) {
-    try {
-      repManager.setup(repPort);
-    } catch (IOException | InterruptedException e) {
-      e.printStackTrace();
+  /**
+   * Sends the stored version of the key in the original directory to the replicas again, so that
+   * outdated replicas catch up. Up-to-date replicas ignore it. Used for read repair, so that only
+   * versions handed out by the coordinator are ever repaired.
+   * 
+   * @param key
+   * @return version of the key, 0 if it has never been stored
+   */
+  public synchronized long repair(String key) {
+    setLookID(0);
+    long version = getVersion(key);
+    if (version > 0) {
+      String value = get(key);
+      repManager.forward(value == null ? key + " " + version : key + " " + version + " " + value);
     }
+    return version;
+  }
+
+  public Tracer getTracer() {
+    return tracer;
+  }
+
+  /**
+   * Sets the tracer that records the spans of traced requests on this server
+   * 
+   * @param tracer
+   */
+  public void setTracer(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  /**
+   * Waits until this server has applied the writes of <code>coordinator</code> up to the given
+   * version.
+   * 
+   * @param coordinator
+   * @param version
+   * @return true if the version has been applied in time
+   */
+  public boolean awaitReplicated(String coordinator, long version) {
+    return repManager.awaitApplied(coordinator, version);
+  }
+
+  /**
+   * Replicates the data of this server to the provided replicas.
+   * 
+   * @param replicas replication addresses of the replicas
+   */
+  public void setReplicas(List<InetSocketAddress> replicas) {
+    repManager.setReplicas(replicas);
   }
 
-  public void startupReplica(int replicaNum, InetSocketAddress socketaddress, int myPort) {
-    repManager.startupReplica(replicaNum, socketaddress, myPort);
+  /**
+   * Drops the replicated data of servers that are no longer coordinators of this server. The data of
+   * a coordinator that left the hash ring is added to the responsibility of this server first.
+   * 
+   * @param sr updated server ring
+   */
+  public void updateCoordinators(ServerRing sr) {
+    repManager.updateCoordinators(sr);
   }
   
   /**
@@ -224,6 +524,18 @@ public class KVStore implements KVStorageSystem {
    * @param repID ID of the replica in order to work on the corresponding directory
    * */
   public void replicateData(PrintWriter out, int repID) {
+    replicateData(out, repID, "");
+  }
+
+  /**
+   * Sends all data in directory repID using the given PrintWriter. Every line starts with
+   * <code>prefix</code>.
+   * 
+   * @param out PrintWriter used for the sending of the data
+   * @param repID ID of the directory
+   * @param prefix prepended to every line
+   */
+  public void replicateData(PrintWriter out, int repID, String prefix) {
     String[] keys;
     synchronized (this) {
       setLookID(repID);
@@ -232,13 +544,28 @@ public class KVStore implements KVStorageSystem {
     for (String k : keys) {
       synchronized (this) {
         setLookID(repID);
-        out.println(k + " " + get(k)); 
+        String value = get(k);
+        if (value != null) { // key might have been deleted in the meantime
+          out.println(prefix + k + " " + getVersion(k) + " " + value);
+        }
       }
-      logger.finer("Sending KEY : " + k);
+      logger.finer(() -> "Sending KEY : " + k);
     }
     out.flush();
   }
 
+  /**
+   * Returns the replication line (key, version and value) of the key in the original directory.
+   * 
+   * @param key
+   * @return line or null if the key is not stored
+   */
+  public synchronized String replicationLine(String key) {
+    setLookID(0);
+    String value = get(key);
+    return value == null ? null : key + " " + getVersion(key) + " " + value;
+  }
+
   /**
    * It deletes every file in the directory defined by repID. Doesn't the directory itself.
    * 
@@ -248,30 +575,150 @@ public class KVStore implements KVStorageSystem {
   	setLookID(repID);
   	disk.emptySubFolder(); // doesn't delete the folder itself
   }
-  
+
   /**
-   * Depending on repID, this methods replaces the directory of replica 1 with the directory of
-   * replica 2 or the other way around. All earlier data in the destination directory gets deleted
-   * and the source directory gets emptied. The directory defined in repID is the source directory.
+   * Returns the directory that holds the replicated data of the given coordinator.
    * 
-   * @param repID ID of the replica in order to work on the corresponding directory
-   * */
-  public void replaceReplica(int repID) {
-  	if(repID == 1)
-  		disk.replaceFolder(1, 2);
-  	else if (repID == 2)
-  		disk.replaceFolder(2, 1);
-  	else {
-  		logger.severe("Error @switchDirectory repID = " + repID);
-  	}
+   * @param coordinator address of the coordinator
+   * @return ID of the directory or -1 if this server holds no data of the coordinator
+   */
+  public synchronized int getReplicaFolder(String coordinator) {
+    return replicaFolders.getOrDefault(coordinator, -1);
+  }
+
+  /**
+   * Returns the directory that holds the replicated data of the given coordinator. If there is none
+   * yet, the lowest unused ID is assigned to the coordinator and its directory is emptied.
+   * 
+   * @param coordinator address of the coordinator
+   * @return ID of the directory
+   */
+  public synchronized int allocateReplicaFolder(String coordinator) {
+    Integer folder = replicaFolders.get(coordinator);
+    if (folder == null) {
+      folder = 1;
+      while (replicaFolders.containsValue(folder) || disk.isSegment(folder)) {
+        folder++;
+      }
+      replicaFolders.put(coordinator, folder);
+      emptyDirectory(folder);
+      logger.fine("Storing replica of " + coordinator + " in directory " + folder);
+    }
+    return folder;
+  }
+
+  /**
+   * Deletes the replicated data of the given coordinator and releases its directory.
+   * 
+   * @param coordinator address of the coordinator
+   */
+  public synchronized void freeReplicaFolder(String coordinator) {
+    Integer folder = replicaFolders.remove(coordinator);
+    if (folder != null) {
+      emptyDirectory(folder);
+      logger.fine("Dropped replica of " + coordinator);
+    }
+  }
+
+  /**
+   * Returns the coordinators this server currently stores replicated data of.
+   * 
+   * @return addresses of the coordinators
+   */
+  public synchronized Set<String> getReplicatedCoordinators() {
+    return new HashSet<String>(replicaFolders.keySet());
   }
   
   /**
-   * Adds all files from replica 1 with ID = 1 to the original directory (which has ID = 0)
+   * Called after <code>coordinator</code> has left the hash ring. Its range now belongs to its
+   * successor, so the replica is promoted without copying or reading any files: the successor merges
+   * it into its original directory (which has ID = 0). Other replicas of the successor merge it into
+   * the successor's replica. With virtual nodes the range is split among several servers, which merge
+   * it as well and only keep their own keys. Everything that depends on the keys runs in the
+   * background, see {@link #compact()}.
+   * 
+   * @param coordinator address of the coordinator that has left the hash ring
+   * @param sr updated server ring
    * */
-	public void addToResponsibility() {
-		disk.copyFolder(1, 0);
-	}
+  public void addToResponsibility(String coordinator, ServerRing sr) {
+    String successor = sr.getCoordinator(coordinator); // now responsible for the range of coordinator
+    synchronized (this) {
+      Integer folder = replicaFolders.remove(coordinator);
+      if (folder == null) {
+        return;
+      }
+      if (sr.hasVirtualNodes()) { // the range of the coordinator is split among several servers
+        disk.getFolders(folder).forEach(id -> takenOver.put(id, sr));
+        disk.mergeFolder(folder, 0);
+        logger.fine("Took over replica of " + coordinator);
+      } else if (sr.getServer().equals(successor)) {
+        promoted.addAll(disk.getFolders(folder));
+        disk.mergeFolder(folder, 0);
+        logger.fine("Promoted replica of " + coordinator);
+      } else if (sr.getCoordinators().contains(successor)) {
+        disk.mergeFolder(folder, allocateReplicaFolder(successor));
+        logger.fine("Merged replica of " + coordinator + " into replica of " + successor);
+      } else {
+        emptyDirectory(folder);
+        return;
+      }
+    }
+    compact();
+  }
+
+  /**
+   * Resolves the merged directories in the background, one key at a time, so that the store is only
+   * locked for single keys. Keys stored in a merged directory and its destination keep their newer
+   * copy. Directories taken over with virtual nodes drop the keys of other servers and forward the
+   * remaining ones to the replicas. The keys of promoted directories are sent to the last replica,
+   * the other replicas already store them.
+   */
+  private void compact() {
+    if (!disk.hasUnresolvedSegments() || !compacting.compareAndSet(false, true)) {
+      return;
+    }
+    new Thread(() -> {
+      do {
+        int segment;
+        while ((segment = disk.nextUnresolvedSegment()) != -1) {
+          compact(segment);
+        }
+        compacting.set(false);
+      } while (disk.hasUnresolvedSegments() && compacting.compareAndSet(false, true));
+    }, "compaction").start();
+  }
+
+  private void compact(int segment) {
+    ServerRing sr;
+    boolean promote;
+    synchronized (this) {
+      sr = takenOver.remove(segment);
+      promote = promoted.remove(segment);
+    }
+    String[] keys = disk.getSegmentKeys(segment);
+    int kept = 0;
+    for (String k : keys) {
+      synchronized (this) {
+        if (sr != null && !sr.isCoordinator(k)) {
+          disk.drop(segment, k);
+          continue;
+        }
+        disk.resolve(segment, k);
+        kept++;
+        if (sr != null) {
+          String line = replicationLine(k);
+          if (line != null) {
+            repManager.forward(line);
+          }
+        }
+      }
+    }
+    disk.setResolved(segment);
+    if (promote) {
+      repManager.replicateToLastReplica(keys);
+    }
+    logger.fine("Resolved " + kept + " of " + keys.length + " keys of merged directory " + segment);
+  }
 
   public void endReplication() {
     try {
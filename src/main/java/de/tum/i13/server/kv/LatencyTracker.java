@@ -0,0 +1,115 @@
+package de.tum.i13.server.kv;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import de.tum.i13.shared.LatencyHistogram;
+
+/**
+ * Latency histograms of this server, one per command and stage, e.g. <code>put.wait</code> (time
+ * a put waits for the store lock), <code>put.service</code> (time it is processed),
+ * <code>disk.read</code> or <code>replication.ack</code>. Recording never blocks.
+ * <p>
+ * Between {@link #begin()} and {@link #end()} the stages recorded by a thread are also summed up
+ * for the request it is processing, see {@link SlowLog}. Every thread reuses one buffer for this, so
+ * that requests do not allocate a map each.
+ */
+public class LatencyTracker {
+  private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+  private final ThreadLocal<Stages> request = ThreadLocal.withInitial(Stages::new);
+
+  /**
+   * Records a latency
+   *
+   * @param name command or stage
+   * @param nanos
+   */
+  public void record(String name, long nanos) {
+    histogram(name).record(nanos);
+    Stages stages = request.get();
+    if (stages.active) {
+      stages.nanos.merge(name, nanos, Long::sum);
+    }
+  }
+
+  /**
+   * Records the time passed since <code>start</code>
+   *
+   * @param name command or stage
+   * @param start value of {@link System#nanoTime()} when the command or stage started
+   */
+  public void recordSince(String name, long start) {
+    record(name, System.nanoTime() - start);
+  }
+
+  /**
+   * Starts collecting the stages the current thread records for a request
+   */
+  public void begin() {
+    Stages stages = request.get();
+    stages.nanos.clear();
+    stages.active = true;
+  }
+
+  /**
+   * Stops collecting the stages of the current thread
+   *
+   * @return time spent in each stage since {@link #begin()} in ns, in the order they were first
+   *         recorded, empty if {@link #begin()} was not called. Only valid until the thread calls
+   *         {@link #begin()} again.
+   */
+  public Map<String, Long> end() {
+    Stages stages = request.get();
+    if (!stages.active) {
+      return Collections.emptyMap();
+    }
+    stages.active = false;
+    return stages.nanos;
+  }
+
+  public LatencyHistogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+  }
+
+  /**
+   * Gets all histograms
+   *
+   * @return histograms by name, ordered by name
+   */
+  public Map<String, LatencyHistogram> histograms() {
+    return new TreeMap<String, LatencyHistogram>(histograms);
+  }
+
+  /**
+   * Summarizes all histograms in one line:
+   * <code>&lt;name&gt;=count:&lt;n&gt;,p50:&lt;us&gt;,p99:&lt;us&gt;,p999:&lt;us&gt;,max:&lt;us&gt;</code>
+   * separated by spaces, latencies in microseconds.
+   *
+   * @return summary, ordered by name
+   */
+  public String summary() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, LatencyHistogram> e : histograms().entrySet()) {
+      LatencyHistogram h = e.getValue();
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(e.getKey()).append("=count:").append(h.getCount())
+          .append(",p50:").append(h.getValueAtPercentile(50) / 1000)
+          .append(",p99:").append(h.getValueAtPercentile(99) / 1000)
+          .append(",p999:").append(h.getValueAtPercentile(99.9) / 1000)
+          .append(",max:").append(h.getMax() / 1000);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Stages of the request a thread is processing
+   */
+  private static final class Stages {
+    private final Map<String, Long> nanos = new LinkedHashMap<String, Long>();
+    private boolean active;
+  }
+}
@@ -0,0 +1,39 @@
+package de.tum.i13.server.kv;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests this server handles per key range, so that the ECS can detect hot ranges.
+ * Ranges are identified by the token they end at.
+ */
+public class LoadTracker {
+  private final ConcurrentHashMap<String, LongAdder> requests = new ConcurrentHashMap<String, LongAdder>();
+
+  /**
+   * Counts a request on the given range
+   * 
+   * @param range token at which the range ends
+   */
+  public void record(String range) {
+    requests.computeIfAbsent(range, r -> new LongAdder()).increment();
+  }
+
+  /**
+   * Returns the requests per range since the last call and starts counting anew
+   * 
+   * @return requests by range
+   */
+  public Map<String, Long> drain() {
+    HashMap<String, Long> counts = new HashMap<String, Long>();
+    for (String range : requests.keySet()) {
+      LongAdder adder = requests.remove(range);
+      if (adder != null) {
+        counts.put(range, adder.sum());
+      }
+    }
+    return counts;
+  }
+}
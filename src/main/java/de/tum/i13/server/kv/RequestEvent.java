@@ -0,0 +1,48 @@
+package de.tum.i13.server.kv;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event of a request processed by {@link KVCommandProcessor}. It is only recorded
+ * while a recording is running, e.g. after starting the server with
+ * <code>-XX:StartFlightRecording</code> or <code>jcmd &lt;pid&gt; JFR.start</code>, and costs
+ * nothing otherwise.
+ */
+@Name("de.tum.i13.Request")
+@Label("KV Request")
+@Category("KV Storage")
+@Description("Request of a client or another server with the time spent in each stage")
+@StackTrace(false)
+class RequestEvent extends jdk.jfr.Event {
+  @Label("Command")
+  String command;
+
+  @Label("Key")
+  String key;
+
+  @Label("Parse")
+  @Timespan
+  long parse;
+
+  @Label("Lock Wait")
+  @Timespan
+  long lockWait;
+
+  @Label("Cache")
+  @Timespan
+  long cache;
+
+  @Label("Disk")
+  @Timespan
+  long disk;
+
+  @Label("Replication")
+  @Description("Forwarding to the replicas and waiting for their acknowledgement")
+  @Timespan
+  long replication;
+}
@@ -0,0 +1,111 @@
+package de.tum.i13.server.kv;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests that took longer than a threshold, together with the time they spent in each stage:
+ * parsing, waiting for the store lock, cache, disk and replication. Only the latest
+ * {@value #CAPACITY} requests are kept, older ones are overwritten.
+ */
+public class SlowLog {
+  public static final int CAPACITY = 128;
+
+  private final Entry[] ring = new Entry[CAPACITY];
+  private long added = 0;
+  private volatile long threshold;
+
+  /**
+   * A slow request
+   */
+  public static class Entry {
+    public final long time; // ms since the epoch, when the request finished
+    public final String command;
+    public final String key;
+    public final long total; // ns
+    public final Map<String, Long> stages; // ns by stage, in the order they happened
+
+    public Entry(String command, String key, long total, Map<String, Long> stages) {
+      this.time = System.currentTimeMillis();
+      this.command = command;
+      this.key = key;
+      this.total = total;
+      this.stages = stages;
+    }
+
+    /**
+     * Formats the entry as
+     * <code>&lt;command&gt;:&lt;key&gt;=time:&lt;ms&gt;,total:&lt;us&gt;,&lt;stage&gt;:&lt;us&gt;...</code>
+     */
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(command).append(':').append(key).append("=time:").append(time).append(",total:")
+          .append(total / 1000);
+      for (Map.Entry<String, Long> e : stages.entrySet()) {
+        sb.append(',').append(e.getKey()).append(':').append(e.getValue() / 1000);
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * @param threshold latency in ms above which a request is logged, 0 to log every request and a
+   *        negative value to log none
+   */
+  public SlowLog(long threshold) {
+    setThreshold(threshold);
+  }
+
+  public void setThreshold(long millis) {
+    threshold = millis < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  public boolean isSlow(long nanos) {
+    return nanos >= threshold;
+  }
+
+  /**
+   * Logs a request
+   *
+   * @param command name of the command, e.g. <code>put</code>
+   * @param key
+   * @param total latency of the request in ns
+   * @param stages time spent in each stage in ns
+   * @return the entry
+   */
+  public Entry add(String command, String key, long total, Map<String, Long> stages) {
+    Entry entry = new Entry(command, key, total, new LinkedHashMap<String, Long>(stages));
+    synchronized (ring) {
+      ring[(int) (added++ % CAPACITY)] = entry;
+    }
+    return entry;
+  }
+
+  /**
+   * Gets the logged requests
+   *
+   * @return requests, newest first
+   */
+  public List<Entry> entries() {
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    synchronized (ring) {
+      for (long i = added - 1; i >= 0 && i >= added - CAPACITY; i--) {
+        entries.add(ring[(int) (i % CAPACITY)]);
+      }
+    }
+    return entries;
+  }
+
+  public void reset() {
+    synchronized (ring) {
+      for (int i = 0; i < CAPACITY; i++) {
+        ring[i] = null;
+      }
+      added = 0;
+    }
+  }
+}
@@ -1,11 +1,14 @@
 package de.tum.i13.server.kv.caching;
 
+import java.util.concurrent.atomic.LongAdder;
 import de.tum.i13.server.kv.KVStorageSystem;
 import de.tum.i13.server.kv.ServerStatus;
 
 public class Cache implements KVStorageSystem {
 
   private final CacheHashMap map;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
 
   public Cache(CachingStrategy strategy, int size) {
     map = new CacheHashMap(strategy, size);
@@ -16,8 +19,33 @@ public class Cache implements KVStorageSystem {
     return ServerStatus.SUCCESS;
   }
 
+  /**
+   * Caches the value together with its version, which is dropped with the value
+   * 
+   * @param key
+   * @param value
+   * @param version
+   * @return ServerStatus.SUCCESS
+   */
+  public ServerStatus put(String key, String value, long version) {
+    map.put(key, value, version);
+    return ServerStatus.SUCCESS;
+  }
+
+  /**
+   * Returns the version cached with the value of the key, without counting a hit or miss
+   * 
+   * @param key
+   * @return version or -1 if it is not cached
+   */
+  public long getVersion(String key) {
+    return map.getVersion(key);
+  }
+
   public String get(String key) {
-    return map.get(key);
+    String value = map.get(key);
+    (value == null ? misses : hits).increment();
+    return value;
   }
 
   public ServerStatus delete(String key) {
@@ -25,6 +53,22 @@ public class Cache implements KVStorageSystem {
     return ServerStatus.SUCCESS;
   }
   
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return map.getEvictions();
+  }
+
+  public int size() {
+    return map.size();
+  }
+
   public void printCache() {
     System.out.println(map);
   }
@@ -17,18 +17,53 @@ public class CacheHashMap extends LinkedHashMap<String, String> {
 
   private final int capacity;
   private final HashMap<String, Integer> usage;
+  private final HashMap<String, Long> versions; // only of cached entries, dropped with them
   private final boolean lfu;
   private String minKey;
+  private long evictions;
 
   public CacheHashMap(CachingStrategy strategy, int capacity) {
     super(capacity, .75f, strategy == CachingStrategy.LRU);
     this.capacity = capacity;
     usage = new HashMap<String, Integer>();
+    versions = new HashMap<String, Long>();
     lfu = strategy == CachingStrategy.LFU;
   }
 
   @Override
   public String put(String key, String value) {
+    versions.remove(key); // unknown for this value
+    return insert(key, value);
+  }
+
+  /**
+   * Caches the value together with its version
+   * 
+   * @param key
+   * @param value
+   * @param version
+   * @return previous value
+   */
+  public String put(String key, String value, long version) {
+    String previous = insert(key, value);
+    if (containsKey(key)) { // not displaced right away
+      versions.put(key, version);
+    }
+    return previous;
+  }
+
+  /**
+   * Returns the version cached with the value of the key
+   * 
+   * @param key
+   * @return version or -1 if the key is not cached with its version
+   */
+  public long getVersion(String key) {
+    Long version = versions.get(key);
+    return version == null ? -1 : version;
+  }
+
+  private String insert(String key, String value) {
     incrementUsage(key);
     if (size() >= capacity) {
       minKey = Collections.min(usage.entrySet(), Map.Entry.comparingByValue()).getKey();
@@ -46,18 +81,34 @@ public class CacheHashMap extends LinkedHashMap<String, String> {
   @Override
   public String remove(Object key) {
     usage.remove(key);
+    versions.remove(key);
     return super.remove(key);
   }
 
   @Override
   protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
     boolean full = size() > capacity;
+    if (full) {
+      evictions++;
+    }
     if (full && lfu) {
       remove(minKey);
       return false;
     }
+    if (full) {
+      versions.remove(eldest.getKey());
+    }
     return full;
   }
+
+  /**
+   * Returns how many entries have been displaced to make room for new ones
+   * 
+   * @return evictions since the map was created
+   */
+  public long getEvictions() {
+    return evictions;
+  }
   
   private void incrementUsage(String key) {
     usage.computeIfPresent(key, (k, v) -> v + 1);
@@ -12,6 +12,8 @@ import de.tum.i13.server.chat.ChatManager;
 import de.tum.i13.server.kv.KVCommandProcessor;
 import de.tum.i13.server.threadperconnection.Main.ServerToECS;
 import de.tum.i13.shared.Constants;
+import de.tum.i13.shared.Span;
+import de.tum.i13.shared.Tracer;
 
 public class ConnectionHandleThread extends Thread {
   private KVCommandProcessor cp;
@@ -55,10 +57,21 @@ public class ConnectionHandleThread extends Thread {
             continue;
           }
 
-          if (line.startsWith("chat")) {
-            cs.process(line);
-          } else {
-            out.println(cp.process(line));
+          String[] traced = Tracer.split(line); // context of a traced request and the request
+          line = traced[1];
+          Span span = cp.kvs.getTracer().start(line.split("\\s", 2)[0], traced[0]);
+          try {
+            if (line.startsWith("chat")) {
+              long start = System.nanoTime();
+              cs.process(line);
+              cp.latencies.recordSince("chat.service", start);
+            } else {
+              out.println(cp.process(line));
+            }
+          } finally {
+            if (span != null) {
+              span.close();
+            }
           }
         }
       } catch (SocketException e) {
@@ -68,10 +81,11 @@ public class ConnectionHandleThread extends Thread {
       }
       
       //ste.removeUser(username);
-      cp.connectionClosed(remoteAddress.getAddress());
 
     } catch (IOException e) {
       e.printStackTrace();
+    } finally {
+      cp.connectionClosed(remoteAddress.getAddress()); // also if the client vanished
     }
   }
 
@@ -89,10 +103,6 @@ public class ConnectionHandleThread extends Thread {
     return username;
   }
 
-  public void updateSR(String newKeyRange) {
-    cp.updateServerRing(newKeyRange);
-  }
-
   public void setWriteLock(boolean flag) {
     cp.setWriteLock(flag);
   }
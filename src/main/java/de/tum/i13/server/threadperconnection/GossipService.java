@@ -0,0 +1,160 @@
+package de.tum.i13.server.threadperconnection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.shared.ServerUtility;
+
+/**
+ * Spreads ring updates among the servers, so that the ECS only has to inform a few of them. Every
+ * {@link #INTERVAL} ms the server sends the epoch of its ring to a random other server over UDP, on
+ * the same port number as its KV service. Whoever has the older ring gets the changes from the
+ * other one (push-pull), so an update reaches all servers after O(log n) rounds.
+ * <p>
+ * Messages: <code>ping &lt;epoch&gt;</code>, <code>delta &lt;epoch&gt; &lt;changes&gt;</code> and
+ * <code>range &lt;epoch&gt; &lt;keyrange&gt;</code> if the changes are no longer known.
+ */
+public class GossipService extends Thread {
+  private static final Logger logger = Logger.getLogger(Main.class.getName());
+  public static final long INTERVAL = 200; // ms between two gossip rounds
+  private static final int MAX_PACKET = 65507; // larger rings are only sent by the ECS
+
+  private final DatagramSocket socket;
+  private final String self;
+  private final HashRing hr;
+  private final RingUpdates updates;
+  private final Timer timer = new Timer(true);
+  private final Random random = new Random();
+
+  /**
+   * Applies ring updates learned from other servers
+   */
+  public interface RingUpdates {
+    void update(String keyRange, long epoch);
+
+    void applyDelta(String delta, long epoch);
+  }
+
+  /**
+   * @param kvAddress address of this server, the UDP socket is bound to the same address and port
+   * @param hr ring of this server
+   * @param updates receives newer rings of other servers
+   * @throws IOException if the port is already in use
+   */
+  public GossipService(String kvAddress, HashRing hr, RingUpdates updates) throws IOException {
+    this.self = kvAddress;
+    this.hr = hr;
+    this.updates = updates;
+    socket = new DatagramSocket(new InetSocketAddress(ServerUtility.getAddress(kvAddress),
+        ServerUtility.getPort(kvAddress)));
+    setDaemon(true);
+  }
+
+  @Override
+  public void run() {
+    timer.scheduleAtFixedRate(new TimerTask() {
+      @Override
+      public void run() {
+        gossip();
+      }
+    }, INTERVAL, INTERVAL);
+
+    byte[] buffer = new byte[MAX_PACKET];
+    while (!socket.isClosed()) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+        handle(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8),
+            packet.getSocketAddress());
+      } catch (IOException e) {
+        if (!socket.isClosed()) {
+          logger.warning("Error while receiving gossip: " + e.getMessage());
+        }
+      } catch (RuntimeException e) {
+        logger.warning("Invalid gossip message: " + e.getMessage());
+      }
+    }
+  }
+
+  public void close() {
+    timer.cancel();
+    socket.close();
+  }
+
+  /**
+   * Sends the epoch of this server to a random other server of the ring
+   */
+  private void gossip() {
+    List<String> peers = hr.getServers();
+    peers.remove(self);
+    if (peers.isEmpty()) {
+      return;
+    }
+    String peer = peers.get(random.nextInt(peers.size()));
+    send("ping " + hr.getEpoch(),
+        new InetSocketAddress(ServerUtility.getAddress(peer), ServerUtility.getPort(peer)));
+  }
+
+  private void handle(String message, SocketAddress sender) {
+    String[] tokens = message.split(" ", 3);
+    long epoch = Long.parseLong(tokens[1]);
+    long known = hr.getEpoch();
+    switch (tokens[0]) {
+      case "ping": {
+        if (epoch < known) {
+          push(epoch, known, sender);
+        } else if (epoch > known) {
+          send("ping " + known, sender); // lets the sender push its newer ring
+        }
+        break;
+      }
+      case "delta": {
+        if (epoch > known) {
+          logger.finest(() -> "Ring epoch " + epoch + " learned by gossip");
+          updates.applyDelta(tokens.length == 3 ? tokens[2] : "", epoch);
+        }
+        break;
+      }
+      case "range": {
+        if (epoch > known) {
+          logger.finest(() -> "Ring epoch " + epoch + " learned by gossip");
+          updates.update(tokens.length == 3 ? tokens[2] : "", epoch);
+        }
+        break;
+      }
+      default: {
+        logger.warning("Unknown gossip message " + tokens[0]);
+      }
+    }
+  }
+
+  /**
+   * Sends the changes since the epoch of the other server, or the complete keyrange
+   */
+  private void push(long since, long epoch, SocketAddress receiver) {
+    String delta = hr.getDelta(since);
+    send(delta != null ? "delta " + epoch + " " + delta : "range " + epoch + " " + hr.getKeyRange(),
+        receiver);
+  }
+
+  private void send(String message, SocketAddress receiver) {
+    byte[] data = message.getBytes(StandardCharsets.UTF_8);
+    if (data.length > MAX_PACKET) {
+      return;
+    }
+    try {
+      socket.send(new DatagramPacket(data, data.length, receiver));
+    } catch (IOException e) {
+      logger.fine("Unable to gossip with " + receiver + ": " + e.getMessage());
+    }
+  }
+}
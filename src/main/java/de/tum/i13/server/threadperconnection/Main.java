@@ -11,24 +11,44 @@ import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.Scanner;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
+import de.tum.i13.server.ecs.HashFunction;
 import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.ecs.HeartbeatMonitor;
+import de.tum.i13.server.ecs.ReplicationMode;
 import de.tum.i13.server.kv.KVCommandProcessor;
+import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.kv.caching.Cache;
 import de.tum.i13.shared.ConfigServer;
+import de.tum.i13.shared.MetricsRegistry;
 import de.tum.i13.shared.ServerStart;
 import de.tum.i13.shared.ServerUtility;
 
 public class Main {
+  private static final int LOAD_INTERVAL = 5000; // ms between two load reports to the ECS
   private KVCommandProcessor cp;
   public HashRing hr = new HashRing();
-  private ArrayList<ConnectionHandleThread> chtList = new ArrayList<ConnectionHandleThread>();
+  private final List<ConnectionHandleThread> chtList = new CopyOnWriteArrayList<ConnectionHandleThread>();
   private boolean writeLock = false;
   private final Object hrLock = new Object();
   private final Logger logger = Logger.getLogger(Main.class.getName());
   
   public String kvAddress; // address which clients use to reach the server
   private ECSCommThread ecsThread;
+  private ServerToECS ste;
+  private ServerSocket serverSocket;
+  private volatile boolean left = false; // left the ring before the process exits
   
   public static void main(String[] args) throws IOException {
     ConfigServer cfg = parseCommandlineArgs(args);
@@ -36,11 +56,46 @@ public class Main {
     ServerSocket socket = m.setup(cfg);
     m.start(socket);
   }
+
+  /**
+   * Starts a server that accepts clients in a thread of its own, so that a whole cluster can run in
+   * one process and servers can leave it again, see {@link #leave()}
+   * 
+   * @param args command line arguments as for {@link #main(String[])}
+   * @return the server, once it has received the hash ring
+   */
+  public static Main startInProcess(String[] args) throws IOException {
+    ConfigServer cfg = parseCommandlineArgs(args);
+    Main m = new Main();
+    ServerSocket socket = m.setup(cfg);
+    Thread acceptor = new Thread(() -> {
+      try {
+        m.start(socket);
+      } catch (IOException e) {
+        if (!socket.isClosed()) {
+          e.printStackTrace();
+        }
+      }
+    }, "server " + m.kvAddress);
+    acceptor.start();
+    return m;
+  }
+
+  /**
+   * Leaves the ring as on shutdown: the data is handed off to the remaining servers, afterwards no
+   * new clients are accepted. Returns once the ECS has let the server go.
+   */
+  public void leave() throws IOException, InterruptedException {
+    left = true;
+    ecsThread.closeServer();
+    ecsThread.join();
+    serverSocket.close();
+  }
   
   private ServerSocket setup(ConfigServer cfg) throws IOException {
 //    cfg.port = 0; // for testing
 //    cfg.bootstrap = new InetSocketAddress("127.0.0.1", 5153); // for testing
-    ServerSocket serverSocket = ServerStart.setup(cfg);
+    serverSocket = ServerStart.setup(cfg);
     kvAddress = serverSocket.getLocalSocketAddress().toString().substring(1);
 
     // for testing
@@ -58,13 +113,20 @@ public class Main {
     cfg.port = serverSocket.getLocalPort();
     setupLogging(cfg.logfile, cfg.loglevel);
     cp = ServerStart.getCommandProcessor(cfg);
+    if (cfg.metricsPort > 0) {
+      serveMetrics(cfg.listenaddr, cfg.metricsPort);
+    }
 
-    ecsThread = new ECSCommThread(cfg.bootstrap);
+    ecsThread = new ECSCommThread(cfg.bootstrap, cfg.weight);
+    ste = new ServerToECS(ecsThread.out);
     ecsThread.start();
 
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
+        if (left) {
+          return;
+        }
         logger.info("Server closing..");
         ecsThread.closeServer();
         try {
@@ -83,73 +145,98 @@ public class Main {
       } catch (InterruptedException e) {
         e.printStackTrace();
       }
-      cp.updateServerRing(hr.getKeyRange());
+      cp.updateServerRing(hr.getKeyRange(), hr.getEpoch());
     }
     
     return serverSocket;
   }
 
   private void start(ServerSocket socket) throws IOException {
-    ServerToECS ste = new ServerToECS(ecsThread.out);
     logger.info("Server " + kvAddress + " starting..");
     while (true) {  // listen to new clients and open a thread to handle each one of them
       Socket clientSocket = socket.accept();
-      cp.updateServerRing(hr.getKeyRange()); // make sure hash ring is up to date
       ConnectionHandleThread th = new ConnectionHandleThread(cp, clientSocket, ste);
       th.setWriteLock(writeLock); // potentially set write lock
+      chtList.removeIf(t -> !t.isAlive());
       chtList.add(th);
       th.start();
     }
   }
 
+  /**
+   * Exposes the metrics of this server in the Prometheus text format at
+   * <code>http://address:port/metrics</code>
+   */
+  private void serveMetrics(String address, int port) throws IOException {
+    MetricsRegistry metrics = new MetricsRegistry();
+    KVStore kvs = cp.kvs;
+    Cache cache = kvs.getCache();
+    metrics.counter("kv_cache_hits_total", "Gets answered from the cache", cache::getHits);
+    metrics.counter("kv_cache_misses_total", "Gets that had to read the disk", cache::getMisses);
+    metrics.counter("kv_cache_evictions_total", "Entries displaced from the cache", cache::getEvictions);
+    metrics.gauge("kv_cache_entries", "Entries in the cache", cache::size);
+    metrics.gauge("kv_connections_active", "Open client connections",
+        () -> chtList.stream().filter(Thread::isAlive).count());
+    metrics.gauges("kv_keys", "Keys stored per directory, 0 for the own data and the others for replicas",
+        "directory", kvs::getKeyCounts);
+    metrics.counter("kv_transfer_keys_sent_total", "Key-value pairs sent to other servers after ring changes", kvs::getKeysSent);
+    metrics.counter("kv_transfer_bytes_sent_total", "Bytes sent to other servers after ring changes", kvs::getBytesSent);
+    metrics.counter("kv_transfer_keys_received_total", "Key-value pairs received from other servers after ring changes", kvs::getKeysReceived);
+    metrics.counter("kv_transfer_bytes_received_total", "Bytes received from other servers after ring changes", kvs::getBytesReceived);
+    metrics.gauge("kv_transfers_active", "Transfers to or from other servers that are running", kvs::getActiveTransfers);
+    metrics.gauge("kv_replication_replicas", "Replicas this server forwards its writes to",
+        () -> kvs.getReplicationManager().getReplicaCount());
+    metrics.gauge("kv_replication_pending_acks", "Writes forwarded along the chain that the tail has not acknowledged yet",
+        () -> kvs.getReplicationManager().getPendingAcks());
+    metrics.gauge("kv_ring_epoch", "Epoch of the hash ring known to this server", hr::getEpoch);
+    metrics.summaries("kv_latency_seconds", "Latency per command and stage", "stage", kvs.latencies::histograms);
+    metrics.serve(address, port);
+    logger.info("Metrics available at http://" + address + ":" + port + "/metrics");
+  }
+
   ///////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   
+  /**
+   * Forwards user management requests of the client-handling threads to the ECS and waits for the
+   * result that the {@link ECSCommThread} receives.
+   */
   public static class ServerToECS {
-    private static String username;
-    private static final Object userLock = new Object();
-    private PrintWriter out;
+    private final PrintWriter out;
+    private final BlockingQueue<Optional<String>> results = new LinkedBlockingQueue<Optional<String>>();
     
     public ServerToECS(PrintWriter out) {
       this.out = out;
     }
     
-    public String addUser(String username) {
-      out.println("addUser");
-      out.println(username);
-      out.flush();
-      synchronized (ServerToECS.class) {
-        synchronized (userLock) {
-          try {
-            userLock.wait(); 
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
-        } 
-      }
-      return ServerToECS.username;
+    public synchronized String addUser(String username) {
+      send("addUser", username);
+      return awaitResult();
     }
     
-    public boolean removeUser(String username) {
-      out.println("removeUser");
-      out.println(username);
-      out.flush();
-      synchronized (ServerToECS.class) {
-        synchronized (userLock) {
-          try {
-            userLock.wait(); 
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
-        } 
-      }
-      return ServerToECS.username != null;
+    public synchronized boolean removeUser(String username) {
+      send("removeUser", username);
+      return awaitResult() != null;
     }
     
-    public static void setUsername(String username) {
-      synchronized (userLock) {
-        ServerToECS.username = username;
-        userLock.notify(); 
+    public void setUsername(String username) {
+      results.add(Optional.ofNullable(username));
+    }
+
+    private void send(String cmd, String username) {
+      synchronized (out) {
+        out.println(cmd);
+        out.println(username);
+        out.flush();
+      }
+    }
+
+    private String awaitResult() {
+      try {
+        return results.take().orElse(null);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+        return null;
       }
     }
   }
@@ -161,8 +248,12 @@ public class Main {
   public class ECSCommThread extends Thread {
     private final Socket ecsSocket;
     private PrintWriter out;
+    private final double weight;
+    private final Timer reporter = new Timer(true); // load reports and heartbeats
+    private GossipService gossip; // only if the ECS lets the servers gossip
 
-    public ECSCommThread(InetSocketAddress bootstrap) {
+    public ECSCommThread(InetSocketAddress bootstrap, double weight) {
+      this.weight = weight;
       ecsSocket = new Socket();
       try {
         ecsSocket.connect(bootstrap);
@@ -175,6 +266,9 @@ public class Main {
     @Override
     public void run() {
       sendMessage(kvAddress);
+      sendMessage(String.valueOf(weight));
+      reporter.scheduleAtFixedRate(new LoadReportTask(), LOAD_INTERVAL, LOAD_INTERVAL);
+      reporter.scheduleAtFixedRate(new HeartbeatTask(), 0, HeartbeatMonitor.HEARTBEAT_INTERVAL);
 
       try (Scanner in = new Scanner(ecsSocket.getInputStream())) {
         readLoop: while (!ecsSocket.isClosed()) {
@@ -184,7 +278,8 @@ public class Main {
             switch (cmd) {
               case "receive": {
                 int recvPort = Integer.parseInt(in.next());
-                receive(recvPort);
+                int senders = Integer.parseInt(in.next());
+                receive(recvPort, senders);
                 break;
               }
 
@@ -193,57 +288,76 @@ public class Main {
                 String sendKvAddress = in.next();
                 String sendAddress = ServerUtility.getAddress(sendKvAddress); // address to send to
                 int sendPort = Integer.parseInt(in.next()); // port to send to
-                boolean closing = in.nextBoolean();
-                if (closing) {
-                  prepareShutdown(sendAddress, sendPort);
-                } else {
-                  sendToNewServer(sendKvAddress, sendAddress, sendPort);
+                sendToNewServer(sendKvAddress, sendAddress, sendPort);
+                break;
+              }
+
+              case "handoff": {
+                setWriteLock(true);
+                int count = Integer.parseInt(in.next());
+                LinkedHashMap<String, Integer> targets = new LinkedHashMap<String, Integer>();
+                for (int i = 0; i < count; i++) {
+                  String targetKvAddress = in.next();
+                  targets.put(targetKvAddress, Integer.parseInt(in.next()));
                 }
+                prepareShutdown(targets);
                 break;
               }
 
               case "update": {
                 String keyrange = in.next();
-                updateHashRing(keyrange);
+                long epoch = Long.parseLong(in.next());
+                updateHashRing(keyrange, epoch);
+                break;
+              }
+
+              case "delta": {
+                long from = Long.parseLong(in.next());
+                long to = Long.parseLong(in.next());
+                String delta = in.next();
+                applyHashRingDelta(from, to, delta);
                 break;
               }
 
               case "openReplicationPort": {
                 int repPort = Integer.parseInt(in.next());
-                cp.kvs.setupReplication(repPort);
+                cp.kvs.setupReplication(repPort, kvAddress);
                 break;
               }
 
-              case "setReplica": {
-                int replicaNum = Integer.parseInt(in.next());
-                String address = in.next();
-                int port = Integer.parseInt(in.next());
-                InetSocketAddress socketaddress = new InetSocketAddress(address, port);
-                boolean adding = Boolean.parseBoolean(in.next());
-                cp.kvs.setReplica(replicaNum, socketaddress, adding);
+              case "replicationFactor": {
+                int replicationFactor = Integer.parseInt(in.next());
+                hr.setReplicationFactor(replicationFactor);
+                cp.sr.setReplicationFactor(replicationFactor);
                 break;
               }
 
-              case "setCoordinator": {
-                int coordinatorNum = Integer.parseInt(in.next());
-                boolean adding = Boolean.parseBoolean(in.next());
-                cp.kvs.changeCoordinator(coordinatorNum, adding);
+              case "gossip": {
+                startGossip();
                 break;
               }
 
-              case "startReplication": {
-                int repPort = Integer.parseInt(in.next());
-                cp.kvs.startReplication(repPort);
+              case "hashFunction": {
+                HashFunction hashFunction = HashFunction.valueOf(in.next());
+                hr.setHashFunction(hashFunction);
+                cp.sr.setHashFunction(hashFunction);
                 break;
               }
 
-              case "startup": {
-                int replicaNum = Integer.parseInt(in.next());
-                String address = in.next();
-                int port = Integer.parseInt(in.next());
-                InetSocketAddress socketaddress = new InetSocketAddress(address, port);
-                int myPort = Integer.parseInt(in.next());
-                cp.kvs.startupReplica(replicaNum, socketaddress, myPort);
+              case "replicationMode": {
+                cp.kvs.setReplicationMode(ReplicationMode.valueOf(in.next()));
+                break;
+              }
+
+              case "replicas": {
+                int count = Integer.parseInt(in.next());
+                ArrayList<InetSocketAddress> replicas = new ArrayList<InetSocketAddress>();
+                for (int i = 0; i < count; i++) {
+                  String address = in.next();
+                  int port = Integer.parseInt(in.next());
+                  replicas.add(new InetSocketAddress(address, port));
+                }
+                cp.kvs.setReplicas(replicas);
                 break;
               }
 
@@ -253,6 +367,9 @@ public class Main {
               }
 
               case "close": {
+                if (gossip != null) {
+                  gossip.close();
+                }
                 cp.kvs.deleteAll();
                 sendMessage("exit");
                 break readLoop;
@@ -269,7 +386,7 @@ public class Main {
                 if (!success) {
                   username = null;
                 }
-                ServerToECS.setUsername(username);
+                ste.setUsername(username);
                 break;
               }
       
@@ -285,21 +402,81 @@ public class Main {
 
     }
 
+    /**
+     * Sends the requests per range since the last report to the ECS, which moves hot ranges.
+     */
+    private class LoadReportTask extends TimerTask {
+      @Override
+      public void run() {
+        Map<String, Long> requests = cp.load.drain();
+        StringBuilder sb = new StringBuilder("load\n").append(requests.size());
+        for (Entry<String, Long> range : requests.entrySet()) {
+          sb.append('\n').append(range.getKey()).append(' ').append(range.getValue());
+        }
+        sendMessage(sb.toString());
+      }
+    }
+
+    /**
+     * Tells the ECS that this server is alive. Sent by the timer, so that heartbeats continue while
+     * this thread transfers data.
+     */
+    private class HeartbeatTask extends TimerTask {
+      @Override
+      public void run() {
+        sendMessage("heartbeat");
+      }
+    }
+
     public synchronized void closeServer() {
+      reporter.cancel();
        sendMessage("closing"); 
     }
 
-    private void receive(int recvPort) throws IOException {
+    private void receive(int recvPort, int senders) throws IOException {
       ServerSocket ss = new ServerSocket();
       String address = ServerUtility.getAddress(kvAddress);
       InetSocketAddress sa = new InetSocketAddress(address, recvPort);
       ss.bind(sa);
-      cp.kvs.receiveData(ss);
+      try {
+        cp.kvs.receiveData(ss, senders);
+      } finally {
+        sendMessage("received"); // lets the ECS start the next rebalance involving this server
+      }
     }
 
-    private void prepareShutdown(String sendAddress, int sendPort) throws IOException {
+    /**
+     * Sends every server the keys that it is responsible for once this server has left the ring.
+     * The transfers run in parallel.
+     * 
+     * @param targets receiving ports by the address of the servers
+     */
+    private void prepareShutdown(Map<String, Integer> targets) throws IOException {
       logger.finer("Preparing to shutdown server");
-      cp.kvs.sendData(sendAddress, sendPort, null);
+      HashRing remaining = new HashRing(hr.getKeyRange());
+      remaining.setHashFunction(hr.getHashFunction());
+      remaining.removeServer(kvAddress);
+      ArrayList<Thread> transfers = new ArrayList<Thread>();
+      for (Entry<String, Integer> target : targets.entrySet()) {
+        ServerRing sr = new ServerRing(remaining, target.getKey());
+        String sendAddress = ServerUtility.getAddress(target.getKey());
+        Thread transfer = new Thread(() -> {
+          try {
+            cp.kvs.sendData(sendAddress, target.getValue(), sr);
+          } catch (IOException e) {
+            logger.warning("Unable to hand off data to " + target.getKey() + ": " + e.getMessage());
+          }
+        });
+        transfer.start();
+        transfers.add(transfer);
+      }
+      for (Thread transfer : transfers) {
+        try {
+          transfer.join();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
       sendMessage("exit");
       cp.kvs.deleteAll();
     }
@@ -312,15 +489,69 @@ public class Main {
       cp.kvs.deleteRangeData(sr);
     }
 
-    private void updateHashRing(String newRange) {
+    /**
+     * Sets the hash ring of the given epoch, unless a newer one has already been learned by gossip
+     * 
+     * @param newRange
+     * @param epoch
+     */
+    private void updateHashRing(String newRange, long epoch) {
       logger.finest("Updating key range");
       synchronized (hrLock) {
+        if (epoch < hr.getEpoch()) {
+          return;
+        }
         hr.setKeyRange(newRange);
+        hr.setEpoch(epoch);
+        cp.updateServerRing(newRange, epoch); // shared by all client-handling threads
         hrLock.notify();
       }
-      synchronized (hr) {
-        chtList.forEach(t -> t.updateSR(hr.getKeyRange())); // send update to all client-handling threads 
+      cp.kvs.updateCoordinators(cp.sr);
+    }
+
+    /**
+     * Applies the changes of the hash ring that the ECS has made since the last update. Changes
+     * that are already known by gossip are applied again, which does not change the ring.
+     * 
+     * @param from epoch the changes are based on
+     * @param to epoch after the changes
+     * @param delta changes
+     */
+    private void applyHashRingDelta(long from, long to, String delta) {
+      synchronized (hrLock) {
+        if (to <= hr.getEpoch()) {
+          return;
+        }
+        if (hr.getEpoch() < from) {
+          logger.warning("Hash ring delta from epoch " + from + " but ring is at " + hr.getEpoch());
+        }
+        logger.finest("Applying key range delta");
+        hr.applyDelta(delta, to);
+        cp.sr.applyDelta(delta, to);
+        hrLock.notify();
+      }
+      cp.kvs.updateCoordinators(cp.sr);
+    }
+
+    /**
+     * Starts exchanging ring updates with the other servers
+     */
+    private void startGossip() throws IOException {
+      if (gossip != null) {
+        return;
       }
+      gossip = new GossipService(kvAddress, hr, new GossipService.RingUpdates() {
+        @Override
+        public void update(String keyRange, long epoch) {
+          updateHashRing(keyRange, epoch);
+        }
+
+        @Override
+        public void applyDelta(String delta, long epoch) {
+          applyHashRingDelta(hr.getEpoch(), epoch, delta);
+        }
+      });
+      gossip.start();
     }
 
     private void setWriteLock(boolean status) {
@@ -329,8 +560,10 @@ public class Main {
     }
 
     private void sendMessage(String msg) {
-      out.println(msg);
-      out.flush();
+      synchronized (out) {
+        out.println(msg);
+        out.flush();
+      }
     }
   }
 }
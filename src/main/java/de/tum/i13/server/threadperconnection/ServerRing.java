@@ -1,6 +1,8 @@
 package de.tum.i13.server.threadperconnection;
 
+import java.util.ArrayList;
 import java.util.List;
+import de.tum.i13.server.ecs.HashFunction;
 import de.tum.i13.server.ecs.HashRing;
 
 public class ServerRing {
@@ -69,6 +71,70 @@ public class ServerRing {
     return hr.getReadResponsibleServers(key);
   }
 
+  /**
+   * Getter for the servers whose data is replicated on this server
+   * 
+   * @return coordinators, empty if replication is not active
+   */
+  public List<String> getCoordinators() {
+    return hr.getCoordinators(server);
+  }
+
+  /**
+   * Gets the ranges this server is the coordinator of, more than one with virtual nodes
+   * 
+   * @return ranges in the form <code>&lt;start&gt;-&lt;end&gt;</code>
+   */
+  public List<String> getOwnedRanges() {
+    List<String> owned = new ArrayList<String>();
+    for (String range : hr.getKeyRange().split(";")) {
+      String[] tokens = range.split(",");
+      if (tokens.length == 3 && tokens[2].equals(server)) {
+        owned.add(tokens[0] + "-" + tokens[1]);
+      }
+    }
+    return owned;
+  }
+
+  /**
+   * Checks if the given server is part of the hash ring
+   * 
+   * @param server
+   * @return true if the server is in the ring, false otherwise
+   */
+  public boolean contains(String server) {
+    return hr.contains(server);
+  }
+
+  /**
+   * Gets the end of the range that contains the key
+   * 
+   * @param key
+   * @return token identifying the range
+   */
+  public String getRangeToken(String key) {
+    return hr.getRangeToken(key);
+  }
+
+  /**
+   * Gets the end of the range that contains the key if this server is its coordinator
+   * 
+   * @param key
+   * @return token identifying the range, null if this server is not the coordinator of the key
+   */
+  public String getCoordinatorRange(String key) {
+    return hr.getCoordinatorRange(server, key);
+  }
+
+  /**
+   * Checks if servers own several tokens of the hash ring
+   * 
+   * @return true if virtual nodes are used, false otherwise
+   */
+  public boolean hasVirtualNodes() {
+    return hr.hasVirtualNodes();
+  }
+
   /**
    * Updates the hash ring with the provided key range
    * 
@@ -78,6 +144,70 @@ public class ServerRing {
     hr.setKeyRange(newKeyRange);
   }
 
+  /**
+   * Updates the hash ring with the provided key range of the given epoch
+   * 
+   * @param newKeyRange
+   * @param epoch
+   */
+  public void update(String newKeyRange, long epoch) {
+    synchronized (hr) {
+      hr.setKeyRange(newKeyRange);
+      hr.setEpoch(epoch);
+    }
+  }
+
+  /**
+   * Applies the changes of the hash ring up to the given epoch
+   * 
+   * @param delta
+   * @param epoch
+   */
+  public void applyDelta(String delta, long epoch) {
+    hr.applyDelta(delta, epoch);
+  }
+
+  /**
+   * Getter for the epoch of the hash ring
+   * 
+   * @return epoch
+   */
+  public long getEpoch() {
+    return hr.getEpoch();
+  }
+
+  /**
+   * Gets the changes of the hash ring since the given epoch
+   * 
+   * @param since
+   * @return changes, null if the complete keyrange is needed
+   */
+  public String getDelta(long since) {
+    return hr.getDelta(since);
+  }
+
+  /**
+   * Sets the amount of servers that store each key
+   * 
+   * @param replicationFactor
+   */
+  public void setReplicationFactor(int replicationFactor) {
+    hr.setReplicationFactor(replicationFactor);
+  }
+
+  /**
+   * Sets the function that places keys on the ring
+   * 
+   * @param hashFunction
+   */
+  public void setHashFunction(HashFunction hashFunction) {
+    hr.setHashFunction(hashFunction);
+  }
+
+  public HashFunction getHashFunction() {
+    return hr.getHashFunction();
+  }
+
   public String getServer() {
     return server;
   }
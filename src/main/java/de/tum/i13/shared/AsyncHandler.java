@@ -0,0 +1,131 @@
+package de.tum.i13.shared;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler that hands log records to a writer thread instead of writing them on the thread that
+ * logs. Records are put into a bounded ring buffer, the writer takes them out in batches, formats
+ * and publishes them to the wrapped handler and flushes it once per batch. If the buffer is full,
+ * records are dropped rather than blocking a request; the number of dropped records is logged with
+ * the next batch.
+ */
+public class AsyncHandler extends Handler {
+  public static final int DEFAULT_CAPACITY = 8192;
+  private static final int BATCH = 256;
+
+  private final Handler target;
+  private final ArrayBlockingQueue<LogRecord> buffer;
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a handler with a buffer of {@value #DEFAULT_CAPACITY} records
+   *
+   * @param target handler the records are written to
+   */
+  public AsyncHandler(Handler target) {
+    this(target, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param target handler the records are written to
+   * @param capacity number of records buffered before records are dropped
+   */
+  public AsyncHandler(Handler target, int capacity) {
+    this.target = target;
+    this.buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+    writer = new Thread(this::write, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+    record.getSourceClassName(); // infers the caller now, on the writer thread it would be wrong
+    if (!buffer.offer(record)) {
+      dropped.incrementAndGet();
+    } else {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Writes all buffered records on the calling thread and flushes the wrapped handler
+   */
+  @Override
+  public void flush() {
+    synchronized (target) {
+      drain(new ArrayList<LogRecord>(BATCH));
+    }
+  }
+
+  /**
+   * Writes the remaining records and closes the wrapped handler
+   */
+  @Override
+  public void close() {
+    closed = true;
+    writer.interrupt();
+    try {
+      writer.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (target) {
+      drain(new ArrayList<LogRecord>(BATCH));
+      target.close();
+    }
+  }
+
+  /**
+   * Gets the number of records dropped because the buffer was full
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  private void write() {
+    ArrayList<LogRecord> batch = new ArrayList<LogRecord>(BATCH);
+    while (!closed) {
+      if (buffer.isEmpty()) { // waits without the lock, so flush() never waits for an empty buffer
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+        continue;
+      }
+      synchronized (target) { // a record taken out of the buffer is written before flush() returns
+        drain(batch);
+      }
+    }
+  }
+
+  private void drain(ArrayList<LogRecord> batch) {
+    do {
+      buffer.drainTo(batch, BATCH - batch.size());
+      for (LogRecord record : batch) {
+        try {
+          target.publish(record);
+        } catch (RuntimeException e) {
+          reportError(null, e, ErrorManager.WRITE_FAILURE);
+        }
+      }
+      batch.clear();
+    } while (!buffer.isEmpty());
+    long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      target.publish(new LogRecord(Level.WARNING,
+          "Log buffer full, dropped " + lost + " records"));
+    }
+    target.flush();
+  }
+}
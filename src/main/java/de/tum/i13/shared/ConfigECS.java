@@ -2,6 +2,8 @@ package de.tum.i13.shared;
 
 import java.net.InetSocketAddress;
 import java.nio.file.Path;
+import de.tum.i13.server.ecs.HashFunction;
+import de.tum.i13.server.ecs.ReplicationMode;
 import picocli.CommandLine;
 
 public class ConfigECS {
@@ -17,6 +19,24 @@ public class ConfigECS {
   @CommandLine.Option(names = "-ll", description = "Loglevel", defaultValue = "INFO")
   public String loglevel;
 
+  @CommandLine.Option(names = "-r", description = "Replication factor (servers storing each key)", defaultValue = "3")
+  public int replicationFactor;
+
+  @CommandLine.Option(names = "-m", description = "Replication mode: ${COMPLETION-CANDIDATES}", defaultValue = "FANOUT")
+  public ReplicationMode replicationMode;
+
+  @CommandLine.Option(names = "-v", description = "Virtual nodes (tokens) per server", defaultValue = "1")
+  public int virtualNodes;
+
+  @CommandLine.Option(names = "-hf", description = "Hash function placing keys on the ring: ${COMPLETION-CANDIDATES}", defaultValue = "MD5")
+  public HashFunction hashFunction;
+
+  @CommandLine.Option(names = "-g", description = "Servers gossip ring updates, the ECS only informs a few of them")
+  public boolean gossip;
+
+  @CommandLine.Option(names = "-mp", description = "Port of the Prometheus metrics endpoint, 0 to disable it", defaultValue = "0")
+  public int metricsPort;
+
   @CommandLine.Option(names = "-h", description = "Displays help", usageHelp = true)
   public boolean usagehelp;
 
@@ -39,7 +59,7 @@ public class ConfigECS {
   @Override
   public String toString() {
     return "Config{" + "port=" + port + ", listenaddr='" + listenaddr + '\'' + ", logfile="
-        + logfile + ", loglevel='" + loglevel + ", usagehelp=" + usagehelp + '}';
+        + logfile + ", loglevel='" + loglevel + ", replicationFactor=" + replicationFactor + ", replicationMode=" + replicationMode + ", virtualNodes=" + virtualNodes + ", hashFunction=" + hashFunction + ", gossip=" + gossip + ", metricsPort=" + metricsPort + ", usagehelp=" + usagehelp + '}';
   }
 }
 
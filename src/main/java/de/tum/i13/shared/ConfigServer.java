@@ -19,6 +19,15 @@ public class ConfigServer extends ConfigECS {
   @CommandLine.Option(names = "-s", description = "Sets the cache displacement strategy, FIFO, LRU, LFU", defaultValue = "LRU")
   public String cachedisplacement;
 
+  @CommandLine.Option(names = "-w", description = "Capacity weight, share of the key space relative to other servers", defaultValue = "1")
+  public double weight;
+
+  @CommandLine.Option(names = "-sl", description = "Latency in ms above which requests are kept in the slowlog, -1 to disable it", defaultValue = "100")
+  public long slowlogThreshold;
+
+  @CommandLine.Option(names = "-tf", description = "File the spans of traced requests are appended to in the Chrome trace format, none by default")
+  public Path traceFile;
+
   public static ConfigServer parseCommandlineArgs(String[] args) {
     ConfigServer cfg = new ConfigServer();
     CommandLine.ParseResult parseResult = new CommandLine(cfg).registerConverter(InetSocketAddress.class, new InetSocketAddressTypeConverter()).parseArgs(args);
@@ -49,7 +58,7 @@ public class ConfigServer extends ConfigECS {
     return "Config{" + "port=" + port + ", listenaddr='" + listenaddr + '\'' + ", bootstrap="
         + bootstrap + ", dataDir=" + dataDir + ", logfile=" + logfile + ", loglevel='" + loglevel
         + '\'' + ", cachesize=" + cachesize + ", cachedisplacement='" + cachedisplacement + '\''
-        + ", usagehelp=" + usagehelp + '}';
+        + ", weight=" + weight + ", slowlogThreshold=" + slowlogThreshold + ", traceFile=" + traceFile + ", metricsPort=" + metricsPort + ", usagehelp=" + usagehelp + '}';
   }
   
 }
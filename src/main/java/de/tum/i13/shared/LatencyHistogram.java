@@ -0,0 +1,146 @@
+package de.tum.i13.shared;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in the style of HdrHistogram. Values are counted in log-linear buckets:
+ * below 128 every value has its own bucket, above that every power of two is split into 64
+ * buckets, so percentiles are exact to about 1.6% over the whole range of <code>long</code>.
+ * Recording is a single atomic increment and never blocks, so many threads can share one histogram.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKETS = 64; // buckets per power of two
+  private static final int LINEAR = 2 * SUB_BUCKETS; // values with their own bucket
+  private static final int SIZE = LINEAR + (63 - 7) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a latency
+   *
+   * @param nanos latency in ns, negative values are counted as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    counts.incrementAndGet(index(value));
+    total.incrementAndGet();
+    sum.addAndGet(value);
+    long known;
+    while (value > (known = max.get()) && !max.compareAndSet(known, value)) {
+    }
+  }
+
+  /**
+   * Records the time passed since <code>start</code>
+   *
+   * @param start value of {@link System#nanoTime()} when the request started
+   */
+  public void recordSince(long start) {
+    record(System.nanoTime() - start);
+  }
+
+  /**
+   * Adds all values of another histogram to this one
+   *
+   * @param other
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < SIZE; i++) {
+      long count = other.counts.get(i);
+      if (count > 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+    total.addAndGet(other.total.get());
+    sum.addAndGet(other.sum.get());
+    long known;
+    long value = other.max.get();
+    while (value > (known = max.get()) && !max.compareAndSet(known, value)) {
+    }
+  }
+
+  public void reset() {
+    for (int i = 0; i < SIZE; i++) {
+      counts.set(i, 0);
+    }
+    total.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  public long getCount() {
+    return total.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long count = total.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * Gets the value below which the given share of all recorded values lies
+   *
+   * @param percentile between 0 and 100
+   * @return upper bound of the bucket holding the percentile, at most the largest value, 0 if the
+   *         histogram is empty
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = total.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+    long seen = 0;
+    for (int i = 0; i < SIZE; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Summarizes the histogram in one line, e.g.
+   * <code>count=1000 mean=0.21 p50=0.18 p99=0.85 p999=2.10 max=3.02</code>
+   *
+   * @param unit unit of the values in the summary
+   */
+  public String summary(TimeUnit unit) {
+    double nanos = unit.toNanos(1);
+    return String.format("count=%d mean=%.2f p50=%.2f p99=%.2f p999=%.2f max=%.2f", getCount(),
+        getMean() / nanos, getValueAtPercentile(50) / nanos, getValueAtPercentile(99) / nanos,
+        getValueAtPercentile(99.9) / nanos, getMax() / nanos);
+  }
+
+  static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value); // at least 7
+    int sub = (int) (value >>> (exponent - 6)); // between 64 and 127
+    return LINEAR + (exponent - 7) * SUB_BUCKETS + sub - SUB_BUCKETS;
+  }
+
+  static long highestValue(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int exponent = 7 + (index - LINEAR) / SUB_BUCKETS;
+    long sub = SUB_BUCKETS + (index - LINEAR) % SUB_BUCKETS;
+    return ((sub + 1) << (exponent - 6)) - 1;
+  }
+}
@@ -2,22 +2,33 @@ package de.tum.i13.shared;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.*;
 
 public class LogSetup {
-    public static void setupLogging(Path logfile, String loglevel) {
+    // one handler per log file, servers started in the same JVM (e.g. by tests) share it
+    private static final Map<String, Handler> handlers = new HashMap<String, Handler>();
+
+    public static synchronized void setupLogging(Path logfile, String loglevel) {
         Logger logger = LogManager.getLogManager().getLogger("");
         System.setProperty("java.util.logging.SimpleFormatter.format",
                 "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS.%1$tL %4$-7s [%3$s] %5$s %6$s%n");
 
-        FileHandler fileHandler = null;
-        try {
-            fileHandler = new FileHandler(logfile.getFileName().toString(), true);
-        } catch (IOException e) {
-            e.printStackTrace();
+        String fileName = logfile.getFileName().toString();
+        if (!handlers.containsKey(fileName)) {
+            FileHandler fileHandler = null;
+            try {
+                fileHandler = new FileHandler(fileName, true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            fileHandler.setFormatter(new SimpleFormatter());
+            // requests only enqueue their records, a writer thread formats and writes them in batches
+            Handler handler = new AsyncHandler(fileHandler);
+            handlers.put(fileName, handler);
+            logger.addHandler(handler);
         }
-        fileHandler.setFormatter(new SimpleFormatter());
-        logger.addHandler(fileHandler);
 
         Level parsedLevel = Level.parse(loglevel);
         for (Handler h : logger.getHandlers()) {
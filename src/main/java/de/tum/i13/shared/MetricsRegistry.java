@@ -0,0 +1,148 @@
+package de.tum.i13.shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Metrics of a server or the ECS. Metrics are registered once with a function that reads the
+ * current value, so the code that updates them only keeps plain counters and nothing is computed
+ * until the metrics are scraped. {@link #serve(String, int)} exposes them in the Prometheus text
+ * format at <code>/metrics</code>.
+ */
+public class MetricsRegistry {
+  private final List<Metric> metrics = new ArrayList<Metric>();
+
+  private interface Metric {
+    void write(StringBuilder sb);
+  }
+
+  /**
+   * Registers a value that only increases, its name should end with <code>_total</code>
+   */
+  public synchronized void counter(String name, String help, DoubleSupplier value) {
+    metrics.add(sb -> {
+      header(sb, name, help, "counter");
+      sample(sb, name, "", value.getAsDouble());
+    });
+  }
+
+  /**
+   * Registers a value that may increase and decrease
+   */
+  public synchronized void gauge(String name, String help, DoubleSupplier value) {
+    metrics.add(sb -> {
+      header(sb, name, help, "gauge");
+      sample(sb, name, "", value.getAsDouble());
+    });
+  }
+
+  /**
+   * Registers a gauge with one sample per value of a label, e.g. the keys per directory
+   *
+   * @param label name of the label
+   * @param values values by label value
+   */
+  public synchronized void gauges(String name, String help, String label,
+      Supplier<Map<?, ? extends Number>> values) {
+    metrics.add(sb -> {
+      header(sb, name, help, "gauge");
+      for (Map.Entry<?, ? extends Number> e : values.get().entrySet()) {
+        sample(sb, name, label(label, e.getKey()), e.getValue().doubleValue());
+      }
+    });
+  }
+
+  /**
+   * Registers latency histograms as a summary in seconds with the 50th, 99th and 99.9th percentile
+   *
+   * @param label name of the label that tells the histograms apart
+   * @param histograms histograms in ns by label value
+   */
+  public synchronized void summaries(String name, String help, String label,
+      Supplier<Map<String, LatencyHistogram>> histograms) {
+    metrics.add(sb -> {
+      header(sb, name, help, "summary");
+      for (Map.Entry<String, LatencyHistogram> e : histograms.get().entrySet()) {
+        LatencyHistogram h = e.getValue();
+        String labels = label(label, e.getKey());
+        for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+          sample(sb, name, labels + ",quantile=\"" + quantile + "\"",
+              h.getValueAtPercentile(quantile * 100) / 1e9);
+        }
+        sample(sb, name + "_sum", labels, h.getSum() / 1e9);
+        sample(sb, name + "_count", labels, h.getCount());
+      }
+    });
+  }
+
+  /**
+   * Writes all metrics in the Prometheus text format
+   *
+   * @return metrics, one sample per line
+   */
+  public synchronized String scrape() {
+    StringBuilder sb = new StringBuilder();
+    for (Metric metric : metrics) {
+      metric.write(sb);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Serves the metrics over HTTP at <code>http://address:port/metrics</code>, requests are answered
+   * by a daemon thread
+   *
+   * @return the server, to be stopped with {@link HttpServer#stop(int)}
+   * @throws IOException if the port is in use
+   */
+  public HttpServer serve(String address, int port) throws IOException {
+    HttpServer http = HttpServer.create(new InetSocketAddress(address, port), 0);
+    http.createContext("/metrics", exchange -> {
+      byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+      Thread th = new Thread(r, "metrics");
+      th.setDaemon(true);
+      return th;
+    }));
+    http.start();
+    return http;
+  }
+
+  private static void header(StringBuilder sb, String name, String help, String type) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static String label(String label, Object value) {
+    return label + "=\"" + value.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static void sample(StringBuilder sb, String name, String labels, double value) {
+    sb.append(name);
+    if (!labels.isEmpty()) {
+      sb.append('{').append(labels).append('}');
+    }
+    sb.append(' ');
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      sb.append((long) value);
+    } else {
+      sb.append(value);
+    }
+    sb.append('\n');
+  }
+}
@@ -33,8 +33,18 @@ public class ServerStart {
     DiskStore disk = new DiskStore(cfg.dataDir.toString());
     Cache cache = new Cache(cs, cfg.cachesize);
     KVStore kvs = new KVStore(disk, cache); 
-    ServerRing sr = new ServerRing(new HashRing(), cfg.listenaddr + ":" + cfg.port);
-    return new KVCommandProcessor(kvs, sr);
+    String kvAddress = cfg.listenaddr + ":" + cfg.port;
+    if (cfg.traceFile != null) {
+      try {
+        kvs.setTracer(new Tracer(kvAddress, TraceWriter.open(cfg.traceFile)));
+      } catch (IOException e) {
+        System.out.println("Could not open trace file, spans are not recorded");
+      }
+    }
+    ServerRing sr = new ServerRing(new HashRing(), kvAddress);
+    KVCommandProcessor cp = new KVCommandProcessor(kvs, sr);
+    cp.slowLog.setThreshold(cfg.slowlogThreshold);
+    return cp;
   }
 
   private static void displayHelp() {
@@ -0,0 +1,64 @@
+package de.tum.i13.shared;
+
+/**
+ * A timed step of a traced request on one server or client, e.g. a put on its coordinator. Spans
+ * of the same request share the trace ID, each span knows the span it was started by. Closing a
+ * span records its duration and makes its parent the current span of the thread again.
+ */
+public class Span implements AutoCloseable {
+  public final String name;
+  public final long traceId;
+  public final long id;
+  public final long parentId; // 0 for the root of a trace
+  public final long start; // us since the epoch
+  private final long startNanos;
+  private long duration = -1; // us
+  private final String thread = Thread.currentThread().getName();
+  private final long threadId = Thread.currentThread().getId();
+  private final Tracer tracer;
+  final Span previous; // current span of the thread before this one
+
+  Span(Tracer tracer, String name, long traceId, long parentId, Span previous) {
+    this.tracer = tracer;
+    this.name = name;
+    this.traceId = traceId;
+    this.id = Tracer.newId();
+    this.parentId = parentId;
+    this.previous = previous;
+    startNanos = System.nanoTime();
+    start = Tracer.nowMicros(startNanos);
+  }
+
+  public long getDuration() {
+    return duration;
+  }
+
+  public String getThread() {
+    return thread;
+  }
+
+  public long getThreadId() {
+    return threadId;
+  }
+
+  public Tracer getTracer() {
+    return tracer;
+  }
+
+  /**
+   * Gets the context of this span in the form it is sent to other servers,
+   * <code>&lt;trace ID&gt;-&lt;span ID&gt;</code> in hex
+   */
+  public String context() {
+    return Long.toHexString(traceId) + "-" + Long.toHexString(id);
+  }
+
+  @Override
+  public void close() {
+    if (duration != -1) {
+      return;
+    }
+    duration = (System.nanoTime() - startNanos) / 1000;
+    tracer.finish(this);
+  }
+}
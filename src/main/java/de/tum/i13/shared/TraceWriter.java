@@ -0,0 +1,85 @@
+package de.tum.i13.shared;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes finished spans to a file in the Chrome trace event format, which chrome://tracing and
+ * Perfetto open. Every client or server is shown as a process, its spans on the threads that
+ * processed them; trace, span and parent ID are attached as arguments. The file is a JSON array
+ * that is never closed, which the format allows, so spans can be appended until the process exits.
+ * Timestamps are taken from the wall clock, so spans written by different processes on the same
+ * machine line up.
+ */
+public class TraceWriter {
+  private static final Map<Path, TraceWriter> writers = new HashMap<Path, TraceWriter>();
+
+  private final BufferedWriter out;
+  private final Set<String> services = new HashSet<String>();
+
+  private TraceWriter(Path file) throws IOException {
+    boolean empty = !Files.exists(file) || Files.size(file) == 0;
+    out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    if (empty) {
+      out.write("[\n");
+      out.flush();
+    }
+  }
+
+  /**
+   * Opens a trace file, servers of the same process that trace to the same file share the writer
+   *
+   * @param file
+   * @return writer
+   * @throws IOException if the file cannot be opened
+   */
+  public static synchronized TraceWriter open(Path file) throws IOException {
+    Path key = file.toAbsolutePath().normalize();
+    TraceWriter writer = writers.get(key);
+    if (writer == null) {
+      writer = new TraceWriter(key);
+      writers.put(key, writer);
+    }
+    return writer;
+  }
+
+  /**
+   * Writes a finished span
+   *
+   * @param service client or server that processed it
+   * @param span
+   */
+  public synchronized void write(String service, Span span) {
+    int pid = service.hashCode() & Integer.MAX_VALUE;
+    StringBuilder sb = new StringBuilder();
+    if (services.add(service)) {
+      sb.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(pid)
+          .append(",\"args\":{\"name\":\"").append(escape(service)).append("\"}},\n");
+    }
+    sb.append("{\"name\":\"").append(escape(span.name)).append("\",\"cat\":\"kv\",\"ph\":\"X\",\"ts\":")
+        .append(span.start).append(",\"dur\":").append(span.getDuration()).append(",\"pid\":")
+        .append(pid).append(",\"tid\":").append(span.getThreadId()).append(",\"args\":{\"trace\":\"")
+        .append(Long.toHexString(span.traceId)).append("\",\"span\":\"").append(Long.toHexString(span.id))
+        .append("\",\"parent\":\"").append(Long.toHexString(span.parentId)).append("\",\"thread\":\"")
+        .append(escape(span.getThread())).append("\"}},\n");
+    try {
+      out.write(sb.toString());
+      out.flush();
+    } catch (IOException e) { // tracing must not fail requests
+      e.printStackTrace();
+    }
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
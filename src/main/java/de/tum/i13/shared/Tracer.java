@@ -0,0 +1,149 @@
+package de.tum.i13.shared;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * Traces requests across clients and servers. A traced request carries the context of its current
+ * span in front of the command, <code>trace &lt;trace ID&gt;-&lt;span ID&gt; &lt;command&gt;</code>,
+ * so the server that receives it can start a child span, and so on along the chain of replicas.
+ * Requests without a context are not traced, so the client decides which requests are traced.
+ * <p>
+ * The current span is kept per thread: {@link #header()} returns the context to put in front of a
+ * request that is sent while processing a traced one. Finished spans are written by a
+ * {@link TraceWriter}, a tracer without one only passes the context on.
+ */
+public class Tracer {
+  public static final String PREFIX = "trace ";
+  private static final Pattern CONTEXT = Pattern.compile("[0-9a-f]{1,16}-[0-9a-f]{1,16}");
+  private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+  private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+  private final String service;
+  private final TraceWriter writer;
+
+  /**
+   * @param service name of the client or server, e.g. its address
+   * @param writer writer of the finished spans, null to only pass the context on
+   */
+  public Tracer(String service, TraceWriter writer) {
+    this.service = service;
+    this.writer = writer;
+  }
+
+  public String getService() {
+    return service;
+  }
+
+  /**
+   * Starts a span of the current trace, or a new trace if the thread is not tracing a request
+   *
+   * @param name
+   * @return the span, to be closed when the step is done
+   */
+  public Span startTrace(String name) {
+    Span parent = current.get();
+    if (parent == null) {
+      return begin(new Span(this, name, newId(), 0, null));
+    }
+    return begin(new Span(this, name, parent.traceId, parent.id, parent));
+  }
+
+  /**
+   * Starts a span of the request the thread is tracing
+   *
+   * @param name
+   * @return the span, null if the thread is not tracing a request
+   */
+  public Span start(String name) {
+    Span parent = current.get();
+    return parent == null ? null : begin(new Span(this, name, parent.traceId, parent.id, parent));
+  }
+
+  /**
+   * Starts a span of a request that was received with a context
+   *
+   * @param name
+   * @param context context of the sender's span, see {@link Span#context()}
+   * @return the span, null if <code>context</code> is null or invalid
+   */
+  public Span start(String name, String context) {
+    if (context == null) {
+      return null;
+    }
+    int dash = context.indexOf('-');
+    try {
+      long traceId = Long.parseUnsignedLong(context.substring(0, dash), 16);
+      long parentId = Long.parseUnsignedLong(context.substring(dash + 1), 16);
+      return begin(new Span(this, name, traceId, parentId, current.get()));
+    } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+      return null;
+    }
+  }
+
+  private Span begin(Span span) {
+    current.set(span);
+    return span;
+  }
+
+  void finish(Span span) {
+    if (current.get() == span) {
+      if (span.previous == null) {
+        current.remove();
+      } else {
+        current.set(span.previous);
+      }
+    }
+    if (writer != null) {
+      writer.write(service, span);
+    }
+  }
+
+  /**
+   * Gets the span the current thread is in
+   *
+   * @return span, null if the thread is not tracing a request
+   */
+  public static Span current() {
+    return current.get();
+  }
+
+  /**
+   * Gets the prefix of requests sent by the current thread
+   *
+   * @return <code>trace &lt;context&gt; </code> if the thread is tracing a request, an empty string
+   *         otherwise
+   */
+  public static String header() {
+    Span span = current.get();
+    return span == null ? "" : PREFIX + span.context() + " ";
+  }
+
+  /**
+   * Splits a received line into the context and the request
+   *
+   * @param line
+   * @return the context, null if the line has none, and the request
+   */
+  public static String[] split(String line) {
+    if (!line.startsWith(PREFIX)) {
+      return new String[] {null, line};
+    }
+    String[] tokens = line.split(" ", 3);
+    if (tokens.length < 3 || !CONTEXT.matcher(tokens[1]).matches()) { // e.g. a replicated key "trace"
+      return new String[] {null, line};
+    }
+    return new String[] {tokens[1], tokens[2]};
+  }
+
+  static long newId() {
+    long id;
+    while ((id = ThreadLocalRandom.current().nextLong()) == 0) {
+    }
+    return id;
+  }
+
+  static long nowMicros(long nanos) {
+    return EPOCH_MICROS + nanos / 1000;
+  }
+}
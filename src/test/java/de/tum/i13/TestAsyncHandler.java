@@ -0,0 +1,95 @@
+package de.tum.i13;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.shared.AsyncHandler;
+
+public class TestAsyncHandler {
+
+  private static class ListHandler extends Handler {
+    final List<String> messages = new ArrayList<String>();
+    final List<String> sources = new ArrayList<String>();
+    volatile boolean closed = false;
+
+    @Override
+    public synchronized void publish(LogRecord record) {
+      messages.add(record.getMessage());
+      sources.add(record.getSourceClassName());
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  @Test
+  public void recordsAreWrittenInOrder() {
+    ListHandler target = new ListHandler();
+    AsyncHandler handler = new AsyncHandler(target);
+    for (int i = 0; i < 1000; i++) {
+      handler.publish(new LogRecord(Level.INFO, "record " + i));
+    }
+    handler.flush();
+    assertEquals(1000, target.messages.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("record " + i, target.messages.get(i));
+    }
+    handler.close();
+    assertTrue(target.closed);
+  }
+
+  @Test
+  public void fullBufferDropsRecords() {
+    ListHandler target = new ListHandler();
+    AsyncHandler handler = new AsyncHandler(target, 4);
+    synchronized (target) { // blocks the writer thread
+      for (int i = 0; i < 100; i++) {
+        handler.publish(new LogRecord(Level.INFO, "record " + i));
+      }
+      assertTrue(handler.getDropped() > 0);
+    }
+    handler.close();
+    assertTrue(target.messages.get(target.messages.size() - 1).startsWith("Log buffer full"));
+  }
+
+  @Test
+  public void flushDoesNotWaitForIdleWriter() throws InterruptedException {
+    ListHandler target = new ListHandler();
+    AsyncHandler handler = new AsyncHandler(target);
+    Thread.sleep(50); // the writer is waiting for records
+    long start = System.nanoTime();
+    for (int i = 0; i < 20; i++) {
+      handler.flush();
+    }
+    assertTrue(System.nanoTime() - start < 100_000_000L);
+    handler.close();
+  }
+
+  @Test
+  public void callerIsTheLoggingClass() {
+    ListHandler target = new ListHandler();
+    AsyncHandler handler = new AsyncHandler(target);
+    Logger logger = Logger.getLogger("async-test");
+    logger.setUseParentHandlers(false);
+    logger.addHandler(handler);
+    try {
+      logger.info("record");
+      handler.flush();
+      assertEquals(TestAsyncHandler.class.getName(), target.sources.get(0));
+    } finally {
+      logger.removeHandler(handler);
+      handler.close();
+    }
+  }
+}
@@ -41,6 +41,8 @@ class TestCaching {
 
     // key1 should be deleted
     assertNull(ch.get("key1"));
+    assertEquals(-1, ch.getVersion("key1")); // dropped with the value
+    assertEquals(kvs.getVersion("key6"), ch.getVersion("key6"));
 
     for (int i = 2; i <= 6; i++) {
       assertEquals("val" + i, ch.get("key" + i));
@@ -0,0 +1,90 @@
+package de.tum.i13;
+
+import static de.tum.i13.Util.awaitPort;
+import static de.tum.i13.Util.createECSServer;
+import static de.tum.i13.Util.createServer;
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import de.tum.i13.client.ActiveConnection;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.ecs.ReplicationMode;
+import de.tum.i13.shared.ServerUtility;
+
+public class TestChainReplication {
+  private static final int serverCount = 4;
+  private static final HashRing hr = new HashRing();
+  private static final String[] addressArray = new String[serverCount];
+  private static int[] ports = new int[serverCount];
+  private static final String address = "127.0.0.1";
+  private static final ActiveConnection ac = new ActiveConnection();
+
+  @BeforeAll
+  @Timeout(60)
+  public static void setup() throws IOException, InterruptedException {
+    int ecsport = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServer(address, ecsport, 3, ReplicationMode.CHAIN).start();
+    awaitPort(address, ecsport);
+
+    for (int i = 0; i < serverCount; i++) {
+      ports[i] = getFreePort(address);
+      addressArray[i] = address + ":" + ports[i];
+      hr.addServer(addressArray[i]);
+      createServer(address, ports[i], bootstrap).start();
+      Thread.sleep(600);
+    }
+
+    Thread.sleep(600);
+  }
+
+  private void setupConnection(int port) throws IOException {
+    ac.connect(address, port);
+    ac.receive();
+    ac.send("chain_user" + port);
+    ac.receive();
+  }
+
+  /**
+   * The put is only acknowledged after the tail has stored the value, so a read on the tail right
+   * after the put has to see it.
+   */
+  @Test
+  @Timeout(60)
+  public void tailSeesAcknowledgedWrites() throws IOException {
+    String testKey = "chainKey";
+    List<String> chain = hr.getReadResponsibleServers(testKey);
+    assertEquals(3, chain.size());
+
+    for (int i = 0; i < 10; i++) {
+      setupConnection(ServerUtility.getPort(chain.get(0)));
+      ac.send("put " + testKey + " value" + i);
+      assertTrue(ac.receive().startsWith("put_"));
+      ac.close();
+
+      setupConnection(ServerUtility.getPort(chain.get(2)));
+      ac.send("get " + testKey);
+      assertEquals("get_success " + testKey + " value" + i, ac.receive());
+      ac.close();
+    }
+  }
+
+  @Test
+  @Timeout(60)
+  public void clientReadsFromTail() throws IOException {
+    ClientLibrary cl = new ClientLibrary();
+    cl.setReplicationMode(ReplicationMode.CHAIN);
+    cl.connect(address, ports[0]);
+    cl.setUsername("chain_client");
+    cl.putRequest("clientKey", "clientValue");
+    assertEquals("clientValue", cl.getRequest("clientKey"));
+    cl.close();
+  }
+}
@@ -0,0 +1,150 @@
+package de.tum.i13;
+
+import static de.tum.i13.Util.awaitPort;
+import static de.tum.i13.Util.createECSServer;
+import static de.tum.i13.Util.createServer;
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.ecs.ReplicationMode;
+
+public class TestClusterGrowth {
+  private static final String address = "127.0.0.1";
+
+  /**
+   * Connects once the server thread has opened its socket, it answers after it has joined
+   */
+  private ClientLibrary connect(int port) throws IOException, InterruptedException {
+    for (int attempt = 0;; attempt++) {
+      try {
+        ClientLibrary client = new ClientLibrary();
+        client.connect(address, port);
+        return client;
+      } catch (ConnectException e) {
+        if (attempt == 50) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  /**
+   * Starts several servers at once. Joins whose data comes from different servers run at the same
+   * time, the others one after another, and no key may get lost on the way.
+   */
+  @Test
+  @Timeout(60)
+  public void concurrentJoinsKeepAllKeys() throws IOException, InterruptedException {
+    int ecsport = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServer(address, ecsport, 1, ReplicationMode.FANOUT, 1).start();
+    awaitPort(address, ecsport);
+    int[] ports = new int[8];
+    for (int i = 0; i < 2; i++) {
+      ports[i] = getFreePort(address);
+      createServer(address, ports[i], bootstrap).start();
+      Thread.sleep(600);
+    }
+
+    ClientLibrary cl = new ClientLibrary();
+    cl.connect(address, ports[0]);
+    cl.setUsername("growth_client");
+    for (int k = 0; k < 50; k++) {
+      cl.putRequest("gkey" + k, "value" + k);
+    }
+    cl.close();
+
+    long start = System.nanoTime();
+    for (int i = 2; i < ports.length; i++) {
+      ports[i] = getFreePort(address);
+      createServer(address, ports[i], bootstrap).start();
+    }
+    for (int port : ports) { // every server answers once it has joined
+      ClientLibrary client = connect(port);
+      client.setUsername("growth_client" + port);
+      client.close();
+    }
+    System.out.println("6 concurrent joins took " + (System.nanoTime() - start) / 1000000 + " ms");
+
+    cl = new ClientLibrary();
+    cl.connect(address, ports[ports.length - 1]);
+    cl.setUsername("growth_reader");
+    for (int k = 0; k < 50; k++) {
+      assertEquals("value" + k, cl.getRequest("gkey" + k));
+    }
+    cl.close();
+  }
+
+  /**
+   * Servers added together receive their ranges from the old servers only
+   */
+  @Test
+  public void bulkJoinSkipsNewServers() {
+    HashRing hr = new HashRing();
+    hr.setVirtualNodes(8);
+    hr.addServer("127.0.0.1:5001");
+    hr.addServer("127.0.0.1:5002");
+    HashSet<String> joining = new HashSet<String>();
+    for (int i = 3; i <= 6; i++) {
+      String server = "127.0.0.1:500" + i;
+      joining.add(server);
+      hr.addServer(server);
+    }
+    for (String server : joining) {
+      List<String> senders = hr.getSuccessors(server, joining);
+      assertFalse(senders.isEmpty());
+      for (String sender : senders) {
+        assertFalse(joining.contains(sender));
+      }
+    }
+  }
+
+  /**
+   * Cold start of a cluster: all servers connect to an empty ECS at once and are added together
+   */
+  @Test
+  @Timeout(60)
+  public void coldStartWithBulkJoin() throws IOException, InterruptedException {
+    int ecsport = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServer(address, ecsport, 1, ReplicationMode.FANOUT, 1).start();
+    awaitPort(address, ecsport);
+    long start = System.nanoTime();
+    int[] ports = new int[8];
+    for (int i = 0; i < ports.length; i++) {
+      ports[i] = getFreePort(address);
+      createServer(address, ports[i], bootstrap).start();
+    }
+    for (int port : ports) {
+      ClientLibrary client = connect(port);
+      client.setUsername("cold_client" + port);
+      client.close();
+    }
+    System.out.println("Cold start of 8 servers took " + (System.nanoTime() - start) / 1000000 + " ms");
+
+    ClientLibrary cl = new ClientLibrary();
+    cl.connect(address, ports[0]);
+    cl.setUsername("cold_writer");
+    for (int k = 0; k < 50; k++) {
+      cl.putRequest("ckey" + k, "value" + k);
+    }
+    cl.close();
+    cl = new ClientLibrary();
+    cl.connect(address, ports[ports.length - 1]);
+    cl.setUsername("cold_reader");
+    for (int k = 0; k < 50; k++) {
+      assertEquals("value" + k, cl.getRequest("ckey" + k));
+    }
+    cl.close();
+  }
+}
@@ -0,0 +1,66 @@
+package de.tum.i13;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.server.ecs.HeartbeatMonitor;
+import de.tum.i13.server.ecs.PhiAccrualDetector;
+
+public class TestFailureDetection {
+
+  private long detectionTime(PhiAccrualDetector detector, long last) {
+    long silence = 0;
+    while (detector.phi(last + silence) <= 8) {
+      silence += 10;
+    }
+    return silence;
+  }
+
+  @Test
+  public void regularHeartbeats() {
+    PhiAccrualDetector detector = new PhiAccrualDetector(500);
+    assertEquals(0, detector.phi(1000)); // nothing to suspect before the first heartbeat
+    long now = 0;
+    for (int i = 0; i < 200; i++) {
+      detector.heartbeat(now += 500);
+    }
+    assertTrue(detector.phi(now + 500) < 1);
+    assertTrue(detector.phi(now + 1700) < 8); // pause of a garbage collection
+    long detection = detectionTime(detector, now);
+    assertTrue(detection < 3000, "failure detected after " + detection + " ms");
+  }
+
+  @Test
+  public void jitteryServersGetMoreTime() {
+    PhiAccrualDetector regular = new PhiAccrualDetector(500);
+    PhiAccrualDetector jittery = new PhiAccrualDetector(500);
+    long now = 0;
+    for (int i = 0; i < 200; i++) {
+      now += 500;
+      regular.heartbeat(now);
+      jittery.heartbeat(now + (i % 2 == 0 ? 300 : -300));
+    }
+    assertTrue(detectionTime(jittery, now) > detectionTime(regular, now));
+  }
+
+  @Test
+  public void monitorReportsSilentServer() throws InterruptedException {
+    HeartbeatMonitor monitor = new HeartbeatMonitor();
+    CountDownLatch failed = new CountDownLatch(1);
+    CountDownLatch alive = new CountDownLatch(1);
+    monitor.watch("silent", failed::countDown);
+    monitor.watch("alive", alive::countDown);
+    monitor.heartbeat("silent");
+    long end = System.currentTimeMillis() + 4000;
+    while (System.currentTimeMillis() < end && failed.getCount() > 0) {
+      monitor.heartbeat("alive");
+      Thread.sleep(HeartbeatMonitor.HEARTBEAT_INTERVAL);
+    }
+    assertTrue(failed.await(0, TimeUnit.MILLISECONDS));
+    assertFalse(alive.await(0, TimeUnit.MILLISECONDS));
+    monitor.unwatch("alive");
+  }
+}
@@ -0,0 +1,116 @@
+package de.tum.i13;
+
+import static de.tum.i13.Util.awaitPort;
+import static de.tum.i13.Util.createECSServerWithOptions;
+import static de.tum.i13.Util.createServer;
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.threadperconnection.GossipService;
+
+public class TestGossip {
+  private static final String address = "127.0.0.1";
+
+  private GossipService.RingUpdates updatesOf(HashRing hr) {
+    return new GossipService.RingUpdates() {
+      @Override
+      public void update(String keyRange, long epoch) {
+        synchronized (hr) {
+          hr.setKeyRange(keyRange);
+          hr.setEpoch(epoch);
+        }
+      }
+
+      @Override
+      public void applyDelta(String delta, long epoch) {
+        hr.applyDelta(delta, epoch);
+      }
+    };
+  }
+
+  /**
+   * Changes the ring of one server and waits until all others have learned it by gossip
+   */
+  @Test
+  public void updatesSpreadToAllServers() throws IOException, InterruptedException {
+    int count = 16;
+    HashRing initial = new HashRing();
+    String[] servers = new String[count];
+    for (int i = 0; i < count; i++) {
+      servers[i] = getSocketAddress(address, getFreePort(address));
+      initial.addServer(servers[i]);
+    }
+    ArrayList<HashRing> rings = new ArrayList<HashRing>();
+    ArrayList<GossipService> services = new ArrayList<GossipService>();
+    for (int i = 0; i < count; i++) {
+      HashRing hr = new HashRing();
+      hr.setKeyRange(initial.getKeyRange());
+      hr.setEpoch(initial.getEpoch());
+      rings.add(hr);
+      GossipService gossip = new GossipService(servers[i], hr, updatesOf(hr));
+      gossip.start();
+      services.add(gossip);
+    }
+
+    HashRing source = rings.get(0);
+    source.splitRange(servers[1], source.getRangeToken(servers[1]), servers[2]);
+    source.splitRange(servers[3], source.getRangeToken(servers[3]), servers[4]);
+    long start = System.currentTimeMillis();
+    boolean converged = false;
+    while (!converged && System.currentTimeMillis() - start < 10000) {
+      Thread.sleep(50);
+      converged = rings.stream().allMatch(hr -> hr.getEpoch() == source.getEpoch());
+    }
+    long millis = System.currentTimeMillis() - start;
+    System.out.println(count + " servers converged after " + millis + " ms, "
+        + millis / GossipService.INTERVAL + " rounds");
+    services.forEach(GossipService::close);
+
+    assertTrue(converged);
+    for (HashRing hr : rings) {
+      assertEquals(source.getKeyRange(), hr.getKeyRange());
+    }
+  }
+
+  /**
+   * The ECS only informs some servers of every change, the rest learns the ring by gossip
+   */
+  @Test
+  @Timeout(60)
+  public void clusterWithGossip() throws IOException, InterruptedException {
+    int ecsport = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServerWithOptions(address, ecsport, "-r", "1", "-g").start();
+    awaitPort(address, ecsport);
+    int[] ports = new int[6];
+    for (int i = 0; i < ports.length; i++) {
+      ports[i] = getFreePort(address);
+      createServer(address, ports[i], bootstrap).start();
+      awaitPort(address, ports[i]);
+    }
+    Thread.sleep(1000); // the ring spreads by gossip
+
+    ClientLibrary cl = new ClientLibrary();
+    cl.connect(address, ports[0]);
+    cl.setUsername("gossip_client");
+    for (int k = 0; k < 30; k++) {
+      cl.putRequest("gossipkey" + k, "value" + k);
+    }
+    cl.close();
+
+    cl = new ClientLibrary();
+    cl.connect(address, ports[ports.length - 1]);
+    cl.setUsername("gossip_reader");
+    for (int k = 0; k < 30; k++) {
+      assertEquals("value" + k, cl.getRequest("gossipkey" + k));
+    }
+    cl.close();
+  }
+}
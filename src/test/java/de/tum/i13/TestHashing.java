@@ -1,10 +1,25 @@
 package de.tum.i13;
 
+import static de.tum.i13.Util.awaitPort;
+import static de.tum.i13.Util.createECSServerWithOptions;
+import static de.tum.i13.Util.createServer;
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.HashFunction;
 import de.tum.i13.server.ecs.HashRing;
 
 public class TestHashing {
@@ -47,4 +62,155 @@ public class TestHashing {
     assertTrue(hr.isCoordinator("server2", "test1"));
     assertTrue(hr.isCoordinator("server2", "z"));
   }
+
+  @Test
+  public void lookupMatchesKeyRange() {
+    HashRing hr = new HashRing();
+    for (int i = 0; i < 20; i++) {
+      hr.addServer("127.0.0.1:" + (5000 + i));
+    }
+    String[] ranges = hr.getKeyRange().split(";");
+    assertEquals(20, ranges.length);
+    for (int k = 0; k < 1000; k++) {
+      String key = "key" + k;
+      BigInteger hash = new BigInteger(hr.hash(key), 16);
+      String expected = null;
+      for (String range : ranges) {
+        String[] fields = range.split(",");
+        BigInteger from = new BigInteger(fields[0], 16);
+        BigInteger to = new BigInteger(fields[1], 16);
+        boolean wraps = from.compareTo(to) > 0;
+        boolean inRange = wraps ? hash.compareTo(from) >= 0 || hash.compareTo(to) <= 0
+            : hash.compareTo(from) >= 0 && hash.compareTo(to) <= 0;
+        if (inRange) {
+          expected = fields[2];
+        }
+      }
+      assertEquals(expected, hr.getCoordinator(key));
+    }
+  }
+
+  @Test
+  public void wireRoundTrip() {
+    HashRing hr = new HashRing();
+    hr.setReplicationFactor(3);
+    for (int i = 0; i < 8; i++) {
+      hr.addServer("127.0.0.1:" + (5000 + i));
+    }
+    HashRing server = new HashRing();
+    server.setReplicationFactor(3);
+    server.setKeyRange(hr.getKeyRange());
+    assertEquals(hr.getKeyRange(), server.getKeyRange());
+    assertEquals(hr.getReadKeyRange(), server.getReadKeyRange());
+
+    HashRing client = new HashRing();
+    client.setReadKeyRange(hr.getReadKeyRange());
+    assertEquals(hr.getKeyRange(), client.getKeyRange());
+    for (int k = 0; k < 100; k++) {
+      assertEquals(hr.getCoordinator("key" + k), client.getCoordinator("key" + k));
+    }
+  }
+
+  @Test
+  public void murmur3MatchesReference() {
+    long[] token = new long[2];
+    HashFunction.MURMUR3.token("The quick brown fox jumps over the lazy dog", token);
+    assertEquals(0xe34bbc7bbc071b6cL, token[0]);
+    assertEquals(0x7a433ca9c49a9347L, token[1]);
+    HashFunction.MURMUR3.token("", token);
+    assertEquals(0, token[0]);
+    assertEquals(0, token[1]);
+  }
+
+  @Test
+  public void md5MatchesMessageDigest() throws NoSuchAlgorithmException {
+    HashRing hr = new HashRing();
+    for (String key : new String[] {"key", "schl\u00fcssel", "\u30ad\u30fc", "\ud83d\udd11"}) {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      assertEquals(String.format("%032x", new BigInteger(1, digest)), hr.hash(key));
+    }
+  }
+
+  @Test
+  public void murmur3Ring() {
+    HashRing hr = new HashRing();
+    hr.setHashFunction(HashFunction.MURMUR3);
+    for (int i = 0; i < 5; i++) {
+      hr.addServer("127.0.0.1:" + (5000 + i));
+    }
+    HashRing client = new HashRing();
+    client.setHashFunction(HashFunction.MURMUR3);
+    client.setReadKeyRange(hr.getReadKeyRange());
+    int differentFromMd5 = 0;
+    HashRing md5 = new HashRing(hr.getKeyRange());
+    for (int k = 0; k < 100; k++) {
+      assertEquals(hr.getCoordinator("key" + k), client.getCoordinator("key" + k));
+      if (!hr.getCoordinator("key" + k).equals(md5.getCoordinator("key" + k))) {
+        differentFromMd5++;
+      }
+    }
+    assertTrue(differentFromMd5 > 0);
+  }
+
+  @Test
+  public void concurrentLookups() throws InterruptedException {
+    HashRing hr = new HashRing();
+    for (int i = 0; i < 10; i++) {
+      hr.addServer("127.0.0.1:" + (5000 + i));
+    }
+    String[] expected = new String[1000];
+    for (int k = 0; k < expected.length; k++) {
+      expected[k] = hr.getCoordinator("key" + k);
+    }
+    ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      Thread th = new Thread(() -> {
+        for (int round = 0; round < 20; round++) {
+          for (int k = 0; k < expected.length; k++) {
+            if (!expected[k].equals(hr.getCoordinator("key" + k))) {
+              errors.add("key" + k);
+            }
+          }
+        }
+      });
+      th.start();
+      threads.add(th);
+    }
+    for (Thread th : threads) {
+      th.join();
+    }
+    assertTrue(errors.isEmpty(), "wrong coordinators for " + errors);
+  }
+
+  /**
+   * The servers send the hash function with the key range, so a client that was not told about it
+   * still finds the coordinators
+   */
+  @Test
+  @Timeout(60)
+  public void clientLearnsHashFunction() throws IOException, InterruptedException {
+    String address = "127.0.0.1";
+    int ecsport = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServerWithOptions(address, ecsport, "-r", "1", "-hf", "MURMUR3").start();
+    awaitPort(address, ecsport);
+    int[] ports = new int[2];
+    for (int i = 0; i < ports.length; i++) {
+      ports[i] = getFreePort(address);
+      createServer(address, ports[i], bootstrap).start();
+      Thread.sleep(600);
+    }
+
+    ClientLibrary cl = new ClientLibrary();
+    cl.connect(address, ports[0]);
+    cl.setUsername("murmur_client");
+    for (int k = 0; k < 20; k++) {
+      cl.putRequest("mkey" + k, "value" + k);
+    }
+    for (int k = 0; k < 20; k++) {
+      assertEquals("value" + k, cl.getRequest("mkey" + k));
+    }
+    cl.close();
+  }
 }
@@ -1,7 +1,12 @@
 package de.tum.i13;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import de.tum.i13.server.ecs.HashRing;
@@ -29,8 +34,8 @@ public class TestKVCommandProcessor {
   @Test
   public void correctParsingOfPut() throws Exception {      
     cp.process("put key hello");
-    verify(ch).put("key", "hello");
-    verify(disk).put("key", "hello");
+    verify(ch).put(eq("key"), eq("hello"), anyLong());
+    verify(disk).put(eq("key"), eq("hello"), anyLong());
   }
 
   @Test
@@ -42,8 +47,48 @@ public class TestKVCommandProcessor {
 
   @Test
   public void correctParsingOfDelete() throws Exception {
+    when(disk.contains("key")).thenReturn(true);
     cp.process("delete key");
     verify(ch).delete("key");
-    verify(disk).delete("key");
+    verify(disk).delete(eq("key"), anyLong());
+  }
+
+  @Test
+  public void statsShowLatencies() throws Exception {
+    cp.process("get statskey");
+    cp.process("keyrange 0");
+    String reply = cp.process("stats");
+    assertTrue(reply.startsWith("stats_success "));
+    assertTrue(reply.contains(" get.service=count:"));
+    assertTrue(reply.contains(" get.wait=count:"));
+    assertTrue(reply.contains(" keyrange.service=count:"));
+  }
+
+  @Test
+  public void statsShowSnapshot() throws Exception {
+    String reply = cp.process("stats");
+    assertTrue(reply.startsWith("stats_success keys="));
+    assertTrue(reply.contains(" cache=size:0,hits:0,lookups:0,ratio:0.0 "));
+    assertTrue(reply.contains(" ring=epoch:1,owned:"));
+    assertTrue(reply.contains(" clients=connections:0,chatrooms:"));
+    assertTrue(reply.contains(" replication=mode:FANOUT,replicas:0,coordinators:0,pending:0 "));
+    assertTrue(reply.contains(" transfers=active:0,sent:0,received:0"));
+  }
+
+  @Test
+  public void slowlogShowsStages() throws Exception {
+    cp.slowLog.setThreshold(0); // every request is slow
+    cp.process("get slowkey");
+    String reply = cp.process("slowlog");
+    assertTrue(reply.startsWith("slowlog_success get:slowkey=time:"));
+    assertTrue(reply.contains(",parse:"));
+    assertTrue(reply.contains(",lock:"));
+    assertTrue(reply.contains(",cache.read:"));
+    assertTrue(reply.contains(",disk.read:"));
+
+    assertEquals("slowlog_success", cp.process("slowlog reset"));
+    cp.slowLog.setThreshold(-1);
+    cp.process("get slowkey");
+    assertEquals("slowlog_success", cp.process("slowlog"));
   }
 }
@@ -0,0 +1,55 @@
+package de.tum.i13;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.shared.LatencyHistogram;
+
+public class TestLatencyHistogram {
+
+  private void assertClose(long expected, long actual) {
+    assertTrue(actual >= expected && actual <= expected + expected / 64 + 1,
+        "expected about " + expected + " but was " + actual);
+  }
+
+  @Test
+  public void percentilesOfUniformValues() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (long v = 1; v <= 100000; v++) {
+      h.record(v * 1000);
+    }
+    assertEquals(100000, h.getCount());
+    assertEquals(100000000, h.getMax());
+    assertClose(50000000, h.getValueAtPercentile(50));
+    assertClose(99000000, h.getValueAtPercentile(99));
+    assertClose(99900000, h.getValueAtPercentile(99.9));
+    assertEquals(100000000, h.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void concurrentRecording() throws InterruptedException {
+    LatencyHistogram h = new LatencyHistogram();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      Thread th = new Thread(() -> {
+        for (int i = 0; i < 10000; i++) {
+          h.record(i);
+        }
+      });
+      th.start();
+      threads.add(th);
+    }
+    for (Thread th : threads) {
+      th.join();
+    }
+    assertEquals(40000, h.getCount());
+    assertEquals(9999, h.getMax());
+
+    LatencyHistogram sum = new LatencyHistogram();
+    sum.add(h);
+    sum.add(h);
+    assertEquals(80000, sum.getCount());
+    assertEquals(h.getValueAtPercentile(99), sum.getValueAtPercentile(99));
+  }
+}
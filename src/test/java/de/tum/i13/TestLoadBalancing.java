@@ -0,0 +1,106 @@
+package de.tum.i13;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.ecs.LoadBalancer;
+import de.tum.i13.server.kv.LoadTracker;
+
+public class TestLoadBalancing {
+
+  private Map<String, Long> load(String range, long requests) {
+    HashMap<String, Long> m = new HashMap<String, Long>();
+    m.put(range, requests);
+    return m;
+  }
+
+  @Test
+  public void sustainedHotRangeIsMoved() {
+    LoadBalancer lb = new LoadBalancer();
+    lb.report("b", load("rb", 200));
+    lb.report("c", load("rc", 20));
+    assertNull(lb.report("a", load("ra", 5000)));
+    assertNull(lb.report("a", load("ra", 5000)));
+    LoadBalancer.Migration m = lb.report("a", load("ra", 5000));
+    assertEquals("a", m.from);
+    assertEquals("c", m.to);
+    assertEquals("ra", m.token);
+    assertNull(lb.report("a", load("ra", 5000))); // reports are reset after a migration
+  }
+
+  @Test
+  public void balancedLoadIsKept() {
+    LoadBalancer lb = new LoadBalancer();
+    lb.report("b", load("rb", 1000));
+    for (int i = 0; i < 5; i++) {
+      assertNull(lb.report("a", load("ra", 1500)));
+    }
+  }
+
+  @Test
+  public void splitMovesLowerHalf() {
+    HashRing hr = new HashRing();
+    hr.addServer("a");
+    hr.addServer("b");
+    String token = hr.getRangeToken("a"); // the token of a server lies in its own range
+    assertFalse(hr.splitRange("b", token, "a")); // range is not owned by b
+
+    HashMap<String, String> before = new HashMap<String, String>();
+    for (int k = 0; k < 10000; k++) {
+      before.put("key" + k, hr.getCoordinator("key" + k));
+    }
+    assertTrue(hr.splitRange("a", token, "b"));
+    assertTrue(hr.hasVirtualNodes());
+    int moved = 0;
+    int kept = 0;
+    for (int k = 0; k < 10000; k++) {
+      String key = "key" + k;
+      if (before.get(key).equals("a")) {
+        if (hr.isCoordinator("b", key)) {
+          moved++;
+        } else {
+          kept++;
+        }
+      } else {
+        assertEquals("b", hr.getCoordinator(key)); // ranges of b are unchanged
+      }
+    }
+    assertTrue(Math.abs(moved - kept) < (moved + kept) / 10);
+
+    HashRing server = new HashRing(hr.getKeyRange());
+    assertEquals(hr.getCoordinator("key1"), server.getCoordinator("key1"));
+  }
+
+  @Test
+  public void coordinatorRangeIsOnlyReturnedToTheCoordinator() {
+    HashRing hr = new HashRing();
+    hr.addServer("a");
+    hr.addServer("b");
+    for (int k = 0; k < 100; k++) {
+      String key = "key" + k;
+      String coordinator = hr.getCoordinator(key);
+      String other = coordinator.equals("a") ? "b" : "a";
+      assertEquals(hr.getRangeToken(key), hr.getCoordinatorRange(coordinator, key));
+      assertSame(hr.getCoordinatorRange(coordinator, key), hr.getCoordinatorRange(coordinator, key));
+      assertNull(hr.getCoordinatorRange(other, key));
+    }
+  }
+
+  @Test
+  public void trackerStartsAnewAfterDrain() {
+    LoadTracker tracker = new LoadTracker();
+    tracker.record("r1");
+    tracker.record("r1");
+    tracker.record("r2");
+    Map<String, Long> requests = tracker.drain();
+    assertEquals(2, requests.get("r1"));
+    assertEquals(1, requests.get("r2"));
+    assertTrue(tracker.drain().isEmpty());
+  }
+}
@@ -0,0 +1,81 @@
+package de.tum.i13;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.KVCommandProcessor;
+import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.kv.caching.Cache;
+import de.tum.i13.server.threadperconnection.ServerRing;
+
+public class TestMetadataDelta {
+
+  @Test
+  public void deltasFollowTheRing() {
+    HashRing ecs = new HashRing();
+    ecs.setVirtualNodes(8);
+    ecs.addServer("a");
+    ecs.addServer("b");
+    HashRing server = new HashRing();
+    server.setKeyRange(ecs.getKeyRange());
+    server.setEpoch(ecs.getEpoch());
+
+    long known = ecs.getEpoch();
+    ecs.addServer("c", 2);
+    ecs.removeServer("a");
+    ecs.splitRange("b", ecs.getRangeToken("b"), "c");
+    assertEquals(known + 3, ecs.getEpoch());
+    assertEquals("", ecs.getDelta(ecs.getEpoch()));
+
+    server.applyDelta(ecs.getDelta(known), ecs.getEpoch());
+    assertEquals(ecs.getKeyRange(), server.getKeyRange());
+    assertEquals(ecs.getEpoch(), server.getEpoch());
+
+    server.applyDelta(ecs.getDelta(known), ecs.getEpoch()); // changes are idempotent
+    assertEquals(ecs.getKeyRange(), server.getKeyRange());
+  }
+
+  @Test
+  public void oldEpochsNeedCompleteRange() {
+    HashRing ecs = new HashRing();
+    for (int i = 0; i < 150; i++) {
+      ecs.addServer("server" + i);
+    }
+    assertNull(ecs.getDelta(1));
+    assertTrue(ecs.getDelta(ecs.getEpoch() - 10).startsWith("+"));
+
+    HashRing server = new HashRing();
+    server.setKeyRange(ecs.getKeyRange());
+    server.setEpoch(ecs.getEpoch());
+    ecs.addServer("new");
+    assertNull(server.getDelta(ecs.getEpoch() - 5)); // the server only knows changes since then
+  }
+
+  @Test
+  public void keyrangeRepliesDependOnEpoch() {
+    HashRing hr = new HashRing();
+    hr.addServer("a");
+    hr.addServer("b");
+    KVCommandProcessor cp = new KVCommandProcessor(
+        new KVStore(mock(DiskStore.class), mock(Cache.class)), new ServerRing(hr, "a"));
+
+    long epoch = hr.getEpoch();
+    assertEquals("keyrange_success " + hr.getKeyRange(), cp.process("keyrange"));
+    assertEquals("keyrange_unchanged " + epoch, cp.process("keyrange " + epoch));
+    assertEquals("keyrange_success " + hr.getKeyRange() + " " + epoch + " MD5", cp.process("keyrange -1"));
+    assertEquals("keyrange_read_success " + hr.getReadKeyRange() + " " + epoch + " MD5",
+        cp.process("keyrange_read -1"));
+
+    hr.removeServer("b");
+    assertEquals("keyrange_delta " + (epoch + 1) + " -b", cp.process("keyrange " + epoch));
+
+    assertEquals("error: invalid epoch foo", cp.process("keyrange foo"));
+    assertEquals("error: keyrange only takes an epoch", cp.process("keyrange_read 1 2"));
+    assertEquals("error: command unrecognized", cp.process("keyrangefoo"));
+    assertEquals("error: command unrecognized", cp.process("keyrange_readx 1"));
+  }
+}
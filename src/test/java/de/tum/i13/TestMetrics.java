@@ -0,0 +1,97 @@
+package de.tum.i13;
+
+import static de.tum.i13.Util.awaitPort;
+import static de.tum.i13.Util.createECSServerWithOptions;
+import static de.tum.i13.Util.createServerWithOptions;
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.caching.Cache;
+import de.tum.i13.server.kv.caching.CachingStrategy;
+import de.tum.i13.shared.MetricsRegistry;
+
+public class TestMetrics {
+  private static final String address = "127.0.0.1";
+
+  private String scrape(int port) throws IOException {
+    try (InputStream in = new URL("http://" + address + ":" + port + "/metrics").openStream()) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void countersOfCacheAndDisk() throws IOException {
+    Cache cache = new Cache(CachingStrategy.LRU, 2);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.put("c", "3");
+    cache.get("c");
+    cache.get("a");
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getEvictions());
+
+    DiskStore disk = new DiskStore(Files.createTempDirectory("metrics").toString());
+    disk.put("a", "1");
+    disk.put("b", "2");
+    disk.put("a", "3");
+    disk.delete("b");
+    disk.setLookID(1);
+    disk.emptySubFolder();
+    disk.put("c", "4");
+    assertEquals(1, disk.getKeyCounts().get(0));
+    assertEquals(1, disk.getKeyCounts().get(1));
+    disk.mergeFolder(1, 0);
+    assertEquals(2, disk.getKeyCounts().get(0));
+    disk.deleteAll();
+
+    MetricsRegistry metrics = new MetricsRegistry();
+    metrics.counter("test_hits_total", "Hits", cache::getHits);
+    metrics.gauges("test_keys", "Keys", "directory", disk::getKeyCounts);
+    assertEquals("# HELP test_hits_total Hits\n# TYPE test_hits_total counter\ntest_hits_total 1\n"
+        + "# HELP test_keys Keys\n# TYPE test_keys gauge\n", metrics.scrape());
+  }
+
+  @Test
+  @Timeout(60)
+  public void endpointsOfServerAndECS() throws IOException, InterruptedException {
+    int ecsport = getFreePort(address);
+    int ecsMetrics = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServerWithOptions(address, ecsport, "-r", "1", "-mp", String.valueOf(ecsMetrics)).start();
+    awaitPort(address, ecsport);
+    int port = getFreePort(address);
+    int serverMetrics = getFreePort(address);
+    createServerWithOptions(address, port, bootstrap, "-mp", String.valueOf(serverMetrics)).start();
+    Thread.sleep(1000);
+
+    ClientLibrary cl = new ClientLibrary();
+    cl.connect(address, port);
+    cl.setUsername("metrics_client");
+    for (int k = 0; k < 10; k++) {
+      cl.putRequest("mkey" + k, "value" + k);
+    }
+    cl.getRequest("mkey0");
+
+    String server = scrape(serverMetrics);
+    assertTrue(server.contains("\nkv_keys{directory=\"0\"} 10\n"), server);
+    assertTrue(server.contains("\nkv_connections_active 1\n"), server);
+    assertTrue(server.contains("\nkv_cache_hits_total 1\n"), server);
+    assertTrue(server.contains("\nkv_latency_seconds_count{stage=\"put.service\"} 10\n"), server);
+    cl.close();
+
+    String ecs = scrape(ecsMetrics);
+    assertTrue(ecs.contains("\necs_servers 1\n"), ecs);
+    assertTrue(ecs.contains("\necs_rebalances_running 0\n"), ecs);
+  }
+}
@@ -0,0 +1,152 @@
+package de.tum.i13;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.kv.caching.Cache;
+import de.tum.i13.server.kv.caching.CachingStrategy;
+import de.tum.i13.server.threadperconnection.ServerRing;
+
+public class TestPromotion {
+
+  private String dataPath;
+  private DiskStore disk;
+
+  @BeforeEach
+  public void beforeEach() throws IOException {
+    dataPath = Files.createTempDirectory("promotion").toString();
+    disk = new DiskStore(dataPath);
+  }
+
+  @AfterEach
+  public void afterEach() {
+    disk.deleteAll();
+  }
+
+  @Test
+  public void mergedFolderIsSearched() {
+    disk.setLookID(0);
+    disk.put("own", "a");
+    disk.setLookID(1);
+    disk.emptySubFolder();
+    disk.put("replicated", "b", 7);
+
+    assertTrue(disk.mergeFolder(1, 0));
+    assertTrue(disk.isSegment(1));
+    disk.setLookID(0);
+    assertEquals("b", disk.get("replicated"));
+    assertEquals(7, disk.getVersion("replicated"));
+    String[] keys = disk.getAllKeys();
+    Arrays.sort(keys);
+    assertArrayEquals(new String[] {"own", "replicated"}, keys);
+    assertTrue(new File(dataPath + "/1").list().length == 1); // file has not been moved
+
+    disk.put("replicated", "c");
+    assertEquals("c", disk.get("replicated"));
+    disk.delete("replicated");
+    assertNull(disk.get("replicated"));
+
+    disk.emptySubFolder();
+    assertFalse(disk.isSegment(1));
+    assertFalse(new File(dataPath + "/1").exists());
+  }
+
+  @Test
+  public void mergeKeepsNewerCopy() {
+    disk.setLookID(0);
+    disk.put("newer", "dst", 5);
+    disk.put("older", "dst", 9);
+    disk.setLookID(1);
+    disk.emptySubFolder();
+    disk.put("newer", "src", 7);
+    disk.put("older", "src", 3);
+    disk.put("deleted", "src", 8);
+    disk.delete("deleted", 9);
+
+    assertTrue(disk.mergeFolder(1, 0));
+    assertTrue(disk.hasUnresolvedSegments());
+    assertNewerCopies();
+
+    for (String key : disk.getSegmentKeys(1)) {
+      disk.resolve(1, key);
+    }
+    disk.setResolved(1);
+    assertFalse(disk.hasUnresolvedSegments());
+    assertNewerCopies();
+    assertEquals(2, disk.getKeyCounts().get(0));
+    assertTrue(new DiskStore(dataPath).hasUnresolvedSegments()); // resolved again after a restart
+  }
+
+  private void assertNewerCopies() {
+    disk.setLookID(0);
+    assertEquals("src", disk.get("newer"));
+    assertEquals(7, disk.getVersion("newer"));
+    assertEquals("dst", disk.get("older"));
+    assertEquals(9, disk.getVersion("older"));
+    assertNull(disk.get("deleted"));
+    assertEquals(9, disk.getVersion("deleted"));
+  }
+
+  @Test
+  @Timeout(10)
+  public void successorPromotesReplica() throws InterruptedException {
+    HashRing hr = new HashRing();
+    for (int i = 0; i < 4; i++) {
+      hr.addServer("127.0.0.1:" + (5300 + i));
+    }
+    String self = "127.0.0.1:5300";
+    String predecessor = hr.getPredecessor(self);
+    ServerRing sr = new ServerRing(hr, self);
+    KVStore kvs = new KVStore(disk, new Cache(CachingStrategy.LRU, 5));
+
+    kvs.setLookID(kvs.allocateReplicaFolder(predecessor));
+    kvs.put("promoted", "value", 3);
+    hr.removeServer(predecessor);
+    kvs.addToResponsibility(predecessor, sr);
+
+    assertEquals(-1, kvs.getReplicaFolder(predecessor));
+    synchronized (kvs) {
+      kvs.setLookID(0);
+      assertEquals("value", kvs.get("promoted"));
+      assertEquals(3, kvs.getVersion("promoted"));
+    }
+    while (disk.hasUnresolvedSegments()) { // resolved in the background
+      Thread.sleep(10);
+    }
+    assertEquals(1, disk.getKeyCounts().get(0));
+  }
+
+  @Test
+  public void otherReplicasMergeIntoSuccessor() {
+    HashRing hr = new HashRing();
+    for (int i = 0; i < 4; i++) {
+      hr.addServer("127.0.0.1:" + (5300 + i));
+    }
+    String self = "127.0.0.1:5300";
+    String predecessor = hr.getPredecessor(self);
+    String departed = hr.getPredecessor(predecessor);
+    ServerRing sr = new ServerRing(hr, self);
+    KVStore kvs = new KVStore(disk, new Cache(CachingStrategy.LRU, 5));
+
+    kvs.setLookID(kvs.allocateReplicaFolder(departed));
+    kvs.put("moved", "value", 3);
+    hr.removeServer(departed);
+    kvs.addToResponsibility(departed, sr);
+
+    kvs.setLookID(kvs.getReplicaFolder(predecessor));
+    assertEquals("value", kvs.get("moved"));
+  }
+}
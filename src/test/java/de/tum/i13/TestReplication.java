@@ -14,6 +14,7 @@ import de.tum.i13.server.threadperconnection.Main;
 import de.tum.i13.shared.ServerUtility;
 import static de.tum.i13.shared.ServerUtility.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TestReplication {
   private static final int serverCount = 3;
@@ -88,4 +89,28 @@ public class TestReplication {
       ac.close();
     }   
   }
+
+  /**
+   * The coordinator only answers a quorum write once the replicas have acknowledged it, so both
+   * replicas return the value right away.
+   * @throws IOException
+   */
+  @Test
+  public void testQuorumWrite() throws IOException {
+    String testKey = "quorumKey";
+    setupConnection(ServerUtility.getPort(hr.getCoordinator(testKey)));
+    ac.send("quorum 2 put " + testKey + " Y");
+    String reply = ac.receive();
+    ac.close();
+    assertTrue(reply.startsWith("put_success " + testKey + " "), reply);
+
+    for (int i = 0; i < addressArray.length; i++) {
+      if (hr.isReadResponsible(addressArray[i], testKey)) {
+        setupConnection(ports[i]);
+        ac.send("get " + testKey);
+        assertEquals("get_success " + testKey + " Y", ac.receive());
+        ac.close();
+      }
+    }
+  }
 }
@@ -0,0 +1,122 @@
+package de.tum.i13;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.kv.caching.Cache;
+import de.tum.i13.server.kv.caching.CachingStrategy;
+
+public class TestReplicationFactor {
+  private static final int serverCount = 6;
+
+  private HashRing createRing(int replicationFactor) {
+    HashRing hr = new HashRing();
+    hr.setReplicationFactor(replicationFactor);
+    for (int i = 0; i < serverCount; i++) {
+      hr.addServer("127.0.0.1:" + (5200 + i));
+    }
+    return hr;
+  }
+
+  @Test
+  public void replicasAndCoordinators() {
+    for (int n = 1; n <= 5; n++) {
+      HashRing hr = createRing(n);
+      assertEquals(n > 1, hr.replicationActive());
+      for (int i = 0; i < serverCount; i++) {
+        String server = "127.0.0.1:" + (5200 + i);
+        List<String> replicas = hr.getReplicas(server);
+        List<String> coordinators = hr.getCoordinators(server);
+        assertEquals(n - 1, replicas.size());
+        assertEquals(n - 1, coordinators.size());
+        assertEquals(n - 1, new HashSet<String>(replicas).size());
+        assertFalse(replicas.contains(server));
+        for (String replica : replicas) {
+          assertTrue(hr.getCoordinators(replica).contains(server));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void readResponsibility() {
+    for (int n = 1; n <= 5; n++) {
+      HashRing hr = createRing(n);
+      for (int k = 0; k < 100; k++) {
+        String key = "key" + k;
+        List<String> responsible = hr.getReadResponsibleServers(key);
+        assertEquals(n, responsible.size());
+        for (int i = 0; i < serverCount; i++) {
+          String server = "127.0.0.1:" + (5200 + i);
+          assertEquals(responsible.contains(server), hr.isReadResponsible(server, key));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void smallRingsReplicateToAllServers() {
+    HashRing hr = new HashRing();
+    hr.setReplicationFactor(4);
+    hr.addServer("127.0.0.1:5200");
+    assertFalse(hr.replicationActive());
+    assertEquals(hr.getKeyRange(), hr.getReadKeyRange());
+    assertTrue(hr.getReplicas("127.0.0.1:5200").isEmpty());
+
+    hr.addServer("127.0.0.1:5201");
+    assertTrue(hr.replicationSwitch());
+    hr.addServer("127.0.0.1:5202");
+    assertTrue(hr.replicationActive());
+    assertFalse(hr.replicationSwitch());
+    assertEquals(2, hr.getReplicas("127.0.0.1:5200").size()); // as many as there are
+    assertEquals(3, hr.getReadResponsibleServers("key").size());
+    HashRing client = new HashRing();
+    client.setReadKeyRange(hr.getReadKeyRange());
+    assertEquals(hr.getReadResponsibleServers("key"), client.getReadResponsibleServers("key"));
+
+    hr.addServer("127.0.0.1:5203");
+    assertEquals(3, hr.getReplicas("127.0.0.1:5200").size());
+  }
+
+  @Test
+  public void clientInfersReplicationFactor() {
+    for (int n = 1; n <= 5; n++) {
+      HashRing hr = createRing(n);
+      HashRing client = new HashRing();
+      client.setReadKeyRange(hr.getReadKeyRange());
+      assertEquals(n, client.getReplicationFactor());
+      assertEquals(hr.getReadResponsibleServers("key"), client.getReadResponsibleServers("key"));
+    }
+  }
+
+  @Test
+  public void replicaFoldersPerCoordinator() throws IOException {
+    DiskStore disk = new DiskStore(Files.createTempDirectory("replicas").toString());
+    KVStore kvs = new KVStore(disk, new Cache(CachingStrategy.LRU, 5));
+    try {
+      int first = kvs.allocateReplicaFolder("127.0.0.1:5200");
+      int second = kvs.allocateReplicaFolder("127.0.0.1:5201");
+      assertNotEquals(0, first);
+      assertNotEquals(first, second);
+      assertEquals(first, kvs.allocateReplicaFolder("127.0.0.1:5200"));
+
+      kvs.setLookID(second);
+      kvs.put("key", "value", 1);
+      kvs.freeReplicaFolder("127.0.0.1:5201");
+      assertEquals(-1, kvs.getReplicaFolder("127.0.0.1:5201"));
+      assertEquals(second, kvs.allocateReplicaFolder("127.0.0.1:5202"));
+      assertEquals(0, kvs.getVersion("key"));
+    } finally {
+      disk.deleteAll();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package de.tum.i13;
+
+import static de.tum.i13.Util.awaitPort;
+import static de.tum.i13.Util.createECSServer;
+import static de.tum.i13.Util.createServer;
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.KVCommandProcessor;
+import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.kv.caching.Cache;
+import de.tum.i13.server.kv.caching.CachingStrategy;
+import de.tum.i13.server.threadperconnection.ServerRing;
+
+public class TestSessionTokens {
+  private static final int serverCount = 3;
+  private static final String address = "127.0.0.1";
+  private static int[] ports = new int[serverCount];
+
+  @BeforeAll
+  public static void setup() throws IOException, InterruptedException {
+    int ecsport = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServer(address, ecsport).start();
+    awaitPort(address, ecsport);
+
+    for (int i = 0; i < serverCount; i++) {
+      ports[i] = getFreePort(address);
+      createServer(address, ports[i], bootstrap).start();
+      awaitPort(address, ports[i]);
+    }
+
+    Thread.sleep(600); // the last server has to receive its data
+  }
+
+  /**
+   * Reads are routed to a random replica, with the session token they still return the value that
+   * has just been written.
+   */
+  @Test
+  public void readYourWrites() throws IOException {
+    ClientLibrary cl = new ClientLibrary();
+    cl.connect(address, ports[0]);
+    cl.setUsername("session_client");
+    for (int i = 0; i < 20; i++) {
+      cl.putRequest("session", "value" + i);
+      assertEquals("value" + i, cl.getRequest("session"));
+    }
+    cl.close();
+  }
+
+  @Test
+  public void staleReplicaRejectsRead() throws IOException {
+    HashRing hr = new HashRing();
+    for (int i = 0; i < 3; i++) {
+      hr.addServer("127.0.0.1:" + (5400 + i));
+    }
+    String replica = hr.getReplicas(hr.getCoordinator("key")).get(0);
+    DiskStore disk = new DiskStore(Files.createTempDirectory("session").toString());
+    KVCommandProcessor cp = new KVCommandProcessor(new KVStore(disk, new Cache(CachingStrategy.LRU, 5)),
+        new ServerRing(hr, replica));
+    try {
+      assertEquals("get_error key", cp.process("get key"));
+      assertEquals("server_stale", cp.process("get key 42"));
+      assertEquals("error: invalid token x", cp.process("get key x"));
+    } finally {
+      disk.deleteAll();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package de.tum.i13;
+
+import static de.tum.i13.Util.createECSServerWithOptions;
+import static de.tum.i13.Util.createServerWithOptions;
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.ReplicationMode;
+import de.tum.i13.shared.Span;
+import de.tum.i13.shared.TraceWriter;
+import de.tum.i13.shared.Tracer;
+
+public class TestTracing {
+  private static final String address = "127.0.0.1";
+  private static final Pattern EVENT = Pattern.compile(
+      "\\{\"name\":\"([^\"]+)\",\"cat\":\"kv\",\"ph\":\"X\",.*\"pid\":(\\d+),.*\"trace\":\"(\\w+)\",\"span\":\"(\\w+)\",\"parent\":\"(\\w+)\".*");
+
+  @Test
+  public void contextIsPassedOn() {
+    Tracer client = new Tracer("client", null);
+    Tracer server = new Tracer("server", null);
+    assertEquals("", Tracer.header());
+    String context;
+    try (Span span = client.startTrace("put")) {
+      assertTrue(Tracer.header().startsWith(Tracer.PREFIX + span.context()));
+      context = span.context();
+    }
+    assertNull(Tracer.current());
+
+    String[] traced = Tracer.split(Tracer.PREFIX + context + " put key value");
+    assertEquals(context, traced[0]);
+    assertEquals("put key value", traced[1]);
+    try (Span span = server.start("put", traced[0])) {
+      assertEquals(context.split("-")[0], Long.toHexString(span.traceId));
+      assertEquals(context.split("-")[1], Long.toHexString(span.parentId));
+    }
+    assertNull(server.start("put"));
+    assertNull(Tracer.split("trace 123 value")[0]); // replicated key named trace
+  }
+
+  @Test
+  public void replicatedWriteIsTraced() throws Exception {
+    Path file = Files.createTempFile("trace", ".json");
+    int ecsport = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServerWithOptions(address, ecsport, "-r", "3", "-m", "CHAIN").start();
+    int[] ports = new int[3];
+    for (int i = 0; i < ports.length; i++) {
+      ports[i] = getFreePort(address);
+      createServerWithOptions(address, ports[i], bootstrap, "-tf", file.toString()).start();
+      Thread.sleep(600);
+    }
+    Thread.sleep(600);
+
+    ClientLibrary cl = new ClientLibrary();
+    cl.setReplicationMode(ReplicationMode.CHAIN);
+    cl.setTracer(new Tracer("client", TraceWriter.open(file)));
+    cl.connect(address, ports[0]);
+    cl.setUsername("trace_client");
+    cl.putRequest("tracekey", "tracevalue");
+    Thread.sleep(200); // the tail writes its span after the acknowledgement
+
+    Map<String, String[]> spans = new HashMap<String, String[]>();
+    List<String[]> put = new ArrayList<String[]>();
+    for (String line : Files.readAllLines(file)) {
+      Matcher m = EVENT.matcher(line);
+      if (m.matches()) {
+        String[] span = {m.group(1), m.group(2), m.group(3), m.group(4), m.group(5)};
+        spans.put(span[3], span);
+        if (span[0].equals("put") && span[4].equals("0")) {
+          put.add(span);
+        }
+      }
+    }
+    assertEquals(1, put.size());
+    String trace = put.get(0)[2];
+    List<String> names = new ArrayList<String>();
+    for (String[] span : spans.values()) {
+      if (span[2].equals(trace)) {
+        names.add(span[0]);
+        if (!span[4].equals("0")) { // every parent was recorded as well
+          assertTrue(spans.containsKey(span[4]), "parent of " + span[0] + " missing");
+        }
+      }
+    }
+    assertEquals(2, names.stream().filter(n -> n.equals("put")).count()); // client and coordinator
+    assertTrue(names.contains("replication.forward"));
+    assertTrue(names.contains("replication.ack"));
+    assertEquals(2, names.stream().filter(n -> n.equals("replication.apply")).count());
+  }
+}
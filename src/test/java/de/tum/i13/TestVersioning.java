@@ -0,0 +1,106 @@
+package de.tum.i13;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import de.tum.i13.client.ConsistencyLevel;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.kv.DiskStore;
+import de.tum.i13.server.kv.KVCommandProcessor;
+import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.kv.caching.Cache;
+import de.tum.i13.server.kv.caching.CachingStrategy;
+import de.tum.i13.server.threadperconnection.ServerRing;
+
+public class TestVersioning {
+
+  private String dataPath;
+  private DiskStore disk;
+  private KVCommandProcessor cp;
+
+  @BeforeEach
+  public void beforeEach() throws IOException {
+    dataPath = Files.createTempDirectory("versioning").toString();
+    disk = new DiskStore(dataPath);
+    KVStore kvs = new KVStore(disk, new Cache(CachingStrategy.LRU, 5));
+    HashRing hr = new HashRing();
+    hr.addServer("testserver");
+    cp = new KVCommandProcessor(kvs, new ServerRing(hr, "testserver"));
+  }
+
+  @AfterEach
+  public void afterEach() {
+    disk.deleteAll();
+  }
+
+  private long version(String reply) {
+    return Long.parseLong(reply.split("\\s")[2]);
+  }
+
+  @Test
+  public void writesIncreaseVersion() {
+    long v1 = version(cp.process("put key value1"));
+    long v2 = version(cp.process("put key value2"));
+    assertTrue(v2 > v1);
+    assertEquals("get_version_success key " + v2 + " value2", cp.process("get_version key"));
+
+    long v3 = version(cp.process("delete key"));
+    assertTrue(v3 > v2);
+    assertEquals("get_version_error key " + v3, cp.process("get_version key"));
+  }
+
+  @Test
+  public void deletingMissingKeyKeepsVersion() {
+    assertEquals("delete_error key", cp.process("delete key"));
+    assertEquals("get_version_error key 0", cp.process("get_version key"));
+    assertEquals(0, cp.kvs.getClock());
+  }
+
+  @Test
+  public void repairResendsCoordinatorVersion() {
+    long v = version(cp.process("put key new"));
+    assertEquals("repair_success key " + v, cp.process("repair key"));
+    assertEquals("get_success key new", cp.process("get key"));
+    assertEquals("repair_success other 0", cp.process("repair other"));
+
+    assertTrue(cp.process("repair key " + (v + 1) + " newer").startsWith("error"));
+    assertEquals("get_success key new", cp.process("get key"));
+
+    cp.setWriteLock(true);
+    assertEquals("server_write_lock", cp.process("repair key"));
+  }
+
+  @Test
+  public void quorumWriteFailsWithoutReplicas() {
+    assertEquals("put_error key value", cp.process("quorum 1 put key value"));
+    assertTrue(cp.process("quorum x put key value").startsWith("error"));
+    assertTrue(version(cp.process("quorum 0 put key value")) > 0);
+  }
+
+  @Test
+  public void versionsSurviveRestart() {
+    long v1 = version(cp.process("put key value"));
+    cp.process("put deleted value");
+    long v2 = version(cp.process("delete deleted"));
+
+    DiskStore restarted = new DiskStore(dataPath);
+    assertEquals(v1, restarted.getVersion("key"));
+    assertEquals("value", restarted.get("key"));
+    assertEquals(v2, restarted.getVersion("deleted"));
+    assertNull(restarted.get("deleted"));
+    assertEquals(0, restarted.getVersion("unknown"));
+  }
+
+  @Test
+  public void consistencyLevels() {
+    assertEquals(1, ConsistencyLevel.ONE.required(3));
+    assertEquals(2, ConsistencyLevel.QUORUM.required(3));
+    assertEquals(3, ConsistencyLevel.ALL.required(3));
+    assertEquals(1, ConsistencyLevel.QUORUM.required(1));
+  }
+}
@@ -0,0 +1,144 @@
+package de.tum.i13;
+
+import static de.tum.i13.Util.awaitPort;
+import static de.tum.i13.Util.createECSServer;
+import static de.tum.i13.Util.createServer;
+import static de.tum.i13.shared.ServerUtility.getFreePort;
+import static de.tum.i13.shared.ServerUtility.getSocketAddress;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import de.tum.i13.client.ClientLibrary;
+import de.tum.i13.server.ecs.HashRing;
+import de.tum.i13.server.ecs.ReplicationMode;
+
+public class TestVirtualNodes {
+  private static final int serverCount = 8;
+  private static final String address = "127.0.0.1";
+
+  private HashRing createRing(int virtualNodes, int replicationFactor) {
+    HashRing hr = new HashRing();
+    hr.setVirtualNodes(virtualNodes);
+    hr.setReplicationFactor(replicationFactor);
+    for (int i = 0; i < serverCount; i++) {
+      hr.addServer(address + ":" + (5400 + i));
+    }
+    return hr;
+  }
+
+  @Test
+  public void replicasAreDistinctServers() {
+    HashRing hr = createRing(16, 3);
+    assertTrue(hr.hasVirtualNodes());
+    assertTrue(hr.replicationActive());
+    for (int k = 0; k < 200; k++) {
+      List<String> responsible = hr.getReadResponsibleServers("key" + k);
+      assertEquals(3, new HashSet<String>(responsible).size());
+      for (String replica : responsible.subList(1, 3)) {
+        assertTrue(hr.getReplicas(responsible.get(0)).contains(replica));
+        assertTrue(hr.getCoordinators(replica).contains(responsible.get(0)));
+      }
+    }
+    for (int i = 0; i < serverCount; i++) {
+      String server = address + ":" + (5400 + i);
+      assertFalse(hr.getReplicas(server).contains(server));
+      assertTrue(hr.getSuccessors(server).size() > 1); // data is exchanged with several servers
+    }
+  }
+
+  @Test
+  public void clientSeesSameRing() {
+    HashRing hr = createRing(16, 3);
+    HashRing client = new HashRing();
+    client.setReadKeyRange(hr.getReadKeyRange());
+    assertEquals(3, client.getReplicationFactor());
+    assertEquals(hr.getKeyRange(), client.getKeyRange());
+    for (int k = 0; k < 200; k++) {
+      assertEquals(hr.getReadResponsibleServers("key" + k),
+          client.getReadResponsibleServers("key" + k));
+    }
+  }
+
+  @Test
+  public void ownershipFollowsWeight() {
+    HashRing hr = new HashRing();
+    hr.setVirtualNodes(64);
+    hr.addServer("small", 1);
+    hr.addServer("large", 3);
+    int large = 0;
+    for (int k = 0; k < 100000; k++) {
+      if (hr.isCoordinator("large", "key" + k)) {
+        large++;
+      }
+    }
+    double ratio = large / (double) (100000 - large);
+    assertTrue(ratio > 2 && ratio < 4, "large server owns " + ratio + " times as many keys");
+  }
+
+  /**
+   * Starts a cluster without replication, adds a server and checks that every key can still be
+   * read after several servers have handed over their ranges to it.
+   */
+  @Test
+  @Timeout(60)
+  public void joinReceivesFromSeveralServers() throws IOException, InterruptedException {
+    int ecsport = getFreePort(address);
+    String bootstrap = getSocketAddress(address, ecsport);
+    createECSServer(address, ecsport, 1, ReplicationMode.FANOUT, 8).start();
+    awaitPort(address, ecsport);
+    int[] ports = new int[3];
+    for (int i = 0; i < ports.length - 1; i++) {
+      ports[i] = getFreePort(address);
+      createServer(address, ports[i], bootstrap).start();
+      Thread.sleep(600);
+    }
+
+    ClientLibrary cl = new ClientLibrary();
+    cl.connect(address, ports[0]);
+    cl.setUsername("vnode_client");
+    for (int k = 0; k < 30; k++) {
+      cl.putRequest("vkey" + k, "value" + k);
+    }
+
+    ports[2] = getFreePort(address);
+    createServer(address, ports[2], bootstrap).start();
+    Thread.sleep(1500);
+
+    for (int k = 0; k < 30; k++) {
+      assertEquals("value" + k, cl.getRequest("vkey" + k));
+    }
+    cl.close();
+  }
+
+  /**
+   * More virtual nodes spread the keys more evenly, see VirtualNodeBenchmark for the time a joining
+   * server needs to receive its data
+   */
+  @Test
+  public void ownershipEvensOutWithVirtualNodes() {
+    assertTrue(ownershipDeviation(256) < ownershipDeviation(1));
+  }
+
+  /**
+   * Returns the standard deviation of the share of keys each server owns, relative to the mean
+   */
+  private double ownershipDeviation(int virtualNodes) {
+    HashRing hr = createRing(virtualNodes, 1);
+    HashMap<String, Integer> owned = new HashMap<String, Integer>();
+    for (int k = 0; k < 100000; k++) {
+      owned.merge(hr.getCoordinator("key" + k), 1, Integer::sum);
+    }
+    double mean = 100000.0 / serverCount;
+    double variance = 0;
+    for (int count : owned.values()) {
+      variance += (count - mean) * (count - mean) / serverCount;
+    }
+    return Math.sqrt(variance) / mean;
+  }
+}
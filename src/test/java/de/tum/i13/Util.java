@@ -1,8 +1,11 @@
 package de.tum.i13;
 
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.ServerSocket;
+import java.net.Socket;
 import de.tum.i13.server.ecs.MainECS;
+import de.tum.i13.server.ecs.ReplicationMode;
 import de.tum.i13.server.threadperconnection.Main;
 
 public class Util {
@@ -14,6 +17,23 @@ public class Util {
     }
   }
 
+  /**
+   * Waits until the ECS or a server accepts connections, so that servers started afterwards reach it
+   */
+  public static void awaitPort(String address, int port) throws IOException, InterruptedException {
+    for (int attempt = 0;; attempt++) {
+      try {
+        new Socket(address, port).close();
+        return;
+      } catch (ConnectException e) {
+        if (attempt == 50) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
   public static Thread createServer(String address, int port, String bootstrap) {
     Thread serverThread = new Thread() {
       @Override
@@ -48,12 +68,68 @@ public class Util {
 	}
 
 
+  public static Thread createServerWithOptions(String address, int port, String bootstrap,
+      String... options) {
+    String[] args = new String[options.length + 8];
+    System.arraycopy(new String[] {"-b", bootstrap, "-a", address, "-p", String.valueOf(port), "-d",
+        "data/" + port + "/"}, 0, args, 0, 8);
+    System.arraycopy(options, 0, args, 8, options.length);
+    Thread serverThread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Main.main(args);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+
+    return serverThread;
+  }
+
   public static Thread createECSServer(String address, int port) {
+    return createECSServer(address, port, 3);
+  }
+
+  public static Thread createECSServer(String address, int port, int replicationFactor) {
+    return createECSServer(address, port, replicationFactor, ReplicationMode.FANOUT);
+  }
+
+  public static Thread createECSServer(String address, int port, int replicationFactor, ReplicationMode mode) {
+    return createECSServer(address, port, replicationFactor, mode, 1);
+  }
+
+  public static Thread createECSServer(String address, int port, int replicationFactor,
+      ReplicationMode mode, int virtualNodes) {
+    Thread ecsThread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          MainECS.main(new String[] {"-a", address, "-p", String.valueOf(port), "-r",
+              String.valueOf(replicationFactor), "-m", mode.name(), "-v",
+              String.valueOf(virtualNodes)});
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+
+    return ecsThread;
+  }
+
+  public static Thread createECSServerWithOptions(String address, int port, String... options) {
+    String[] args = new String[options.length + 4];
+    args[0] = "-a";
+    args[1] = address;
+    args[2] = "-p";
+    args[3] = String.valueOf(port);
+    System.arraycopy(options, 0, args, 4, options.length);
     Thread ecsThread = new Thread() {
       @Override
       public void run() {
         try {
-          MainECS.main(new String[] {"-a", address, "-p", String.valueOf(port)});
+          MainECS.main(args);
         } catch (IOException e) {
           e.printStackTrace();
         }